@@ -1,26 +1,42 @@
 package net.micode.notes.data;
 
+import android.content.ContentUris;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.Handler;
+import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Data;
 import android.telephony.PhoneNumberUtils;
 import android.util.Log;
-
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * 联系人工具类。方法 getContact 用于获取给定电话号码对应的联系人名称
- * 这个方法首先检查一个静态 HashMap sContactCache 中是否已经缓存了该电话号码对应的联系人名称，如果缓存中存在，则直接返回该名称。
- * 如果缓存中不存在，它会构建一个查询字符串，用于查询 Android 系统的联系人数据库。然后执行查询，并根据结果获取联系人名称。如果查询结果不为空，它会将电话号码和联系人名称存入缓存中，并返回联系人名称。
+ * 查询结果保存在一个有界的LRU缓存 sContactCache 中，超过 MAX_CACHE_SIZE 条时淘汰最久未使用的记录。
+ * 没有匹配联系人的号码也会被缓存 NEGATIVE_TTL 时间，避免每次绑定列表项时都重新查询。
+ * 联系人数据变化时，如果能确定变化的联系人，只清除该联系人的记录和没有匹配的记录，否则清空缓存。
  */
 public class Contact {
-    private static HashMap<String, String> sContactCache;
     private static final String TAG = "Contact";
 
+    // 缓存的最大条数
+    private static final int MAX_CACHE_SIZE = 500;
+
+    // 没有匹配联系人的号码的缓存时间，毫秒
+    private static final long NEGATIVE_TTL = 1000L * 60 * 5;
+
+    // 批量查询时一次查询的号码数
+    private static final int BATCH_SIZE = 20;
+
     private static final String CALLER_ID_SELECTION = "PHONE_NUMBERS_EQUAL(" + Phone.NUMBER
             + ",?) AND " + Data.MIMETYPE + "='" + Phone.CONTENT_ITEM_TYPE + "'"
             + " AND " + Data.RAW_CONTACT_ID + " IN "
@@ -28,22 +44,103 @@ public class Contact {
             + " FROM phone_lookup"
             + " WHERE min_match = '+')";
 
+    // 缓存记录，name 为null表示没有匹配的联系人
+    private static class CacheEntry {
+        final String name;
+        final long contactId;
+        final long expireTime;
+
+        CacheEntry(String name, long contactId, long expireTime) {
+            this.name = name;
+            this.contactId = contactId;
+            this.expireTime = expireTime;
+        }
+
+        boolean isExpired(long now) {
+            return name == null && expireTime < now;
+        }
+    }
+
+    // 按访问顺序排列的LRU缓存，所有访问都需要持有 Contact.class 锁
+    private static final LinkedHashMap<String, CacheEntry> sContactCache =
+            new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                    return size() > MAX_CACHE_SIZE;
+                }
+            };
+
+    private static int sGeneration; // 缓存失效的次数，用于判断之前的查询结果是否仍然有效
+
     private static WeakReference<Context> sContextRef;
 
-    public static void init(Context context) {
+    private static boolean sObserverRegistered;
+
+    public static synchronized void init(Context context) {
         sContextRef = new WeakReference<>(context.getApplicationContext());
+        if (!sObserverRegistered) {
+            // 联系人数据变化时使缓存失效
+            context.getContentResolver().registerContentObserver(
+                    ContactsContract.Contacts.CONTENT_URI, true, new ContactObserver(null));
+            sObserverRegistered = true;
+        }
     }
 
-    public static String getContact(String phoneNumber) {
-        if (sContactCache == null) {
-            sContactCache = new HashMap<>();
+    public static String getContact(Context context, String phoneNumber) {
+        ensureInit(context);
+        return getContact(phoneNumber);
+    }
+
+    private static synchronized void ensureInit(Context context) {
+        if (sContextRef == null || sContextRef.get() == null) {
+            init(context);
         }
+    }
 
-        if (sContactCache.containsKey(phoneNumber)) {
-            return sContactCache.get(phoneNumber);
+    // 只从缓存中获取联系人名称，不查询联系人数据库，缓存中没有或没有匹配的联系人时返回null
+    public static synchronized String getCachedContact(String phoneNumber) {
+        CacheEntry entry = getEntry(phoneNumber);
+        return entry == null ? null : entry.name;
+    }
+
+    // 缓存中是否有该号码的记录，包括没有匹配联系人的记录
+    public static synchronized boolean isCached(String phoneNumber) {
+        return getEntry(phoneNumber) != null;
+    }
+
+    // 缓存每次失效后都会变化，与之前取得的值不同时，之前查询过的号码需要重新查询
+    public static synchronized int getGeneration() {
+        return sGeneration;
+    }
+
+    // 获取未过期的缓存记录，必须持有 Contact.class 锁
+    private static CacheEntry getEntry(String phoneNumber) {
+        CacheEntry entry = sContactCache.get(phoneNumber);
+        if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+            sContactCache.remove(phoneNumber);
+            sGeneration++; // 过期的号码同样需要重新查询
+            return null;
         }
+        return entry;
+    }
 
-        Context context = sContextRef.get();
+    // 在锁内从缓存中查找号码，供不持有锁的查询方法使用
+    private static synchronized CacheEntry lookup(String phoneNumber) {
+        return getEntry(phoneNumber);
+    }
+
+    private static synchronized void putCachedContact(String phoneNumber, String name, long contactId) {
+        sContactCache.put(phoneNumber, new CacheEntry(name, contactId,
+                name == null ? System.currentTimeMillis() + NEGATIVE_TTL : 0));
+    }
+
+    public static String getContact(String phoneNumber) {
+        CacheEntry cached = lookup(phoneNumber);
+        if (cached != null) {
+            return cached.name;
+        }
+
+        Context context = sContextRef == null ? null : sContextRef.get();
         if (context == null) {
             Log.e(TAG, "Context is null");
             return null;
@@ -53,28 +150,126 @@ public class Contact {
                 PhoneNumberUtils.toCallerIDMinMatch(phoneNumber));
         Cursor cursor = context.getContentResolver().query(
                 Data.CONTENT_URI,
-                new String[] { Phone.DISPLAY_NAME },
+                new String[] { Phone.DISPLAY_NAME, Phone.CONTACT_ID },
                 selection,
                 new String[] { phoneNumber },
                 null);
 
-        if (cursor != null && cursor.moveToFirst()) {
-            try {
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (cursor.moveToFirst()) {
                 String name = cursor.getString(0);
-                sContactCache.put(phoneNumber, name);
+                putCachedContact(phoneNumber, name, cursor.getLong(1));
                 return name;
-            } catch (IndexOutOfBoundsException e) {
-                Log.e(TAG, " Cursor get string error " + e.toString());
-                return null;
-            } finally {
-                cursor.close();
             }
-        } else {
             Log.d(TAG, "No contact matched with number:" + phoneNumber);
+            putCachedContact(phoneNumber, null, 0); // 缓存没有匹配的结果
             return null;
+        } catch (IndexOutOfBoundsException e) {
+            Log.e(TAG, " Cursor get string error " + e.toString());
+            return null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * 批量查询多个电话号码对应的联系人名称，每 BATCH_SIZE 个号码只查询一次联系人数据库
+     * 查询结果（包括没有匹配的号码）会存入缓存，返回电话号码到联系人名称的映射，没有匹配联系人的号码不在其中
+     */
+    public static HashMap<String, String> getContacts(Context context, Collection<String> phoneNumbers) {
+        ensureInit(context);
+        HashMap<String, String> names = new HashMap<>();
+        ArrayList<String> batch = new ArrayList<>(BATCH_SIZE);
+        for (String phoneNumber : phoneNumbers) {
+            CacheEntry cached = lookup(phoneNumber);
+            if (cached != null) {
+                if (cached.name != null) {
+                    names.put(phoneNumber, cached.name);
+                }
+                continue;
+            }
+            batch.add(phoneNumber);
+            if (batch.size() == BATCH_SIZE) {
+                queryContacts(context, batch, names);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            queryContacts(context, batch, names);
+        }
+        return names;
+    }
+
+    // 预先批量查询一组号码（例如一个文件夹中的所有通话记录）的联系人名称并存入缓存
+    public static void prewarm(Context context, Collection<String> phoneNumbers) {
+        getContacts(context, phoneNumbers);
+    }
+
+    private static void queryContacts(Context context, ArrayList<String> phoneNumbers,
+            HashMap<String, String> names) {
+        StringBuilder selection = new StringBuilder();
+        for (String phoneNumber : phoneNumbers) {
+            if (selection.length() > 0) {
+                selection.append(" OR ");
+            }
+            selection.append('(').append(CALLER_ID_SELECTION.replace("+",
+                    PhoneNumberUtils.toCallerIDMinMatch(phoneNumber))).append(')');
+        }
+
+        Cursor cursor = context.getContentResolver().query(
+                Data.CONTENT_URI,
+                new String[] { Phone.NUMBER, Phone.DISPLAY_NAME, Phone.CONTACT_ID },
+                selection.toString(),
+                phoneNumbers.toArray(new String[phoneNumbers.size()]),
+                null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            // 一次查询返回多个号码的联系人，需要把结果对应回查询的号码
+            while (cursor.moveToNext()) {
+                String number = cursor.getString(0);
+                String name = cursor.getString(1);
+                for (String phoneNumber : phoneNumbers) {
+                    if (!names.containsKey(phoneNumber)
+                            && PhoneNumberUtils.compare(context, number, phoneNumber)) {
+                        names.put(phoneNumber, name);
+                        putCachedContact(phoneNumber, name, cursor.getLong(2));
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        for (String phoneNumber : phoneNumbers) {
+            if (!names.containsKey(phoneNumber)) {
+                putCachedContact(phoneNumber, null, 0); // 缓存没有匹配的结果
+            }
         }
     }
 
+    // 清除某个联系人的缓存记录，以及所有没有匹配联系人的记录（它们可能匹配到新的联系人）
+    public static synchronized void invalidateContact(long contactId) {
+        Iterator<CacheEntry> iter = sContactCache.values().iterator();
+        while (iter.hasNext()) {
+            CacheEntry entry = iter.next();
+            if (entry.name == null || entry.contactId == contactId) {
+                iter.remove();
+            }
+        }
+        sGeneration++;
+    }
+
+    // 清空缓存
+    public static synchronized void invalidateAll() {
+        sContactCache.clear();
+        sGeneration++;
+    }
+
     //lzier
     public static class ContactObserver extends ContentObserver {
         public ContactObserver(Handler handler) {
@@ -83,9 +278,27 @@ public class Contact {
 
         @Override
         public void onChange(boolean selfChange) {
-            super.onChange(selfChange);
-            // 清除联系人缓存
-            sContactCache = null;
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            // 变化的是单个联系人时只清除相关的记录，否则清除联系人缓存
+            long contactId = -1;
+            if (uri != null && uri.toString().startsWith(ContactsContract.Contacts.CONTENT_URI.toString())) {
+                try {
+                    contactId = ContentUris.parseId(uri);
+                } catch (NumberFormatException e) {
+                    contactId = -1;
+                } catch (UnsupportedOperationException e) {
+                    contactId = -1;
+                }
+            }
+            if (contactId > 0) {
+                invalidateContact(contactId);
+            } else {
+                invalidateAll();
+            }
         }
     }
 }
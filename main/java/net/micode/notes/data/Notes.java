@@ -42,6 +42,12 @@ public class Notes {
     public static final String INTENT_EXTRA_FOLDER_ID = "net.micode.notes.folder_id";
     public static final String INTENT_EXTRA_CALL_DATE = "net.micode.notes.call_date";
 
+    /**
+     * Query parameter of {@link #CONTENT_NOTE_URI} limiting the number of returned rows,
+     * used to load a long note list page by page
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
     public static final int TYPE_WIDGET_INVALIDE      = -1;
     public static final int TYPE_WIDGET_2X            = 0;
     public static final int TYPE_WIDGET_4X            = 1;
@@ -49,6 +55,8 @@ public class Notes {
     public static class DataConstants {
         public static final String NOTE = TextNote.CONTENT_ITEM_TYPE;
         public static final String CALL_NOTE = CallNote.CONTENT_ITEM_TYPE;
+        public static final String NOTE_CHUNK = TextNote.CHUNK_ITEM_TYPE;
+        public static final String CHECK_ITEM = CheckItem.CONTENT_ITEM_TYPE;
     }
 
     /**
@@ -261,6 +269,20 @@ public class Notes {
 
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/text_note";
 
+        /**
+         * Content of a large note is split into segments. The first segment is kept in the text
+         * note row, the others are stored in rows of this type under the same note id. Each
+         * segment has its own full-text index entry, which also covers the start of the next
+         * segment.
+         */
+        public static final String CHUNK_ITEM_TYPE = "vnd.android.cursor.item/text_note_chunk";
+
+        /**
+         * Position of a segment row in the content, the text note row is segment 0
+         * <P> Type: INTEGER </P>
+         */
+        public static final String CHUNK_INDEX = DATA2;
+
         public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/text_note");
     }
 
@@ -283,4 +305,39 @@ public class Notes {
 
         public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/call_note");
     }
+
+    /**
+     * An item of a note in check list mode. The items are stored under the note id of the
+     * text note, whose content stays empty while the note is a check list.
+     */
+    public static final class CheckItem implements DataColumns {
+        /**
+         * Whether the item is checked
+         * <P> Type: INTEGER 1:checked 0:unchecked </P>
+         */
+        public static final String CHECKED = DATA1;
+
+        /**
+         * Position of the item in the list, the positions leave gaps so an item can be inserted
+         * without moving the others
+         * <P> Type: INTEGER (long) </P>
+         */
+        public static final String POSITION = DATA2;
+
+        /**
+         * Distance between the positions of two items written one after another
+         */
+        public static final long POSITION_STEP = 1024;
+
+        /**
+         * Marks of the checked and unchecked items when a check list is written as text
+         */
+        public static final String TAG_CHECKED = String.valueOf('\u221A');
+
+        public static final String TAG_UNCHECKED = String.valueOf('\u25A1');
+
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/check_item";
+
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/check_item";
+    }
 }
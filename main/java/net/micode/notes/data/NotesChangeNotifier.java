@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.text.TextUtils;
+
+import java.util.HashSet;
+
+/**
+ * Gathers the notes changed by the provider and notifies the observers once per transaction or
+ * per time window instead of once per written row. The notification on
+ * {@link Notes#CONTENT_NOTE_URI} carries the ids of the changed notes in the
+ * {@link #QUERY_PARAMETER_CHANGED_IDS} query parameter, observers overriding
+ * onChange(boolean, Uri) can read them back with {@link #getChangedNoteIds(Uri)}. A
+ * notification without the parameter means any note may have changed.
+ * {@link net.micode.notes.widget.NoteWidgetObserver} uses them to refresh only the widgets of
+ * the changed notes. The notes list still reloads its rows on any change, the folder counts
+ * and the sort order depend on rows outside the changed ones.
+ * <p>
+ * The changes of a committed batch are notified right away on the writing thread; single
+ * writes arriving within {@link #NOTIFY_DELAY} are merged and notified from a background
+ * thread, never through the main looper.
+ */
+public class NotesChangeNotifier {
+    public static final String QUERY_PARAMETER_CHANGED_IDS = "changed_ids";
+
+    /**
+     * Single writes arriving within this window are merged into one notification
+     */
+    private static final long NOTIFY_DELAY = 100;
+
+    /**
+     * Above this many ids the notification is sent without them, observers then reload everything
+     */
+    private static final int MAX_CHANGED_IDS = 200;
+
+    private final ContentResolver mResolver;
+
+    private final Handler mHandler;
+
+    private final ChangeSet mPending = new ChangeSet();
+
+    private final Runnable mFlush = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * The changes made by one transaction or one time window
+     */
+    public static class ChangeSet {
+        private final HashSet<Long> mNoteIds = new HashSet<Long>();
+
+        private boolean mAllNotes;
+
+        private boolean mData;
+
+        /**
+         * A single note was inserted, updated or deleted
+         */
+        public void noteChanged(long noteId) {
+            if (!mAllNotes) {
+                mNoteIds.add(noteId);
+            }
+        }
+
+        /**
+         * Notes matching a selection were changed, their ids are unknown
+         */
+        public void allNotesChanged() {
+            mAllNotes = true;
+            mNoteIds.clear();
+        }
+
+        /**
+         * A data row of the note was changed, which also changes the note through the triggers.
+         * Pass a non positive id if the owning note is unknown.
+         */
+        public void dataChanged(long noteId) {
+            mData = true;
+            if (noteId > 0) {
+                noteChanged(noteId);
+            } else {
+                allNotesChanged();
+            }
+        }
+
+        public boolean isEmpty() {
+            return !mAllNotes && !mData && mNoteIds.isEmpty();
+        }
+
+        private void addAll(ChangeSet changes) {
+            if (changes.mAllNotes) {
+                allNotesChanged();
+            } else if (!mAllNotes) {
+                mNoteIds.addAll(changes.mNoteIds);
+            }
+            mData |= changes.mData;
+        }
+
+        private void clear() {
+            mNoteIds.clear();
+            mAllNotes = false;
+            mData = false;
+        }
+    }
+
+    public NotesChangeNotifier(ContentResolver resolver) {
+        mResolver = resolver;
+        HandlerThread thread = new HandlerThread("NotesChangeNotifier",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Queue the changes of a single write, they are notified together with the other changes
+     * of the time window
+     */
+    public synchronized void post(ChangeSet changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        boolean scheduled = !mPending.isEmpty();
+        mPending.addAll(changes);
+        if (!scheduled) {
+            mHandler.postDelayed(mFlush, NOTIFY_DELAY);
+        }
+    }
+
+    /**
+     * Notify the changes of a committed transaction on the calling thread, together with the
+     * single writes still waiting for their window
+     */
+    public void postNow(ChangeSet changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlush);
+            mPending.addAll(changes);
+        }
+        flush();
+    }
+
+    private void flush() {
+        Uri noteUri = null;
+        boolean dataChanged;
+        synchronized (this) {
+            if (mPending.mAllNotes || mPending.mNoteIds.size() > MAX_CHANGED_IDS) {
+                noteUri = Notes.CONTENT_NOTE_URI;
+            } else if (!mPending.mNoteIds.isEmpty()) {
+                noteUri = Notes.CONTENT_NOTE_URI.buildUpon()
+                        .appendQueryParameter(QUERY_PARAMETER_CHANGED_IDS,
+                                TextUtils.join(",", mPending.mNoteIds))
+                        .build();
+            }
+            dataChanged = mPending.mData;
+            mPending.clear();
+        }
+
+        // Notifying the table uri also reaches the observers registered on its single rows
+        if (noteUri != null) {
+            mResolver.notifyChange(noteUri, null);
+        }
+        if (dataChanged) {
+            mResolver.notifyChange(Notes.CONTENT_DATA_URI, null);
+        }
+    }
+
+    /**
+     * Get the ids of the notes changed by a notification, or null if any note may have changed
+     */
+    public static long[] getChangedNoteIds(Uri uri) {
+        String changedIds = uri == null ? null : uri.getQueryParameter(QUERY_PARAMETER_CHANGED_IDS);
+        if (TextUtils.isEmpty(changedIds)) {
+            return null;
+        }
+        String[] parts = changedIds.split(",");
+        long[] ids = new long[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                ids[i] = Long.parseLong(parts[i]);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ids;
+    }
+}
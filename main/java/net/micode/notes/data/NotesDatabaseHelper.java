@@ -18,26 +18,43 @@ package net.micode.notes.data;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.text.TextUtils;
 import android.util.Log;
 
+import net.micode.notes.data.Notes.CheckItem;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
+
+import java.util.Collection;
+import java.util.HashSet;
 
 
 public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String DB_NAME = "note.db";
 
-    private static final int DB_VERSION = 4;
+    private static final int DB_VERSION = 12;
 
     public interface TABLE {
         public static final String NOTE = "note";
 
         public static final String DATA = "data";
+
+        public static final String NOTE_FTS = "note_fts";
+
+        public static final String AGGREGATE_STATE = "aggregate_state";
     }
 
+    /**
+     * Whether the folder count triggers are paused while a bulk statement runs
+     */
+    private static final String FOLDER_COUNTS_DEFERRED = "folder_counts_deferred";
+
     private static final String TAG = "NotesDatabaseHelper";
 
     private static NotesDatabaseHelper mInstance;
@@ -79,16 +96,115 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             DataColumns.DATA5 + " TEXT NOT NULL DEFAULT ''" +
         ")";
 
+    /**
+     * Folder list: parent_id=? ORDER BY type DESC, modified_date DESC, _id DESC. The index is
+     * scanned backwards, so the rows come out sorted and the keyset pages seek directly to the
+     * last row of the previous page. The rowid at the end of every index entry breaks the ties.
+     */
+    private static final String CREATE_NOTE_PARENT_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_parent_index ON " +
+        TABLE.NOTE + "(" + NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + "," +
+        NoteColumns.MODIFIED_DATE + ");";
+
+    /**
+     * Sync and folder count queries: type=? AND parent_id<>?
+     */
+    private static final String CREATE_NOTE_TYPE_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_type_index ON " +
+        TABLE.NOTE + "(" + NoteColumns.TYPE + "," + NoteColumns.PARENT_ID + ");";
+
+    /**
+     * Alarms to restore after boot: alerted_date>? AND type=?, covers the query
+     */
+    private static final String CREATE_NOTE_ALERTED_DATE_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_alerted_date_index ON " +
+        TABLE.NOTE + "(" + NoteColumns.ALERTED_DATE + "," + NoteColumns.TYPE + ");";
+
+    /**
+     * Widget lookups: widget_id=? AND parent_id<>?
+     */
+    private static final String CREATE_NOTE_WIDGET_ID_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_widget_id_index ON " +
+        TABLE.NOTE + "(" + NoteColumns.WIDGET_ID + "," + NoteColumns.PARENT_ID + ");";
+
     private static final String CREATE_DATA_NOTE_ID_INDEX_SQL =
         "CREATE INDEX IF NOT EXISTS note_id_index ON " +
         TABLE.DATA + "(" + DataColumns.NOTE_ID + ");";
 
+    /**
+     * Full-text index over the content of {@link DataConstants#NOTE} data rows, the docid
+     * of each index row is the id of the data row it mirrors
+     */
+    private static final String CREATE_NOTE_FTS_TABLE_SQL =
+        "CREATE VIRTUAL TABLE IF NOT EXISTS " + TABLE.NOTE_FTS +
+        " USING fts4(" + DataColumns.CONTENT + ")";
+
+    /**
+     * The text of a note, the segments of a large note and the check items are indexed, each
+     * under its own row
+     */
+    private static final String INDEXED_MIME_TYPES =
+        "('" + DataConstants.NOTE + "','" + DataConstants.NOTE_CHUNK + "','"
+        + DataConstants.CHECK_ITEM + "')";
+
+    /**
+     * Chars of the next segment indexed with a segment, so words and phrases of up to this
+     * length across a segment boundary still match. An edit re-indexes the segments it wrote
+     * and the one before each of them, not the whole note.
+     */
+    static final int FTS_SEGMENT_OVERLAP = 256;
+
+    /**
+     * Fill the full-text index with the text data already in the database, each segment of a
+     * note and each check item under its own row
+     */
+    private static final String POPULATE_NOTE_FTS_TABLE_SQL =
+        "INSERT INTO " + TABLE.NOTE_FTS + "(docid," + DataColumns.CONTENT + ")" +
+        " SELECT d." + DataColumns.ID + "," + buildIndexedContent("d") +
+        " FROM " + TABLE.DATA + " d" +
+        " WHERE d." + DataColumns.MIME_TYPE + " IN " + INDEXED_MIME_TYPES;
+
+    /**
+     * One row table holding the state of the aggregate maintenance. It is only changed inside
+     * the transaction of a bulk statement, other connections always see the triggers enabled.
+     */
+    private static final String CREATE_AGGREGATE_STATE_TABLE_SQL =
+        "CREATE TABLE IF NOT EXISTS " + TABLE.AGGREGATE_STATE + "(" +
+            FOLDER_COUNTS_DEFERRED + " INTEGER NOT NULL DEFAULT 0" +
+        ")";
+
+    private static final String INIT_AGGREGATE_STATE_SQL =
+        "INSERT INTO " + TABLE.AGGREGATE_STATE + "(" + FOLDER_COUNTS_DEFERRED + ")" +
+        " SELECT 0 WHERE NOT EXISTS (SELECT 1 FROM " + TABLE.AGGREGATE_STATE + ")";
+
+    /**
+     * The folder count triggers only run while the counts are not deferred
+     */
+    private static final String FOLDER_COUNTS_ENABLED =
+        " WHEN (SELECT " + FOLDER_COUNTS_DEFERRED + " FROM " + TABLE.AGGREGATE_STATE + ")=0";
+
+    /**
+     * Count the children of the folders from scratch
+     */
+    private static final String REFRESH_FOLDER_COUNTS_SQL =
+        "UPDATE " + TABLE.NOTE +
+        " SET " + NoteColumns.NOTES_COUNT + "=(SELECT COUNT(*) FROM " + TABLE.NOTE + " AS child" +
+        "  WHERE child." + NoteColumns.PARENT_ID + "=" + TABLE.NOTE + "." + NoteColumns.ID + ")" +
+        " WHERE " + NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE;
+
+    private static final String COUNT_INCONSISTENT_FOLDERS_SQL =
+        "SELECT COUNT(*) FROM " + TABLE.NOTE + " AS folder" +
+        " WHERE folder." + NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE +
+        " AND folder." + NoteColumns.NOTES_COUNT + "<>(SELECT COUNT(*) FROM " + TABLE.NOTE + " AS child" +
+        "  WHERE child." + NoteColumns.PARENT_ID + "=folder." + NoteColumns.ID + ")";
+
     /**
      * Increase folder's note count when move note to the folder
      */
     private static final String NOTE_INCREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER =
         "CREATE TRIGGER increase_folder_count_on_update "+
         " AFTER UPDATE OF " + NoteColumns.PARENT_ID + " ON " + TABLE.NOTE +
+        FOLDER_COUNTS_ENABLED +
         " BEGIN " +
         "  UPDATE " + TABLE.NOTE +
         "   SET " + NoteColumns.NOTES_COUNT + "=" + NoteColumns.NOTES_COUNT + " + 1" +
@@ -101,6 +217,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String NOTE_DECREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER =
         "CREATE TRIGGER decrease_folder_count_on_update " +
         " AFTER UPDATE OF " + NoteColumns.PARENT_ID + " ON " + TABLE.NOTE +
+        FOLDER_COUNTS_ENABLED +
         " BEGIN " +
         "  UPDATE " + TABLE.NOTE +
         "   SET " + NoteColumns.NOTES_COUNT + "=" + NoteColumns.NOTES_COUNT + "-1" +
@@ -114,6 +231,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String NOTE_INCREASE_FOLDER_COUNT_ON_INSERT_TRIGGER =
         "CREATE TRIGGER increase_folder_count_on_insert " +
         " AFTER INSERT ON " + TABLE.NOTE +
+        FOLDER_COUNTS_ENABLED +
         " BEGIN " +
         "  UPDATE " + TABLE.NOTE +
         "   SET " + NoteColumns.NOTES_COUNT + "=" + NoteColumns.NOTES_COUNT + " + 1" +
@@ -126,6 +244,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String NOTE_DECREASE_FOLDER_COUNT_ON_DELETE_TRIGGER =
         "CREATE TRIGGER decrease_folder_count_on_delete " +
         " AFTER DELETE ON " + TABLE.NOTE +
+        FOLDER_COUNTS_ENABLED +
         " BEGIN " +
         "  UPDATE " + TABLE.NOTE +
         "   SET " + NoteColumns.NOTES_COUNT + "=" + NoteColumns.NOTES_COUNT + "-1" +
@@ -133,6 +252,43 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "  AND " + NoteColumns.NOTES_COUNT + ">0;" +
         " END";
 
+    /**
+     * The snippet of a note is a preview of its content, the full text only lives in the data
+     * table. The preview is capped at {@link #SNIPPET_MAX_LENGTH} characters and the checklist
+     * marks are stripped when it is written, so the readers take it as it is.
+     */
+    private static final int SNIPPET_MAX_LENGTH = 512;
+
+    private static String buildSnippetExpression(String content) {
+        return "REPLACE(REPLACE(SUBSTR(" + content + ",1," + SNIPPET_MAX_LENGTH + "),"
+                + "'\u221A',''),'\u25A1','')";
+    }
+
+    /**
+     * Only the first items of a check list can reach the preview, changes to the items after
+     * them do not touch the note row
+     */
+    private static final int SNIPPET_CHECK_ITEMS = 64;
+
+    /**
+     * Preview of a check list, one item per line
+     */
+    private static String buildCheckListSnippetExpression(String noteId) {
+        return "IFNULL((SELECT " + buildSnippetExpression("GROUP_CONCAT(" + DataColumns.CONTENT + ",x'0A')") +
+                " FROM (SELECT " + DataColumns.CONTENT + " FROM " + TABLE.DATA +
+                "  WHERE " + DataColumns.NOTE_ID + "=" + noteId +
+                "  AND " + DataColumns.MIME_TYPE + "='" + DataConstants.CHECK_ITEM + "'" +
+                "  ORDER BY " + CheckItem.POSITION + " LIMIT " + SNIPPET_CHECK_ITEMS + ")),'')";
+    }
+
+    /**
+     * Preview of a note from its text, or from its check items when the text is empty
+     */
+    private static String buildNoteSnippetExpression(String content, String noteId) {
+        return "(CASE WHEN " + content + "<>'' THEN " + buildSnippetExpression(content) +
+                " ELSE " + buildCheckListSnippetExpression(noteId) + " END)";
+    }
+
     /**
      * Update note's content when insert data with type {@link DataConstants#NOTE}
      */
@@ -142,23 +298,44 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         " WHEN new." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
         " BEGIN" +
         "  UPDATE " + TABLE.NOTE +
-        "   SET " + NoteColumns.SNIPPET + "=new." + DataColumns.CONTENT +
+        "   SET " + NoteColumns.SNIPPET + "=" + buildNoteSnippetExpression("new." + DataColumns.CONTENT,
+                "new." + DataColumns.NOTE_ID) +
         "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID + ";" +
         " END";
 
     /**
-     * Update note's content when data with {@link DataConstants#NOTE} type has changed
+     * Update note's content when data with {@link DataConstants#NOTE} type has changed. The note
+     * row is only rewritten when the preview changes, edits past the preview leave it alone.
      */
     private static final String DATA_UPDATE_NOTE_CONTENT_ON_UPDATE_TRIGGER =
         "CREATE TRIGGER update_note_content_on_update " +
-        " AFTER UPDATE ON " + TABLE.DATA +
+        " AFTER UPDATE OF " + DataColumns.CONTENT + " ON " + TABLE.DATA +
         " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
+        " AND new." + DataColumns.CONTENT + " IS NOT old." + DataColumns.CONTENT +
         " BEGIN" +
         "  UPDATE " + TABLE.NOTE +
-        "   SET " + NoteColumns.SNIPPET + "=new." + DataColumns.CONTENT +
-        "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID + ";" +
+        "   SET " + NoteColumns.SNIPPET + "=" + buildNoteSnippetExpression("new." + DataColumns.CONTENT,
+                "new." + DataColumns.NOTE_ID) +
+        "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID +
+        "  AND " + NoteColumns.SNIPPET + " IS NOT " + buildNoteSnippetExpression("new." + DataColumns.CONTENT,
+                "new." + DataColumns.NOTE_ID) + ";" +
         " END";
 
+    /**
+     * Rebuild the previews of the notes from their text data, or from their check items when
+     * the text is empty
+     */
+    private static final String REBUILD_NOTE_SNIPPETS_SQL =
+        "UPDATE " + TABLE.NOTE +
+        " SET " + NoteColumns.SNIPPET + "=IFNULL(" + buildNoteSnippetExpression(
+                "(SELECT " + DataColumns.CONTENT + " FROM " + TABLE.DATA +
+                "  WHERE " + DataColumns.NOTE_ID + "=" + TABLE.NOTE + "." + NoteColumns.ID +
+                "  AND " + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "')",
+                TABLE.NOTE + "." + NoteColumns.ID) + ",'')" +
+        " WHERE " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE +
+        " AND " + NoteColumns.ID + " IN (SELECT " + DataColumns.NOTE_ID + " FROM " + TABLE.DATA +
+        "  WHERE " + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "')";
+
     /**
      * Update note's content when data with {@link DataConstants#NOTE} type has deleted
      */
@@ -172,6 +349,188 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "  WHERE " + NoteColumns.ID + "=old." + DataColumns.NOTE_ID + ";" +
         " END";
 
+    /**
+     * Whether the check item is one of the first {@link #SNIPPET_CHECK_ITEMS} of its note
+     */
+    private static String buildCheckItemInSnippetCondition(String row) {
+        return row + "." + DataColumns.MIME_TYPE + "='" + DataConstants.CHECK_ITEM + "'" +
+                " AND (SELECT COUNT(*) FROM " + TABLE.DATA +
+                "  WHERE " + DataColumns.NOTE_ID + "=" + row + "." + DataColumns.NOTE_ID +
+                "  AND " + DataColumns.MIME_TYPE + "='" + DataConstants.CHECK_ITEM + "'" +
+                "  AND " + CheckItem.POSITION + "<" + row + "." + CheckItem.POSITION + ")<" +
+                SNIPPET_CHECK_ITEMS;
+    }
+
+    /**
+     * Rewrite the preview of a check list, unless the note has text or the preview is the same
+     */
+    private static String buildUpdateCheckListSnippetStatement(String noteId) {
+        return "UPDATE " + TABLE.NOTE +
+                " SET " + NoteColumns.SNIPPET + "=" + buildCheckListSnippetExpression(noteId) +
+                " WHERE " + NoteColumns.ID + "=" + noteId +
+                " AND " + NoteColumns.SNIPPET + " IS NOT " + buildCheckListSnippetExpression(noteId) +
+                " AND NOT EXISTS(SELECT 1 FROM " + TABLE.DATA +
+                "  WHERE " + DataColumns.NOTE_ID + "=" + noteId +
+                "  AND " + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
+                "  AND " + DataColumns.CONTENT + "<>'');";
+    }
+
+    /**
+     * Update the preview when a check item is added to the head of a check list
+     */
+    private static final String DATA_UPDATE_NOTE_SNIPPET_ON_CHECK_ITEM_INSERT_TRIGGER =
+        "CREATE TRIGGER update_note_snippet_on_check_item_insert " +
+        " AFTER INSERT ON " + TABLE.DATA +
+        " WHEN " + buildCheckItemInSnippetCondition("new") +
+        " BEGIN " +
+        buildUpdateCheckListSnippetStatement("new." + DataColumns.NOTE_ID) +
+        " END";
+
+    /**
+     * Update the preview when the text of a check item in the head of a check list changes.
+     * Checking or unchecking an item only writes {@link CheckItem#CHECKED}, which does not
+     * fire this trigger.
+     */
+    private static final String DATA_UPDATE_NOTE_SNIPPET_ON_CHECK_ITEM_UPDATE_TRIGGER =
+        "CREATE TRIGGER update_note_snippet_on_check_item_update " +
+        " AFTER UPDATE OF " + DataColumns.CONTENT + "," + CheckItem.POSITION + " ON " + TABLE.DATA +
+        " WHEN " + buildCheckItemInSnippetCondition("new") +
+        " AND (new." + DataColumns.CONTENT + " IS NOT old." + DataColumns.CONTENT +
+        "  OR new." + CheckItem.POSITION + " IS NOT old." + CheckItem.POSITION + ")" +
+        " BEGIN " +
+        buildUpdateCheckListSnippetStatement("new." + DataColumns.NOTE_ID) +
+        " END";
+
+    /**
+     * Update the preview when a check item is removed from the head of a check list
+     */
+    private static final String DATA_UPDATE_NOTE_SNIPPET_ON_CHECK_ITEM_DELETE_TRIGGER =
+        "CREATE TRIGGER update_note_snippet_on_check_item_delete " +
+        " AFTER DELETE ON " + TABLE.DATA +
+        " WHEN " + buildCheckItemInSnippetCondition("old") +
+        " BEGIN " +
+        buildUpdateCheckListSnippetStatement("old." + DataColumns.NOTE_ID) +
+        " END";
+
+    /**
+     * The text to index for a data row: the content of a segment followed by the first
+     * {@link #FTS_SEGMENT_OVERLAP} chars of the next segment of the note, or the content of
+     * the row itself for a check item. The head row is segment 0.
+     */
+    private static String buildIndexedContent(String row) {
+        return "CASE WHEN " + row + "." + DataColumns.MIME_TYPE + "='" + DataConstants.CHECK_ITEM + "'"
+            + " THEN " + row + "." + DataColumns.CONTENT
+            + " ELSE " + row + "." + DataColumns.CONTENT + "||IFNULL((SELECT substr("
+            + DataColumns.CONTENT + ",1," + FTS_SEGMENT_OVERLAP + ") FROM " + TABLE.DATA
+            + " WHERE " + DataColumns.NOTE_ID + "=" + row + "." + DataColumns.NOTE_ID
+            + " AND " + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE_CHUNK + "'"
+            + " AND " + TextNote.CHUNK_INDEX + "=(CASE WHEN " + row + "." + DataColumns.MIME_TYPE
+            + "='" + DataConstants.NOTE + "' THEN 0 ELSE " + row + "." + TextNote.CHUNK_INDEX
+            + " END)+1),'') END";
+    }
+
+    /**
+     * Re-index the segment before the segment row, its entry ends with the start of the row.
+     * The segment before segment 1 is the head row of the note.
+     */
+    private static String buildReindexPreviousSegmentStatement(String row) {
+        return "UPDATE " + TABLE.NOTE_FTS
+            + " SET " + DataColumns.CONTENT + "=(SELECT " + buildIndexedContent("p")
+            + " FROM " + TABLE.DATA + " p WHERE p." + DataColumns.ID + "=" + TABLE.NOTE_FTS + ".docid)"
+            + " WHERE docid IN (SELECT " + DataColumns.ID + " FROM " + TABLE.DATA
+            + " WHERE " + DataColumns.NOTE_ID + "=" + row + "." + DataColumns.NOTE_ID
+            + " AND ((" + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE_CHUNK + "'"
+            + " AND " + TextNote.CHUNK_INDEX + "=" + row + "." + TextNote.CHUNK_INDEX + "-1)"
+            + " OR (" + row + "." + TextNote.CHUNK_INDEX + "=1"
+            + " AND " + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "')));";
+    }
+
+    /**
+     * Index the content when insert data with type {@link DataConstants#NOTE},
+     * {@link DataConstants#NOTE_CHUNK} or {@link DataConstants#CHECK_ITEM}
+     */
+    private static final String DATA_INSERT_FTS_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER insert_fts_on_insert " +
+        " AFTER INSERT ON " + TABLE.DATA +
+        " WHEN new." + DataColumns.MIME_TYPE + " IN " + INDEXED_MIME_TYPES +
+        " BEGIN" +
+        "  INSERT INTO " + TABLE.NOTE_FTS + "(docid," + DataColumns.CONTENT + ")" +
+        "   VALUES(new." + DataColumns.ID + "," + buildIndexedContent("new") + ");" +
+        " END";
+
+    /**
+     * Re-index the segment before an inserted segment
+     */
+    private static final String DATA_INSERT_FTS_ON_CHUNK_INSERT_TRIGGER =
+        "CREATE TRIGGER insert_fts_on_chunk_insert " +
+        " AFTER INSERT ON " + TABLE.DATA +
+        " WHEN new." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE_CHUNK + "'" +
+        " BEGIN " +
+        buildReindexPreviousSegmentStatement("new") +
+        " END";
+
+    /**
+     * Re-index the content when indexed data has changed, and the segment before a changed
+     * segment
+     */
+    private static final String DATA_UPDATE_FTS_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER update_fts_on_update " +
+        " AFTER UPDATE OF " + DataColumns.CONTENT + " ON " + TABLE.DATA +
+        " WHEN old." + DataColumns.MIME_TYPE + " IN " + INDEXED_MIME_TYPES +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE_FTS +
+        "   SET " + DataColumns.CONTENT + "=" + buildIndexedContent("new") +
+        "  WHERE docid=old." + DataColumns.ID + ";" +
+        " END";
+
+    private static final String DATA_UPDATE_FTS_ON_CHUNK_UPDATE_TRIGGER =
+        "CREATE TRIGGER update_fts_on_chunk_update " +
+        " AFTER UPDATE OF " + DataColumns.CONTENT + " ON " + TABLE.DATA +
+        " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE_CHUNK + "'" +
+        " BEGIN " +
+        buildReindexPreviousSegmentStatement("new") +
+        " END";
+
+    /**
+     * A segment moved when the segments before it changed their number. Its own entry, the
+     * segment before its old position and the segment before its new position are re-indexed.
+     */
+    private static final String DATA_UPDATE_FTS_ON_CHUNK_MOVE_TRIGGER =
+        "CREATE TRIGGER update_fts_on_chunk_move " +
+        " AFTER UPDATE OF " + TextNote.CHUNK_INDEX + " ON " + TABLE.DATA +
+        " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE_CHUNK + "'" +
+        "  AND old." + TextNote.CHUNK_INDEX + "<>new." + TextNote.CHUNK_INDEX +
+        " BEGIN" +
+        "  UPDATE " + TABLE.NOTE_FTS +
+        "   SET " + DataColumns.CONTENT + "=" + buildIndexedContent("new") +
+        "  WHERE docid=old." + DataColumns.ID + "; " +
+        buildReindexPreviousSegmentStatement("old") +
+        buildReindexPreviousSegmentStatement("new") +
+        " END";
+
+    /**
+     * Drop the index entry when indexed data has deleted
+     */
+    private static final String DATA_DELETE_FTS_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER delete_fts_on_delete " +
+        " AFTER DELETE ON " + TABLE.DATA +
+        " WHEN old." + DataColumns.MIME_TYPE + " IN " + INDEXED_MIME_TYPES +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.NOTE_FTS +
+        "   WHERE docid=old." + DataColumns.ID + ";" +
+        " END";
+
+    /**
+     * Re-index the segment before a deleted segment, it no longer ends with its start
+     */
+    private static final String DATA_DELETE_FTS_ON_CHUNK_DELETE_TRIGGER =
+        "CREATE TRIGGER delete_fts_on_chunk_delete " +
+        " AFTER DELETE ON " + TABLE.DATA +
+        " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE_CHUNK + "'" +
+        " BEGIN " +
+        buildReindexPreviousSegmentStatement("old") +
+        " END";
+
     /**
      * Delete datas belong to note which has been deleted
      */
@@ -207,17 +566,191 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "  WHERE " + NoteColumns.PARENT_ID + "=old." + NoteColumns.ID + ";" +
         " END";
 
+    /**
+     * Connection settings applied every time the database is opened. They must be set with
+     * {@link NotesDatabaseHelper#setTuning(Tuning)} before the database is opened for the first
+     * time, later changes take effect the next time the database is opened.
+     */
+    public static class Tuning {
+        /**
+         * Write-ahead logging lets the list read while a sync is writing instead of waiting
+         * for the writer to release the rollback journal
+         */
+        public boolean walEnabled = true;
+
+        /**
+         * NORMAL only syncs at checkpoints in WAL mode, a power loss may lose the last
+         * transactions but never corrupts the database
+         */
+        public String synchronous = "NORMAL";
+
+        /**
+         * Page cache of the primary connection, negative values are in KiB. The WAL read
+         * connections keep the SQLite default.
+         */
+        public int cacheSize = -2048;
+
+        /**
+         * Bytes of the database file the primary connection accesses through memory mapping,
+         * 0 disables it. Ignored by the SQLite versions that do not support it.
+         */
+        public long mmapSize = 8 * 1024 * 1024;
+
+        /**
+         * Prepared statements kept per connection, at most {@link SQLiteDatabase#MAX_SQL_CACHE_SIZE}
+         */
+        public int statementCacheSize = SQLiteDatabase.MAX_SQL_CACHE_SIZE;
+    }
+
+    private static Tuning sTuning = new Tuning();
+
     public NotesDatabaseHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
     }
 
+    public static synchronized void setTuning(Tuning tuning) {
+        sTuning = tuning;
+    }
+
+    public static synchronized Tuning getTuning() {
+        return sTuning;
+    }
+
+    /**
+     * Runs on the primary connection before it is used, prior to creating or upgrading the
+     * database. Switching the journal mode makes the framework reset synchronous to its own WAL
+     * default, so WAL is enabled first and synchronous is set after it.
+     * <p>
+     * synchronous, cache_size and mmap_size are per connection pragmas and the framework has
+     * no hook for the read connections WAL adds to the pool. Only the primary connection, which
+     * does all the writes, gets them; the read connections run untuned with the SQLite
+     * defaults, which is fine for them since synchronous has no effect on reads.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        Tuning tuning = getTuning();
+        db.setMaxSqlCacheSize(Math.min(tuning.statementCacheSize, SQLiteDatabase.MAX_SQL_CACHE_SIZE));
+        if (tuning.walEnabled) {
+            db.enableWriteAheadLogging();
+        }
+        setPragma(db, "synchronous", tuning.synchronous);
+        setPragma(db, "cache_size", String.valueOf(tuning.cacheSize));
+        setPragma(db, "mmap_size", String.valueOf(tuning.mmapSize));
+    }
+
+    /**
+     * Some pragmas return the new value as a row, which execSQL refuses to run, so they are
+     * run as a query
+     */
+    private void setPragma(SQLiteDatabase db, String name, String value) {
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("PRAGMA " + name + "=" + value, null);
+            cursor.moveToFirst();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "failed to set pragma " + name + ": " + e.toString());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     public void createNoteTable(SQLiteDatabase db) {
         db.execSQL(CREATE_NOTE_TABLE_SQL);
+        createAggregateStateTable(db);
         reCreateNoteTableTriggers(db);
         createSystemFolder(db);
+        createNoteTableIndexes(db);
         Log.d(TAG, "note table has been created");
     }
 
+    private void createAggregateStateTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_AGGREGATE_STATE_TABLE_SQL);
+        db.execSQL(INIT_AGGREGATE_STATE_SQL);
+    }
+
+    /**
+     * Pause or resume the row level folder count triggers. Only call this inside a transaction,
+     * and before resuming call {@link #refreshFolderCounts(SQLiteDatabase, Collection)} for the
+     * folders touched while the counts were deferred.
+     */
+    void setFolderCountsDeferred(SQLiteDatabase db, boolean deferred) {
+        db.execSQL("UPDATE " + TABLE.AGGREGATE_STATE + " SET " + FOLDER_COUNTS_DEFERRED + "="
+                + (deferred ? 1 : 0));
+    }
+
+    /**
+     * Get the folders whose count changes when the notes matching the selection are moved
+     * or deleted: the folders holding them, and the matched folders themselves whose notes
+     * follow them into the trash
+     */
+    HashSet<Long> getAffectedFolders(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        HashSet<Long> folders = new HashSet<Long>();
+        String where = TextUtils.isEmpty(selection) ? "1" : "(" + selection + ")";
+        String[] args = selectionArgs;
+        if (selectionArgs != null) {
+            args = new String[selectionArgs.length * 2];
+            System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+            System.arraycopy(selectionArgs, 0, args, selectionArgs.length, selectionArgs.length);
+        }
+        Cursor cursor = db.rawQuery("SELECT DISTINCT " + NoteColumns.PARENT_ID + " FROM " + TABLE.NOTE
+                + " WHERE " + where
+                + " UNION SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
+                + " WHERE " + where + " AND " + NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE, args);
+        try {
+            while (cursor.moveToNext()) {
+                folders.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return folders;
+    }
+
+    /**
+     * Recount the children of the given folders, one indexed count per folder
+     */
+    void refreshFolderCounts(SQLiteDatabase db, Collection<Long> folderIds) {
+        if (folderIds.isEmpty()) {
+            return;
+        }
+        db.execSQL(REFRESH_FOLDER_COUNTS_SQL + " AND " + NoteColumns.ID + " IN ("
+                + TextUtils.join(",", folderIds) + ")");
+    }
+
+    /**
+     * Consistency checker of the folder counts. Returns how many folders have a count that
+     * does not match their children; if rebuild is true, all the counts are rebuilt from
+     * scratch when any of them is wrong.
+     */
+    public int checkFolderCounts(SQLiteDatabase db, boolean rebuild) {
+        int inconsistent = (int) DatabaseUtils.longForQuery(db, COUNT_INCONSISTENT_FOLDERS_SQL, null);
+        if (inconsistent > 0) {
+            Log.w(TAG, inconsistent + " folders have a wrong note count");
+            if (rebuild) {
+                db.beginTransaction();
+                try {
+                    setFolderCountsDeferred(db, true);
+                    db.execSQL(REFRESH_FOLDER_COUNTS_SQL);
+                    setFolderCountsDeferred(db, false);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        }
+        return inconsistent;
+    }
+
+    private void createNoteTableIndexes(SQLiteDatabase db) {
+        db.execSQL(CREATE_NOTE_PARENT_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_TYPE_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_ALERTED_DATE_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_WIDGET_ID_INDEX_SQL);
+    }
+
     //lzier
     private void reCreateNoteTableTriggers(SQLiteDatabase db) {
         db.beginTransaction();
@@ -304,6 +837,32 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         Log.d(TAG, "data table has been created");
     }
 
+    public void createNoteFtsTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE.NOTE_FTS);
+        db.execSQL(CREATE_NOTE_FTS_TABLE_SQL);
+        db.execSQL(POPULATE_NOTE_FTS_TABLE_SQL);
+        reCreateFtsTriggers(db);
+        Log.d(TAG, "note fts table has been created");
+    }
+
+    private void reCreateFtsTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS insert_fts_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS update_fts_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS delete_fts_on_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS insert_fts_on_chunk_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS update_fts_on_chunk_update");
+        db.execSQL("DROP TRIGGER IF EXISTS update_fts_on_chunk_move");
+        db.execSQL("DROP TRIGGER IF EXISTS delete_fts_on_chunk_delete");
+
+        db.execSQL(DATA_INSERT_FTS_ON_INSERT_TRIGGER);
+        db.execSQL(DATA_UPDATE_FTS_ON_UPDATE_TRIGGER);
+        db.execSQL(DATA_DELETE_FTS_ON_DELETE_TRIGGER);
+        db.execSQL(DATA_INSERT_FTS_ON_CHUNK_INSERT_TRIGGER);
+        db.execSQL(DATA_UPDATE_FTS_ON_CHUNK_UPDATE_TRIGGER);
+        db.execSQL(DATA_UPDATE_FTS_ON_CHUNK_MOVE_TRIGGER);
+        db.execSQL(DATA_DELETE_FTS_ON_CHUNK_DELETE_TRIGGER);
+    }
+
     private void reCreateDataTableTriggers(SQLiteDatabase db) {
         db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_insert");
         db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_update");
@@ -312,6 +871,14 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_INSERT_TRIGGER);
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_UPDATE_TRIGGER);
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_DELETE_TRIGGER);
+
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_snippet_on_check_item_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_snippet_on_check_item_update");
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_snippet_on_check_item_delete");
+
+        db.execSQL(DATA_UPDATE_NOTE_SNIPPET_ON_CHECK_ITEM_INSERT_TRIGGER);
+        db.execSQL(DATA_UPDATE_NOTE_SNIPPET_ON_CHECK_ITEM_UPDATE_TRIGGER);
+        db.execSQL(DATA_UPDATE_NOTE_SNIPPET_ON_CHECK_ITEM_DELETE_TRIGGER);
     }
 
     static synchronized NotesDatabaseHelper getInstance(Context context) {
@@ -325,12 +892,15 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
         createNoteTable(db);
         createDataTable(db);
+        createNoteFtsTable(db);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         boolean reCreateTriggers = false;
         boolean skipV2 = false;
+        boolean rebuildSnippets = false;
+        boolean rebuildFts = false;
 
         if (oldVersion == 1) {
             upgradeToV2(db);
@@ -349,11 +919,63 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             oldVersion++;
         }
 
+        if (oldVersion == 4) {
+            upgradeToV5(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 5) {
+            upgradeToV6(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 6) {
+            upgradeToV7(db);
+            reCreateTriggers = true;
+            oldVersion++;
+        }
+
+        if (oldVersion == 7) {
+            reCreateTriggers = true;
+            rebuildSnippets = true; // the snippets written before hold the full content
+            oldVersion++;
+        }
+
+        if (oldVersion == 8) {
+            reCreateFtsTriggers(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 9) {
+            upgradeToV10(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 10) {
+            // the segments of a large note were not indexed with an overlap
+            rebuildFts = true;
+            oldVersion++;
+        }
+
+        if (oldVersion == 11) {
+            // the head row of a large note indexed the whole text, re-index it by segment
+            rebuildFts = true;
+            oldVersion++;
+        }
+
         if (reCreateTriggers) {
             reCreateNoteTableTriggers(db);
             reCreateDataTableTriggers(db);
         }
 
+        if (rebuildSnippets) {
+            db.execSQL(REBUILD_NOTE_SNIPPETS_SQL);
+        }
+
+        if (rebuildFts) {
+            createNoteFtsTable(db);
+        }
+
         if (oldVersion != newVersion) {
             throw new IllegalStateException("Upgrade notes database to version " + newVersion
                     + "fails");
@@ -386,4 +1008,99 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.VERSION
                 + " INTEGER NOT NULL DEFAULT 0");
     }
+
+    private void upgradeToV5(SQLiteDatabase db) {
+        createNoteFtsTable(db);
+    }
+
+    private void upgradeToV6(SQLiteDatabase db) {
+        createNoteTableIndexes(db);
+        db.execSQL("ANALYZE " + TABLE.NOTE);
+    }
+
+    private void upgradeToV7(SQLiteDatabase db) {
+        createAggregateStateTable(db);
+        checkFolderCounts(db, true);
+    }
+
+    /**
+     * Move the items of the notes in check list mode from their marked text into check item
+     * rows. The text, with the segments of a large note, is read one row at a time.
+     */
+    private void upgradeToV10(SQLiteDatabase db) {
+        reCreateDataTableTriggers(db);
+        reCreateFtsTriggers(db);
+
+        Cursor cursor = db.query(TABLE.DATA, new String[] {
+            DataColumns.ID, DataColumns.NOTE_ID
+        }, DataColumns.MIME_TYPE + "=? AND " + TextNote.MODE + "=" + TextNote.MODE_CHECK_LIST,
+                new String[] {
+                    DataConstants.NOTE
+                }, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                long dataId = cursor.getLong(0);
+                long noteId = cursor.getLong(1);
+                StringBuilder text = new StringBuilder(readContent(db, dataId));
+                Cursor chunks = db.query(TABLE.DATA, new String[] {
+                    DataColumns.ID
+                }, DataColumns.NOTE_ID + "=" + noteId + " AND " + DataColumns.MIME_TYPE + "=?",
+                        new String[] {
+                            DataConstants.NOTE_CHUNK
+                        }, null, null, TextNote.CHUNK_INDEX);
+                try {
+                    while (chunks.moveToNext()) {
+                        text.append(readContent(db, chunks.getLong(0)));
+                    }
+                } finally {
+                    chunks.close();
+                }
+                db.delete(TABLE.DATA, DataColumns.NOTE_ID + "=" + noteId + " AND "
+                        + DataColumns.MIME_TYPE + "=?", new String[] {
+                    DataConstants.NOTE_CHUNK
+                });
+                ContentValues values = new ContentValues();
+                values.put(DataColumns.CONTENT, "");
+                db.update(TABLE.DATA, values, DataColumns.ID + "=" + dataId, null);
+                insertCheckItems(db, noteId, text.toString());
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String readContent(SQLiteDatabase db, long dataId) {
+        String content = DatabaseUtils.stringForQuery(db, "SELECT " + DataColumns.CONTENT
+                + " FROM " + TABLE.DATA + " WHERE " + DataColumns.ID + "=" + dataId, null);
+        return content == null ? "" : content;
+    }
+
+    /**
+     * Insert a check item for each non-empty line of the text, the lines starting with
+     * {@link CheckItem#TAG_CHECKED} are checked
+     */
+    private void insertCheckItems(SQLiteDatabase db, long noteId, String text) {
+        long position = 0;
+        for (String line : text.split("\n")) {
+            boolean checked = false;
+            if (line.startsWith(CheckItem.TAG_CHECKED)) {
+                checked = true;
+                line = line.substring(CheckItem.TAG_CHECKED.length());
+            } else if (line.startsWith(CheckItem.TAG_UNCHECKED)) {
+                line = line.substring(CheckItem.TAG_UNCHECKED.length());
+            }
+            line = line.trim();
+            if (line.length() == 0) {
+                continue;
+            }
+            position += CheckItem.POSITION_STEP;
+            ContentValues values = new ContentValues();
+            values.put(DataColumns.NOTE_ID, noteId);
+            values.put(DataColumns.MIME_TYPE, DataConstants.CHECK_ITEM);
+            values.put(DataColumns.CONTENT, line);
+            values.put(CheckItem.CHECKED, checked ? 1 : 0);
+            values.put(CheckItem.POSITION, position);
+            db.insert(TABLE.DATA, null, values);
+        }
+    }
 }
@@ -19,12 +19,18 @@ package net.micode.notes.data;
 
 import android.app.SearchManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
@@ -32,7 +38,13 @@ import android.util.Log;
 import net.micode.notes.R;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesChangeNotifier.ChangeSet;
 import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.widget.NoteWidgetObserver;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
 
 
 public class NotesProvider extends ContentProvider {
@@ -42,6 +54,14 @@ public class NotesProvider extends ContentProvider {
 
     private static final String TAG = "NotesProvider";
 
+    private NotesChangeNotifier mNotifier;
+
+    /**
+     * Changes made by the batch running on the current thread, or null when no batch is running.
+     * While a batch runs the changes are collected here and posted once it commits.
+     */
+    private final ThreadLocal<ChangeSet> mBatchChanges = new ThreadLocal<ChangeSet>();
+
     private static final int URI_NOTE            = 1;
     private static final int URI_NOTE_ITEM       = 2;
     private static final int URI_DATA            = 3;
@@ -73,15 +93,74 @@ public class NotesProvider extends ContentProvider {
         + "'" + Intent.ACTION_VIEW + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_ACTION + ","
         + "'" + Notes.TextNote.CONTENT_TYPE + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_DATA;
 
-    private static String NOTES_SNIPPET_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
+    /**
+     * Substring search for the text the tokenizer can not split into words. It scans the
+     * indexed text instead of the data rows, each segment there ends with the start of the
+     * next one, so a match across a segment boundary is found too.
+     */
+    static final String NOTES_CONTENT_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
         + " FROM " + TABLE.NOTE
-        + " WHERE " + NoteColumns.SNIPPET + " LIKE ?"
+        + " WHERE " + NoteColumns.ID + " IN (SELECT " + DataColumns.NOTE_ID + " FROM " + TABLE.DATA
+        + " WHERE " + DataColumns.ID + " IN (SELECT docid FROM " + TABLE.NOTE_FTS
+        + " WHERE " + DataColumns.CONTENT + " LIKE ?))"
         + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
         + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE;
 
+    /**
+     * offsets() yields four integers per matched term, so the number of hits in a row is
+     * (spaces + 1) / 4. Rows with more hits are ranked first, then the recently modified ones.
+     */
+    private static final String NOTES_FTS_HITS = "((LENGTH(offsets(" + TABLE.NOTE_FTS + "))"
+        + " - LENGTH(REPLACE(offsets(" + TABLE.NOTE_FTS + "), ' ', '')) + 1) / 4)";
+
+    private static final String NOTES_FTS_SEARCH_PROJECTION = TABLE.NOTE + "." + NoteColumns.ID + ","
+        + TABLE.NOTE + "." + NoteColumns.ID + " AS " + SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA + ","
+        + "TRIM(REPLACE(" + NoteColumns.SNIPPET + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_1 + ","
+        + "TRIM(REPLACE(" + NoteColumns.SNIPPET + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_2 + ","
+        + R.drawable.search_result + " AS " + SearchManager.SUGGEST_COLUMN_ICON_1 + ","
+        + "'" + Intent.ACTION_VIEW + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_ACTION + ","
+        + "'" + Notes.TextNote.CONTENT_TYPE + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_DATA;
+
+    private static final String NOTES_FTS_SEARCH_HITS = "search_hits";
+
+    private static final String NOTES_FTS_SEARCH_MODIFIED_DATE = "search_modified_date";
+
+    /**
+     * Each segment of a note and each check item is indexed under its own row, so a note may
+     * match in several rows. All the terms of a query have to occur in one segment, with the
+     * overlap into the next one. The matches are grouped by note and the row
+     * with the most hits represents the note; max() in the result makes the other columns
+     * come from that row. LIMIT -1 keeps the inner query from being flattened, offsets() can
+     * not be evaluated in an aggregate query.
+     */
+    static final String NOTES_FTS_SEARCH_QUERY = "SELECT "
+        + NoteColumns.ID + ","
+        + SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA + ","
+        + SearchManager.SUGGEST_COLUMN_TEXT_1 + ","
+        + SearchManager.SUGGEST_COLUMN_TEXT_2 + ","
+        + SearchManager.SUGGEST_COLUMN_ICON_1 + ","
+        + SearchManager.SUGGEST_COLUMN_INTENT_ACTION + ","
+        + SearchManager.SUGGEST_COLUMN_INTENT_DATA + ","
+        + "MAX(" + NOTES_FTS_SEARCH_HITS + ") AS " + NOTES_FTS_SEARCH_HITS
+        + " FROM (SELECT " + NOTES_FTS_SEARCH_PROJECTION + ","
+        + NOTES_FTS_HITS + " AS " + NOTES_FTS_SEARCH_HITS + ","
+        + TABLE.NOTE + "." + NoteColumns.MODIFIED_DATE + " AS " + NOTES_FTS_SEARCH_MODIFIED_DATE
+        + " FROM " + TABLE.NOTE_FTS
+        + " JOIN " + TABLE.DATA + " ON " + TABLE.DATA + "." + DataColumns.ID + "=" + TABLE.NOTE_FTS + ".docid"
+        + " JOIN " + TABLE.NOTE + " ON " + TABLE.NOTE + "." + NoteColumns.ID + "=" + TABLE.DATA + "." + DataColumns.NOTE_ID
+        + " WHERE " + TABLE.NOTE_FTS + " MATCH ?"
+        + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
+        + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE
+        + " LIMIT -1)"
+        + " GROUP BY " + NoteColumns.ID
+        + " ORDER BY " + NOTES_FTS_SEARCH_HITS + " DESC, " + NOTES_FTS_SEARCH_MODIFIED_DATE + " DESC";
+
     @Override
     public boolean onCreate() {
         mHelper = NotesDatabaseHelper.getInstance(getContext());
+        mNotifier = new NotesChangeNotifier(getContext().getContentResolver());
+        // the widgets of the changed notes are refreshed by the ids in the notification
+        NoteWidgetObserver.register(getContext());
         return true;
     }
 
@@ -93,8 +172,12 @@ public class NotesProvider extends ContentProvider {
         String id = null;
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
+                String limit = uri.getQueryParameter(Notes.QUERY_PARAMETER_LIMIT);
+                if (limit != null && !TextUtils.isDigitsOnly(limit)) {
+                    throw new IllegalArgumentException("Invalid limit " + limit);
+                }
                 c = db.query(TABLE.NOTE, projection, selection, selectionArgs, null, null,
-                        sortOrder);
+                        sortOrder, limit);
                 break;
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
@@ -131,9 +214,14 @@ public class NotesProvider extends ContentProvider {
                 }
 
                 try {
-                    searchString = String.format("%%%s%%", searchString);
-                    c = db.rawQuery(NOTES_SNIPPET_SEARCH_QUERY,
-                            new String[] { searchString });
+                    String matchString = buildFtsMatchString(searchString);
+                    if (matchString != null) {
+                        c = db.rawQuery(NOTES_FTS_SEARCH_QUERY, new String[] { matchString });
+                    } else {
+                        searchString = String.format("%%%s%%", searchString);
+                        c = db.rawQuery(NOTES_CONTENT_SEARCH_QUERY,
+                                new String[] { searchString });
+                    }
                 } catch (IllegalStateException ex) {
                     Log.e(TAG, "got exception: " + ex.toString());
                 }
@@ -166,17 +254,14 @@ public class NotesProvider extends ContentProvider {
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
-        // Notify the note uri
-        if (noteId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), null);
-        }
-
-        // Notify the data uri
+        // Notify the note and data uri
+        ChangeSet changes = getChangeSet();
         if (dataId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId), null);
+            changes.dataChanged(noteId);
+        } else if (noteId > 0) {
+            changes.noteChanged(noteId);
         }
+        postChanges(changes);
 
         return ContentUris.withAppendedId(uri, insertedId);
     }
@@ -187,10 +272,11 @@ public class NotesProvider extends ContentProvider {
         String id = null;
         SQLiteDatabase db = mHelper.getWritableDatabase();
         boolean deleteData = false;
+        long dataNoteId = -1; // the note of the deleted data row, -1 if unknown
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
                 selection = "(" + selection + ") AND " + NoteColumns.ID + ">0 ";
-                count = db.delete(TABLE.NOTE, selection, selectionArgs);
+                count = deleteNotesInBulk(db, selection, selectionArgs);
                 break;
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
@@ -211,6 +297,7 @@ public class NotesProvider extends ContentProvider {
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
+                dataNoteId = getDataNoteId(db, id);
                 count = db.delete(TABLE.DATA,
                         DataColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
                 deleteData = true;
@@ -219,10 +306,15 @@ public class NotesProvider extends ContentProvider {
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
         if (count > 0) {
+            ChangeSet changes = getChangeSet();
             if (deleteData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+                changes.dataChanged(dataNoteId);
+            } else if (id != null) {
+                changes.noteChanged(Long.valueOf(id));
+            } else {
+                changes.allNotesChanged();
             }
-            getContext().getContentResolver().notifyChange(uri, null);
+            postChanges(changes);
         }
         return count;
     }
@@ -233,25 +325,33 @@ public class NotesProvider extends ContentProvider {
         String id = null;
         SQLiteDatabase db = mHelper.getWritableDatabase();
         boolean updateData = false;
+        long dataNoteId = -1; // the note of the updated data rows, -1 if unknown
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
-                increaseNoteVersion(-1, selection, selectionArgs);
-                count = db.update(TABLE.NOTE, values, selection, selectionArgs);
+                if (values.containsKey(NoteColumns.PARENT_ID)) {
+                    count = moveNotesInBulk(db, values, selection, selectionArgs);
+                } else {
+                    count = updateNotes(db, values, selection, selectionArgs);
+                }
                 break;
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
-                increaseNoteVersion(Long.valueOf(id), selection, selectionArgs);
-                count = db.update(TABLE.NOTE, values, NoteColumns.ID + "=" + id
+                count = updateNotes(db, values, NoteColumns.ID + "=" + id
                         + parseSelection(selection), selectionArgs);
                 break;
             case URI_DATA:
                 count = db.update(TABLE.DATA, values, selection, selectionArgs);
+                if (values.containsKey(DataColumns.NOTE_ID)) {
+                    dataNoteId = values.getAsLong(DataColumns.NOTE_ID);
+                }
                 updateData = true;
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
                 count = db.update(TABLE.DATA, values, DataColumns.ID + "=" + id
                         + parseSelection(selection), selectionArgs);
+                dataNoteId = values.containsKey(DataColumns.NOTE_ID)
+                        ? values.getAsLong(DataColumns.NOTE_ID) : getDataNoteId(db, id);
                 updateData = true;
                 break;
             default:
@@ -259,41 +359,216 @@ public class NotesProvider extends ContentProvider {
         }
 
         if (count > 0) {
+            ChangeSet changes = getChangeSet();
             if (updateData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+                changes.dataChanged(dataNoteId);
+            } else if (id != null) {
+                changes.noteChanged(Long.valueOf(id));
+            } else {
+                changes.allNotesChanged();
             }
-            getContext().getContentResolver().notifyChange(uri, null);
+            postChanges(changes);
+        }
+        return count;
+    }
+
+    /**
+     * Apply all the operations in one transaction. Either every operation is applied or none,
+     * and the changes of the whole batch are notified together after the transaction commits.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        if (mBatchChanges.get() != null) {
+            return super.applyBatch(operations);
+        }
+
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        ChangeSet changes = new ChangeSet();
+        ContentProviderResult[] results;
+        mBatchChanges.set(changes);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchChanges.remove();
+        }
+        mNotifier.postNow(changes);
+        return results;
+    }
+
+    /**
+     * Insert all the rows in one transaction and notify them together at the end.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (mBatchChanges.get() != null) {
+            return super.bulkInsert(uri, values);
+        }
+
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        ChangeSet changes = new ChangeSet();
+        int count;
+        mBatchChanges.set(changes);
+        db.beginTransaction();
+        try {
+            count = super.bulkInsert(uri, values);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchChanges.remove();
         }
+        mNotifier.postNow(changes);
         return count;
     }
 
+    /**
+     * Get the change set to record into. Inside a batch this is the change set of the batch,
+     * which is posted once the transaction commits; otherwise a new one the caller posts.
+     */
+    private ChangeSet getChangeSet() {
+        ChangeSet changes = mBatchChanges.get();
+        return changes != null ? changes : new ChangeSet();
+    }
+
+    private void postChanges(ChangeSet changes) {
+        if (mBatchChanges.get() != changes) {
+            mNotifier.post(changes);
+        }
+    }
+
+    /**
+     * Move the notes matching the selection with the folder count triggers paused. Instead of
+     * two single row updates of the folders per moved note, each affected folder is recounted
+     * once at the end of the statement.
+     */
+    private int moveNotesInBulk(SQLiteDatabase db, ContentValues values, String selection,
+            String[] selectionArgs) {
+        db.beginTransaction();
+        try {
+            HashSet<Long> folders = mHelper.getAffectedFolders(db, selection, selectionArgs);
+            Long parentId = values.getAsLong(NoteColumns.PARENT_ID);
+            if (parentId != null) {
+                folders.add(parentId);
+            }
+            mHelper.setFolderCountsDeferred(db, true);
+            int count = updateNotes(db, values, selection, selectionArgs);
+            mHelper.refreshFolderCounts(db, folders);
+            mHelper.setFolderCountsDeferred(db, false);
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Delete the notes matching the selection with the folder count triggers paused, the
+     * folders that held them are recounted once at the end of the statement
+     */
+    private int deleteNotesInBulk(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        db.beginTransaction();
+        try {
+            HashSet<Long> folders = mHelper.getAffectedFolders(db, selection, selectionArgs);
+            mHelper.setFolderCountsDeferred(db, true);
+            int count = db.delete(TABLE.NOTE, selection, selectionArgs);
+            mHelper.refreshFolderCounts(db, folders);
+            mHelper.setFolderCountsDeferred(db, false);
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Turn the user's input into a MATCH expression where every word is a quoted prefix term,
+     * so that operators and quotes typed by the user are taken literally. The default tokenizer
+     * can not split CJK text into words, for such input null is returned and the caller falls
+     * back to the substring search on the note content.
+     */
+    private static String buildFtsMatchString(String searchString) {
+        StringBuilder match = new StringBuilder();
+        for (String term : searchString.trim().split("\\s+")) {
+            term = term.replace("\"", "");
+            if (term.length() == 0) {
+                continue;
+            }
+            for (int i = 0; i < term.length(); i++) {
+                if (term.charAt(i) >= 0x2E80) {
+                    return null;
+                }
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"').append(term).append("*\"");
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    /**
+     * The note owning a data row, looked up by primary key so the notification can name it
+     */
+    private long getDataNoteId(SQLiteDatabase db, String dataId) {
+        try {
+            return DatabaseUtils.longForQuery(db, "SELECT " + DataColumns.NOTE_ID + " FROM "
+                    + TABLE.DATA + " WHERE " + DataColumns.ID + "=?", new String[] { dataId });
+        } catch (SQLiteDoneException e) {
+            return -1;
+        }
+    }
+
     private String parseSelection(String selection) {
         return (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : "");
     }
 
-    private void increaseNoteVersion(long id, String selection, String[] selectionArgs) {
+    /**
+     * Update the notes and increase their version in one statement,
+     * UPDATE note SET col=?, ..., version=version+1 WHERE selection. Values and selection
+     * arguments are bound instead of spliced into the sql, so updates of the same columns
+     * share one sql string and hit the prepared statement cache of the connection.
+     */
+    int updateNotes(SQLiteDatabase db, ContentValues values, String selection,
+            String[] selectionArgs) {
+        if (values == null || values.size() == 0) {
+            throw new IllegalArgumentException("Empty values"); // as SQLiteDatabase.update
+        }
         StringBuilder sql = new StringBuilder(120);
         sql.append("UPDATE ");
         sql.append(TABLE.NOTE);
         sql.append(" SET ");
+
+        int argCount = selectionArgs == null ? 0 : selectionArgs.length;
+        Object[] bindArgs = new Object[values.size() + argCount];
+        int i = 0;
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            sql.append(entry.getKey());
+            sql.append("=?,");
+            bindArgs[i++] = entry.getValue();
+        }
         sql.append(NoteColumns.VERSION);
-        sql.append("=" + NoteColumns.VERSION + "+1 ");
+        sql.append("=" + NoteColumns.VERSION + "+1");
 
-        if (id > 0 || !TextUtils.isEmpty(selection)) {
+        if (!TextUtils.isEmpty(selection)) {
             sql.append(" WHERE ");
+            sql.append(selection);
         }
-        if (id > 0) {
-            sql.append(NoteColumns.ID + "=" + String.valueOf(id));
+        for (int j = 0; j < argCount; j++) {
+            bindArgs[i++] = selectionArgs[j];
         }
-        if (!TextUtils.isEmpty(selection)) {
-            String selectString = id > 0 ? parseSelection(selection) : selection;
-            for (String args : selectionArgs) {
-                selectString = selectString.replaceFirst("\\?", args);
+
+        SQLiteStatement statement = db.compileStatement(sql.toString());
+        try {
+            for (int j = 0; j < bindArgs.length; j++) {
+                DatabaseUtils.bindObjectToProgram(statement, j + 1, bindArgs[j]);
             }
-            sql.append(selectString);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
         }
-
-        mHelper.getWritableDatabase().execSQL(sql.toString());
     }
 
     @Override
@@ -43,7 +43,7 @@ public class SqlData {
     // 数据投影的列
     public static final String[] PROJECTION_DATA = new String[] {
             DataColumns.ID, DataColumns.MIME_TYPE, DataColumns.CONTENT, DataColumns.DATA1,
-            DataColumns.DATA3
+            DataColumns.DATA3, DataColumns.DATA2
     };
 
     // 数据 ID 列索引
@@ -61,6 +61,9 @@ public class SqlData {
     // 数据内容 DATA3 列索引
     public static final int DATA_CONTENT_DATA_3_COLUMN = 4;
 
+    // 数据内容 DATA2 列索引，分段的序号和清单条目的位置
+    public static final int DATA_CONTENT_DATA_2_COLUMN = 5;
+
     private ContentResolver mContentResolver; // 内容解析器
 
     private boolean mIsCreate; // 是否是创建操作
@@ -73,6 +76,8 @@ public class SqlData {
 
     private long mDataContentData1; // 数据内容 DATA1
 
+    private long mDataContentData2; // 数据内容 DATA2
+
     private String mDataContentData3; // 数据内容 DATA3
 
     private ContentValues mDiffDataValues; // 差异数据值
@@ -85,6 +90,7 @@ public class SqlData {
         mDataMimeType = DataConstants.NOTE;
         mDataContent = "";
         mDataContentData1 = 0;
+        mDataContentData2 = 0;
         mDataContentData3 = "";
         mDiffDataValues = new ContentValues();
     }
@@ -103,6 +109,7 @@ public class SqlData {
         mDataMimeType = c.getString(DATA_MIME_TYPE_COLUMN);
         mDataContent = c.getString(DATA_CONTENT_COLUMN);
         mDataContentData1 = c.getLong(DATA_CONTENT_DATA_1_COLUMN);
+        mDataContentData2 = c.getLong(DATA_CONTENT_DATA_2_COLUMN);
         mDataContentData3 = c.getString(DATA_CONTENT_DATA_3_COLUMN);
     }
 
@@ -133,6 +140,12 @@ public class SqlData {
         }
         mDataContentData1 = dataContentData1;
 
+        long dataContentData2 = js.has(DataColumns.DATA2) ? js.getLong(DataColumns.DATA2) : 0;
+        if (mIsCreate || mDataContentData2 != dataContentData2) {
+            mDiffDataValues.put(DataColumns.DATA2, dataContentData2);
+        }
+        mDataContentData2 = dataContentData2;
+
         String dataContentData3 = js.has(DataColumns.DATA3) ? js.getString(DataColumns.DATA3) : "";
         if (mIsCreate || !mDataContentData3.equals(dataContentData3)) {
             mDiffDataValues.put(DataColumns.DATA3, dataContentData3);
@@ -151,6 +164,7 @@ public class SqlData {
         js.put(DataColumns.MIME_TYPE, mDataMimeType);
         js.put(DataColumns.CONTENT, mDataContent);
         js.put(DataColumns.DATA1, mDataContentData1);
+        js.put(DataColumns.DATA2, mDataContentData2);
         js.put(DataColumns.DATA3, mDataContentData3);
         return js;
     }
@@ -199,4 +213,9 @@ public class SqlData {
     public long getId() {
         return mDataId;
     }
+
+    // 获取数据的 MIME 类型
+    public String getMimeType() {
+        return mDataMimeType;
+    }
 }
@@ -26,6 +26,7 @@ import android.util.Log;
 
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.gtask.exception.ActionFailureException;
 import net.micode.notes.tool.GTaskStringUtils;
@@ -36,6 +37,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 
 
 public class SqlNote {
@@ -124,6 +126,8 @@ public class SqlNote {
 
     private ArrayList<SqlData> mDataList; // 数据列表
 
+    private ArrayList<Long> mRemovedChunkIds; // 提交时要删除的分段数据行
+
     // 构造函数，初始化默认值
     public SqlNote(Context context) {
         mContext = context;
@@ -144,6 +148,7 @@ public class SqlNote {
         mVersion = 0;
         mDiffNoteValues = new ContentValues();
         mDataList = new ArrayList<SqlData>();
+        mRemovedChunkIds = new ArrayList<Long>();
     }
 
     // 从 Cursor 中加载数据
@@ -153,6 +158,7 @@ public class SqlNote {
         mIsCreate = false;
         loadFromCursor(c);
         mDataList = new ArrayList<SqlData>();
+        mRemovedChunkIds = new ArrayList<Long>();
         if (mType == Notes.TYPE_NOTE)
             loadDataContent();
         mDiffNoteValues = new ContentValues();
@@ -165,6 +171,7 @@ public class SqlNote {
         mIsCreate = false;
         loadFromCursor(id);
         mDataList = new ArrayList<SqlData>();
+        mRemovedChunkIds = new ArrayList<Long>();
         if (mType == Notes.TYPE_NOTE)
             loadDataContent();
         mDiffNoteValues = new ContentValues();
@@ -340,11 +347,13 @@ public class SqlNote {
                 }
                 mOriginParent = originParent;
 
+                HashSet<Long> dataIds = new HashSet<Long>();
                 for (int i = 0; i < dataArray.length(); i++) {
                     JSONObject data = dataArray.getJSONObject(i);
                     SqlData sqlData = null;
                     if (data.has(DataColumns.ID)) {
                         long dataId = data.getLong(DataColumns.ID);
+                        dataIds.add(dataId);
                         for (SqlData temp : mDataList) {
                             if (dataId == temp.getId()) {
                                 sqlData = temp;
@@ -359,6 +368,16 @@ public class SqlNote {
 
                     sqlData.setContent(data);
                 }
+
+                // 分段由笔记的文本决定，远程改写了第一段时不再包含旧的分段，这些分段需要删除
+                for (int i = mDataList.size() - 1; i >= 0; i--) {
+                    SqlData sqlData = mDataList.get(i);
+                    if (DataConstants.NOTE_CHUNK.equals(sqlData.getMimeType())
+                            && sqlData.getId() > 0 && !dataIds.contains(sqlData.getId())) {
+                        mRemovedChunkIds.add(sqlData.getId());
+                        mDataList.remove(i);
+                    }
+                }
             }
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
@@ -477,9 +496,7 @@ public class SqlNote {
             }
 
             if (mType == Notes.TYPE_NOTE) {
-                for (SqlData sqlData : mDataList) {
-                    sqlData.commit(mId, false, -1);
-                }
+                commitDataList(false, -1);
             }
         } else {
             if (mId <= 0 && mId != Notes.ID_ROOT_FOLDER && mId != Notes.ID_CALL_RECORD_FOLDER) {
@@ -495,10 +512,11 @@ public class SqlNote {
                             String.valueOf(mId)
                     });
                 } else {
+                    // 版本号在同一条 UPDATE 中递增，条件比较的是递增前的版本号
                     result = mContentResolver.update(Notes.CONTENT_NOTE_URI, mDiffNoteValues, "("
                                     + NoteColumns.ID + "=?) AND (" + NoteColumns.VERSION + "<=?)",
                             new String[] {
-                                    String.valueOf(mId), String.valueOf(mVersion)
+                                    String.valueOf(mId), String.valueOf(mVersion - 1)
                             });
                 }
                 if (result == 0) {
@@ -507,11 +525,14 @@ public class SqlNote {
             }
 
             if (mType == Notes.TYPE_NOTE) {
-                for (SqlData sqlData : mDataList) {
-                    sqlData.commit(mId, validateVersion, mVersion);
+                for (long dataId : mRemovedChunkIds) {
+                    mContentResolver.delete(Notes.CONTENT_DATA_URI, DataColumns.ID + "=?",
+                            new String[] { String.valueOf(dataId) });
                 }
+                commitDataList(validateVersion, mVersion);
             }
         }
+        mRemovedChunkIds.clear();
 
         // 刷新本地信息
         loadFromCursor(mId);
@@ -521,4 +542,18 @@ public class SqlNote {
         mDiffNoteValues.clear();
         mIsCreate = false;
     }
+
+    // 笔记文本数据行的全文索引包含其余分段，分段先于文本数据行写入
+    private void commitDataList(boolean validateVersion, long version) {
+        for (SqlData sqlData : mDataList) {
+            if (!DataConstants.NOTE.equals(sqlData.getMimeType())) {
+                sqlData.commit(mId, validateVersion, version);
+            }
+        }
+        for (SqlData sqlData : mDataList) {
+            if (DataConstants.NOTE.equals(sqlData.getMimeType())) {
+                sqlData.commit(mId, validateVersion, version);
+            }
+        }
+    }
 }
@@ -21,6 +21,7 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.CheckItem;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
@@ -31,6 +32,11 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
 
 public class Task extends Node {
     private static final String TAG = Task.class.getSimpleName(); // 设置Task类的日志标签
@@ -193,7 +199,9 @@ public class Task extends Node {
             for (int i = 0; i < dataArray.length(); i++) {
                 JSONObject data = dataArray.getJSONObject(i);
                 if (TextUtils.equals(data.getString(DataColumns.MIME_TYPE), DataConstants.NOTE)) {
-                    setName(data.getString(DataColumns.CONTENT));
+                    String content = data.getString(DataColumns.CONTENT);
+                    // 清单的文本为空，条目以带标记的文本作为任务名
+                    setName(TextUtils.isEmpty(content) ? getCheckListText(dataArray) : content);
                     break;
                 }
             }
@@ -232,7 +240,18 @@ public class Task extends Node {
                 for (int i = 0; i < dataArray.length(); i++) {
                     JSONObject data = dataArray.getJSONObject(i);
                     if (TextUtils.equals(data.getString(DataColumns.MIME_TYPE), DataConstants.NOTE)) {
-                        data.put(DataColumns.CONTENT, getName());
+                        // 任务名与清单条目一致时保持文本为空，否则写入文本，打开笔记时重新转换为条目
+                        String content = getName();
+                        if (TextUtils.isEmpty(data.optString(DataColumns.CONTENT))
+                                && TextUtils.equals(content, getCheckListText(dataArray))) {
+                            content = "";
+                        }
+                        if (!TextUtils.equals(content, data.optString(DataColumns.CONTENT))) {
+                            // 任务名只包含第一段，远程改名后任务名就是笔记的全部文本，旧的分段不再保留
+                            dataArray = removeChunks(dataArray);
+                            mMetaInfo.put(GTaskStringUtils.META_HEAD_DATA, dataArray);
+                        }
+                        data.put(DataColumns.CONTENT, content);
                         break;
                     }
                 }
@@ -247,6 +266,43 @@ public class Task extends Node {
         }
     }
 
+    // 返回去掉大笔记分段后的数据数组
+    private static JSONArray removeChunks(JSONArray dataArray) throws JSONException {
+        JSONArray result = new JSONArray();
+        for (int i = 0; i < dataArray.length(); i++) {
+            JSONObject data = dataArray.getJSONObject(i);
+            if (!TextUtils.equals(data.optString(DataColumns.MIME_TYPE), DataConstants.NOTE_CHUNK)) {
+                result.put(data);
+            }
+        }
+        return result;
+    }
+
+    // 按位置拼接清单条目，与 ChecklistItems 序列化的文本一致
+    private static String getCheckListText(JSONArray dataArray) throws JSONException {
+        List<JSONObject> items = new ArrayList<JSONObject>();
+        for (int i = 0; i < dataArray.length(); i++) {
+            JSONObject data = dataArray.getJSONObject(i);
+            if (TextUtils.equals(data.optString(DataColumns.MIME_TYPE), DataConstants.CHECK_ITEM)
+                    && !TextUtils.isEmpty(data.optString(DataColumns.CONTENT))) {
+                items.add(data);
+            }
+        }
+        Collections.sort(items, new Comparator<JSONObject>() {
+            public int compare(JSONObject lhs, JSONObject rhs) {
+                long l = lhs.optLong(CheckItem.POSITION);
+                long r = rhs.optLong(CheckItem.POSITION);
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        for (JSONObject item : items) {
+            sb.append(item.optLong(CheckItem.CHECKED) > 0 ? CheckItem.TAG_CHECKED : CheckItem.TAG_UNCHECKED)
+                    .append(" ").append(item.getString(DataColumns.CONTENT)).append("\n");
+        }
+        return sb.toString();
+    }
+
     public void setMetaInfo(MetaData metaData) { // 设置任务的元信息
         if (metaData != null && metaData.getNotes() != null) {
             try {
@@ -21,6 +21,7 @@ import android.accounts.AccountManager; // Android账户管理器类，用于访
 import android.accounts.AccountManagerFuture; // 用于异步操作的账户管理器Future类
 import android.app.Activity; // Android应用程序中的活动类，用于用户界面交互和操作
 import android.os.Bundle; // Android应用程序中的Bundle类，用于在Intent中传递数据
+import android.os.SystemClock; // Android系统时钟类，用于测量请求耗时
 import android.text.TextUtils; // Android文本工具类，用于处理文本相关操作
 import android.util.Log; // Android日志类，用于在应用程序中输出日志信息
 
@@ -32,20 +33,9 @@ import net.micode.notes.gtask.exception.NetworkFailureException; // 自定义异
 import net.micode.notes.tool.GTaskStringUtils; // 自定义工具类，提供与GTask相关的字符串操作
 import net.micode.notes.ui.NotesPreferenceActivity; // 自定义活动类，表示笔记首选项设置界面
 
-import org.apache.http.HttpEntity; // Apache HTTP实体类，表示HTTP消息的实体部分
-import org.apache.http.HttpResponse; // Apache HTTP响应类，表示HTTP请求的响应
 import org.apache.http.client.ClientProtocolException; // Apache HTTP客户端协议异常类
-import org.apache.http.client.entity.UrlEncodedFormEntity; // Apache HTTP编码表单实体类，用于发送编码的表单数据
-import org.apache.http.client.methods.HttpGet; // Apache HTTP GET请求类，用于发送HTTP GET请求
-import org.apache.http.client.methods.HttpPost; // Apache HTTP POST请求类，用于发送HTTP POST请求
-import org.apache.http.cookie.Cookie; // Apache HTTP Cookie类，表示HTTP请求和响应中的Cookie
-import org.apache.http.impl.client.BasicCookieStore; // Apache HTTP基本Cookie存储类，用于在客户端保存Cookie
-import org.apache.http.impl.client.DefaultHttpClient; // Apache HTTP默认HTTP客户端类，用于发送HTTP请求
+import org.apache.http.client.utils.URLEncodedUtils; // Apache HTTP表单编码工具类，用于构建表单格式的请求体
 import org.apache.http.message.BasicNameValuePair; // Apache HTTP基本名称值对类，用于构建HTTP请求参数
-import org.apache.http.params.BasicHttpParams; // Apache HTTP基本HTTP参数类，用于设置HTTP参数
-import org.apache.http.params.HttpConnectionParams; // Apache HTTP连接参数类，用于设置HTTP连接参数
-import org.apache.http.params.HttpParams; // Apache HTTP参数类，用于设置HTTP参数
-import org.apache.http.params.HttpProtocolParams; // Apache HTTP协议参数类，用于设置HTTP协议参数
 import org.json.JSONArray; // JSON数组类，表示JSON中的数组数据结构
 import org.json.JSONException; // JSON异常类，表示处理JSON数据时可能发生的异常
 import org.json.JSONObject; // JSON对象类，表示JSON中的对象数据结构
@@ -54,11 +44,11 @@ import java.io.BufferedReader; // 用于读取字符流的缓冲字符输入流
 import java.io.IOException; // 输入输出异常类，表示输入输出操作可能发生的异常
 import java.io.InputStream; // 输入流类，用于读取字节流
 import java.io.InputStreamReader; // 用于读取字符流的输入流读取器类
+import java.io.UnsupportedEncodingException; // 不支持的字符编码异常类
+import java.util.ArrayList; // Java集合类，表示动态数组
+import java.util.HashMap; // Java集合类，表示哈希映射
 import java.util.LinkedList; // Java集合类，表示双向链表
-import java.util.List; // Java集合类，表示列表
-import java.util.zip.GZIPInputStream; // 用于解压缩GZIP格式数据的输入流类
-import java.util.zip.Inflater; // 用于解压缩数据的类
-import java.util.zip.InflaterInputStream; // 用于解压缩数据的输入流类
+import java.util.UUID; // Java通用唯一标识符类，用于生成创建操作的临时ID
 
 // GTaskClient类用于处理与Google任务相关的远程操作
 public class GTaskClient {
@@ -70,9 +60,57 @@ public class GTaskClient {
 
     private static final String GTASK_POST_URL = "https://mail.google.com/tasks/r/ig"; // GTask的POST请求URL
 
+    public static final int MAX_CONNECTIONS = 4; // 允许同时执行的请求数，即并发下载任务列表的上限
+
+    // too many actions in one action_list may result in an error, keep the old limit by default
+    public static final int DEFAULT_MAX_BATCH_ACTIONS = 10; // 一个批次默认最多包含的操作数
+
+    public static final int DEFAULT_MAX_BATCH_BYTES = 32 * 1024; // 一个批次默认最多包含的操作字节数
+
+    public static final long DEFAULT_MAX_BATCH_DELAY = 5000; // 批次中最早的操作默认最多等待的毫秒数
+
+    private static final String PLACEHOLDER_PREFIX = "tmp_"; // 创建操作临时ID的前缀
+
+    // 操作中引用其他节点ID的字段，提交前需要把已解析的临时ID替换为新ID
+    private static final String[] REFERENCE_KEYS = new String[] {
+            GTaskStringUtils.GTASK_JSON_ID, GTaskStringUtils.GTASK_JSON_PARENT_ID,
+            GTaskStringUtils.GTASK_JSON_LIST_ID, GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID,
+            GTaskStringUtils.GTASK_JSON_SOURCE_LIST, GTaskStringUtils.GTASK_JSON_DEST_PARENT,
+            GTaskStringUtils.GTASK_JSON_DEST_LIST
+    };
+
+    // 批量操作完成后的回调，创建操作的回调在节点获得新的Gid之后执行
+    public interface ActionListener {
+        void onActionDone(Node node) throws NetworkFailureException;
+    }
+
+    // 等待批量提交的操作
+    private static class PendingAction {
+        private final int mActionId; // 操作ID，用于在响应中找到对应的结果
+
+        private final JSONObject mAction; // 操作的JSON对象
+
+        private final Node mNode; // 发起操作的节点
+
+        private final String mPlaceholderId; // 创建操作的临时ID，不是创建操作时为null；服务器返回的新ID会写回节点
+
+        private final ActionListener mListener; // 操作完成后的回调
+
+        PendingAction(int actionId, JSONObject action, Node node, String placeholderId,
+                ActionListener listener) {
+            mActionId = actionId;
+            mAction = action;
+            mNode = node;
+            mPlaceholderId = placeholderId;
+            mListener = listener;
+        }
+    }
+
     private static GTaskClient mInstance = null; // 静态实例变量，用于保存单例实例
 
-    private DefaultHttpClient mHttpClient; // HTTP客户端变量
+    private GTaskTransport mTransport; // 发送HTTP请求的传输层，多次登录之间共用以复用连接
+
+    private final GTaskRequestMetrics mMetrics; // 请求耗时统计
 
     private String mGetUrl; // GET请求URL变量
 
@@ -80,7 +118,7 @@ public class GTaskClient {
 
     private long mClientVersion; // 客户端版本号变量
 
-    private boolean mLoggedin; // 登录状态变量
+    private volatile boolean mLoggedin; // 登录状态变量，并发下载任务列表的线程也会读取
 
     private long mLastLoginTime; // 上次登录时间变量
 
@@ -88,11 +126,24 @@ public class GTaskClient {
 
     private Account mAccount; // 账户变量
 
-    private JSONArray mUpdateArray; // 更新数组变量
+    private ArrayList<PendingAction> mPendingActions; // 等待批量提交的操作
+
+    private int mPendingBytes; // 等待提交的操作的总字节数
+
+    private long mFirstPendingTime; // 当前批次中第一个操作加入的时间
+
+    private HashMap<String, String> mResolvedIds; // 已提交的创建操作的临时ID到新ID的映射
+
+    private int mMaxBatchActions; // 一个批次最多包含的操作数
+
+    private int mMaxBatchBytes; // 一个批次最多包含的操作字节数
+
+    private long mMaxBatchDelay; // 批次中最早的操作最多等待的毫秒数
 
     // 初始化函数
     private GTaskClient() {
-        mHttpClient = null; // 初始化HTTP客户端为null
+        mTransport = null; // 初始化传输层为null，第一次登录时创建
+        mMetrics = new GTaskRequestMetrics();
         mGetUrl = GTASK_GET_URL; // 初始化GET请求URL
         mPostUrl = GTASK_POST_URL; // 初始化POST请求URL
         mClientVersion = -1; // 初始化客户端版本号为-1
@@ -100,7 +151,13 @@ public class GTaskClient {
         mLastLoginTime = 0; // 初始化上次登录时间为0
         mActionId = 1; // 初始化操作ID为1
         mAccount = null; // 初始化账户为null
-        mUpdateArray = null; // 初始化更新数组为null
+        mPendingActions = new ArrayList<PendingAction>(); // 初始化待提交的操作
+        mPendingBytes = 0;
+        mFirstPendingTime = 0;
+        mResolvedIds = new HashMap<String, String>();
+        mMaxBatchActions = DEFAULT_MAX_BATCH_ACTIONS;
+        mMaxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+        mMaxBatchDelay = DEFAULT_MAX_BATCH_DELAY;
     }
 
     // 用于获取GTaskClient类的单例实例
@@ -227,36 +284,25 @@ public class GTaskClient {
 
     // 用于登录GTask服务
     private boolean loginGtask(String authToken) {
-        int timeoutConnection = 10000; // 设置连接超时时间为10秒
-        int timeoutSocket = 15000; // 设置Socket超时时间为15秒
-        HttpParams httpParameters = new BasicHttpParams(); // 创建HTTP参数对象
-        HttpConnectionParams.setConnectionTimeout(httpParameters, timeoutConnection); // 设置连接超时时间
-        HttpConnectionParams.setSoTimeout(httpParameters, timeoutSocket); // 设置Socket超时时间
-        mHttpClient = new DefaultHttpClient(httpParameters); // 创建默认的HTTP客户端
-        BasicCookieStore localBasicCookieStore = new BasicCookieStore(); // 创建基本的Cookie存储
-        mHttpClient.setCookieStore(localBasicCookieStore); // 设置HTTP客户端的Cookie存储
-        HttpProtocolParams.setUseExpectContinue(mHttpClient.getParams(), false); // 设置不使用Expect: 100-continue机制
+        if (mTransport == null) {
+            mTransport = new PooledHttpTransport(MAX_CONNECTIONS); // 创建带连接池的传输层
+        }
+        mTransport.clearCookies(); // 清除上次登录的Cookie
 
         // login gtask
+        long start = SystemClock.elapsedRealtime();
+        boolean success = false;
         try {
             String loginUrl = mGetUrl + "?auth=" + authToken; // 构建登录URL
-            HttpGet httpGet = new HttpGet(loginUrl); // 创建HTTP GET请求
-            HttpResponse response = mHttpClient.execute(httpGet); // 执行HTTP GET请求
+            InputStream input = mTransport.get(loginUrl); // 执行HTTP GET请求
 
             // get the cookie now
-            List<Cookie> cookies = mHttpClient.getCookieStore().getCookies(); // 获取Cookie
-            boolean hasAuthCookie = false;
-            for (Cookie cookie : cookies) {
-                if (cookie.getName().contains("GTL")) { // 检查是否包含名为"GTL"的Cookie
-                    hasAuthCookie = true;
-                }
-            }
-            if (!hasAuthCookie) {
+            if (!mTransport.hasCookie("GTL")) { // 检查是否包含名为"GTL"的Cookie
                 Log.w(TAG, "it seems that there is no auth cookie"); // 如果没有认证Cookie，输出警告日志
             }
 
             // get the client version
-            String resString = getResponseContent(response.getEntity()); // 获取响应内容
+            String resString = getResponseContent(input); // 获取响应内容
             String jsBegin = "_setup(";
             String jsEnd = ")}</script>";
             int begin = resString.indexOf(jsBegin);
@@ -267,6 +313,7 @@ public class GTaskClient {
             }
             JSONObject js = new JSONObject(jsString); // 创建JSON对象
             mClientVersion = js.getLong("v"); // 获取客户端版本号
+            success = true;
         } catch (JSONException e) {
             Log.e(TAG, e.toString()); // JSON异常处理，输出错误日志
             e.printStackTrace();
@@ -275,44 +322,46 @@ public class GTaskClient {
             // simply catch all exceptions
             Log.e(TAG, "httpget gtask_url failed"); // 捕获所有其他异常，输出错误日志
             return false;
+        } finally {
+            recordLatency("login", start, success);
         }
 
         return true; // 登录成功
     }
 
     // 用于获取动作ID
-    private int getActionId() {
+    private synchronized int getActionId() {
         return mActionId++; // 返回当前的 mActionId 值，然后递增 mActionId
     }
 
-    // 用于创建一个HttpPost对象并设置相应的请求头信息
-    private HttpPost createHttpPost() {
-        HttpPost httpPost = new HttpPost(mPostUrl); // 创建一个HttpPost对象并传入mPostUrl
-        httpPost.setHeader("Content-Type", "application/x-www-form-urlencoded;charset=utf-8"); // 设置请求头Content-Type为application/x-www-form-urlencoded;charset=utf-8
-        httpPost.setHeader("AT", "1"); // 设置请求头AT为1
-        return httpPost; // 返回创建的HttpPost对象
+    // 用于设置发送HTTP请求的传输层，例如指向本地模拟服务器的实现，设置后需要重新登录
+    public synchronized void setTransport(GTaskTransport transport) {
+        if (mTransport != null && mTransport != transport) {
+            mTransport.shutdown(); // 关闭旧传输层的连接
+        }
+        mTransport = transport;
+        mLoggedin = false;
     }
 
-    // 用于从HttpEntity中获取响应内容
-    private String getResponseContent(HttpEntity entity) throws IOException {
-        String contentEncoding = null; // 初始化contentEncoding变量为null
-
-        // 检查实体的内容编码
-        if (entity.getContentEncoding() != null) {
-            contentEncoding = entity.getContentEncoding().getValue(); // 获取内容编码的值
-            Log.d(TAG, "encoding: " + contentEncoding); // 打印内容编码
-        }
+    // 用于获取请求耗时统计
+    public GTaskRequestMetrics getRequestMetrics() {
+        return mMetrics;
+    }
 
-        InputStream input = entity.getContent(); // 获取实体的内容输入流
+    // 用于获取传输层已建立的连接数，即TCP/TLS握手的次数
+    public int getConnectionCount() {
+        return mTransport == null ? 0 : mTransport.getConnectionCount();
+    }
 
-        // 根据内容编码进行处理
-        if (contentEncoding != null && contentEncoding.equalsIgnoreCase("gzip")) {
-            input = new GZIPInputStream(entity.getContent()); // 如果内容编码为gzip，使用GZIPInputStream解压缩输入流
-        } else if (contentEncoding != null && contentEncoding.equalsIgnoreCase("deflate")) {
-            Inflater inflater = new Inflater(true); // 创建一个用于解压缩的Inflater对象
-            input = new InflaterInputStream(entity.getContent(), inflater); // 如果内容编码为deflate，使用InflaterInputStream解压缩输入流
-        }
+    // 用于记录一个请求的耗时
+    private void recordLatency(String request, long start, boolean success) {
+        long latency = SystemClock.elapsedRealtime() - start;
+        mMetrics.record(latency, success);
+        Log.d(TAG, request + " took " + latency + "ms" + (success ? "" : " and failed"));
+    }
 
+    // 用于读取响应内容，读取完毕后关闭输入流
+    private String getResponseContent(InputStream input) throws IOException {
         try {
             InputStreamReader isr = new InputStreamReader(input); // 创建InputStreamReader对象
             BufferedReader br = new BufferedReader(isr); // 创建BufferedReader对象
@@ -327,10 +376,17 @@ public class GTaskClient {
                 sb = sb.append(buff); // 将读取的内容添加到StringBuilder中
             }
         } finally {
-            input.close(); // 关闭输入流
+            input.close(); // 关闭输入流，连接回到连接池中
         }
     }
 
+    // 用于发送Post请求并返回响应内容的输入流
+    private InputStream executePost(JSONObject js) throws IOException {
+        LinkedList<BasicNameValuePair> list = new LinkedList<BasicNameValuePair>(); // 创建一个LinkedList用于存储请求参数
+        list.add(new BasicNameValuePair("r", js.toString())); // 将传入的JSONObject转换为字符串并添加到请求参数中
+        return mTransport.post(mPostUrl, URLEncodedUtils.format(list, "UTF-8")); // 以表单格式发送请求
+    }
+
     // 用于发送Post请求并获取响应内容
     private JSONObject postRequest(JSONObject js) throws NetworkFailureException {
         if (!mLoggedin) {
@@ -338,17 +394,13 @@ public class GTaskClient {
             throw new ActionFailureException("not logged in");
         }
 
-        HttpPost httpPost = createHttpPost(); // 创建一个HttpPost对象
+        long start = SystemClock.elapsedRealtime();
+        boolean success = false;
         try {
-            LinkedList<BasicNameValuePair> list = new LinkedList<BasicNameValuePair>(); // 创建一个LinkedList用于存储请求参数
-            list.add(new BasicNameValuePair("r", js.toString())); // 将传入的JSONObject转换为字符串并添加到请求参数中
-            UrlEncodedFormEntity entity = new UrlEncodedFormEntity(list, "UTF-8"); // 创建一个UrlEncodedFormEntity对象
-            httpPost.setEntity(entity); // 设置HttpPost的实体
-
-            // 执行Post请求
-            HttpResponse response = mHttpClient.execute(httpPost); // 发起HTTP请求
-            String jsString = getResponseContent(response.getEntity()); // 获取响应内容并转换为字符串
-            return new JSONObject(jsString); // 将响应内容转换为JSONObject
+            String jsString = getResponseContent(executePost(js)); // 发送请求，获取响应内容并转换为字符串
+            JSONObject jsResponse = new JSONObject(jsString); // 将响应内容转换为JSONObject
+            success = true;
+            return jsResponse;
 
         } catch (ClientProtocolException e) {
             Log.e(TAG, e.toString());
@@ -366,120 +418,77 @@ public class GTaskClient {
             Log.e(TAG, e.toString());
             e.printStackTrace();
             throw new ActionFailureException("error occurs when posting request");
+        } finally {
+            recordLatency("post", start, success);
         }
     }
 
-    // 用于创建任务并发送到服务器
-    public void createTask(Task task) throws NetworkFailureException {
-        commitUpdate(); // 提交更新
-
-        try {
-            JSONObject jsPost = new JSONObject(); // 创建一个新的JSONObject对象
-            JSONArray actionList = new JSONArray(); // 创建一个新的JSONArray对象用于存储操作列表
-
-            // 构建操作列表
-            actionList.put(task.getCreateAction(getActionId())); // 将创建任务的操作添加到操作列表中
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList); // 将操作列表添加到jsPost中，使用常量作为键名
-
-            // 添加客户端版本信息
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion); // 将客户端版本信息添加到jsPost中，使用常量作为键名
-
-            // 发送Post请求并获取响应
-            JSONObject jsResponse = postRequest(jsPost); // 发送Post请求并获取响应
-            JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(GTaskStringUtils.GTASK_JSON_RESULTS).get(0); // 获取响应中的结果信息
-            task.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID)); // 设置任务的全局唯一标识符（GID）
-
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("create task: handling JSONObject failed");
-        }
+    // 用于设置批量提交的阈值：操作数、字节数以及最早的操作最多等待的毫秒数
+    public synchronized void setBatchLimits(int maxActions, int maxBytes, long maxDelay) {
+        mMaxBatchActions = Math.max(1, maxActions);
+        mMaxBatchBytes = Math.max(1, maxBytes);
+        mMaxBatchDelay = maxDelay;
     }
 
-    // 用于创建任务列表并发送到服务器
-    public void createTaskList(TaskList tasklist) throws NetworkFailureException {
-        commitUpdate(); // 提交更新
-
-        try {
-            JSONObject jsPost = new JSONObject(); // 创建一个新的JSONObject对象
-            JSONArray actionList = new JSONArray(); // 创建一个新的JSONArray对象用于存储操作列表
-
-            // action_list
-            actionList.put(tasklist.getCreateAction(getActionId())); // 将创建任务列表的操作添加到操作列表中
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList); // 将操作列表添加到jsPost中，使用常量作为键名
-
-            // client version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion); // 将客户端版本信息添加到jsPost中，使用常量作为键名
-
-            // post
-            JSONObject jsResponse = postRequest(jsPost); // 发送Post请求并获取响应
-            JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(GTaskStringUtils.GTASK_JSON_RESULTS).get(0); // 获取响应中的结果信息
-            tasklist.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID)); // 设置任务列表的全局唯一标识符（GID）
-
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("create tasklist: handling JSONObject failed");
-        }
+    // 用于创建任务，创建操作加入批次，提交后任务获得新的Gid
+    public void createTask(Task task) throws NetworkFailureException {
+        createTask(task, null);
     }
 
-    // 用于提交更新到服务器
-    public void commitUpdate() throws NetworkFailureException {
-        if (mUpdateArray != null) { // 检查更新数组是否为空
-            try {
-                JSONObject jsPost = new JSONObject(); // 创建一个新的JSONObject对象
-
-                // action_list
-                jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, mUpdateArray); // 将更新数组添加到操作列表中
+    /*
+     * 用于创建任务，提交后任务获得新的Gid，然后执行回调
+     * 提交前任务的Gid为客户端分配的临时ID，同一批次中的后续操作（子任务、后一个兄弟任务、元数据等）
+     * 直接引用这个临时ID，因此创建操作不会使批次提前提交
+     */
+    public synchronized void createTask(Task task, ActionListener listener)
+            throws NetworkFailureException {
+        String placeholderId = newPlaceholderId();
+        task.setGid(placeholderId); // 后续操作通过临时ID引用尚未创建的任务
+        int actionId = getActionId();
+        enqueueCreate(actionId, task.getCreateAction(actionId), task, placeholderId, listener); // 将创建任务的操作加入批次
+    }
 
-                // client_version
-                jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion); // 将客户端版本信息添加到jsPost中，使用常量作为键名
+    // 用于创建任务列表并发送到服务器，任务列表的Gid会被用作本地映射的键，因此立即提交
+    public synchronized void createTaskList(TaskList tasklist) throws NetworkFailureException {
+        String placeholderId = newPlaceholderId();
+        tasklist.setGid(placeholderId);
+        int actionId = getActionId();
+        enqueueCreate(actionId, tasklist.getCreateAction(actionId), tasklist, placeholderId, null); // 将创建任务列表的操作加入批次
+        commitUpdate(); // 立即提交，使任务列表获得Gid
+    }
 
-                postRequest(jsPost); // 发送Post请求
-                mUpdateArray = null; // 将更新数组置空，表示更新已提交
-            } catch (JSONException e) {
-                Log.e(TAG, e.toString());
-                e.printStackTrace();
-                throw new ActionFailureException("commit update: handling JSONObject failed");
-            }
+    // 用于提交所有待提交的操作到服务器，回调中新加入的操作也会一并提交
+    public synchronized void commitUpdate() throws NetworkFailureException {
+        while (!mPendingActions.isEmpty()) {
+            postPendingActions();
         }
+        mResolvedIds.clear(); // 批次已全部提交，不再有操作引用临时ID
     }
 
-    // 用于向更新数组中添加节点的更新操作
-    public void addUpdateNode(Node node) throws NetworkFailureException {
+    // 用于向批次中添加节点的更新操作
+    public synchronized void addUpdateNode(Node node) throws NetworkFailureException {
         if (node != null) { // 检查节点是否为空
-            // too many update items may result in an error
-            // set max to 10 items
-            if (mUpdateArray != null && mUpdateArray.length() > 10) { // 检查更新数组是否已经存在且长度大于10
-                commitUpdate(); // 如果更新数组长度大于10，则提交更新
-            }
-
-            if (mUpdateArray == null) // 如果更新数组为空
-                mUpdateArray = new JSONArray(); // 创建一个新的JSONArray对象
-
-            mUpdateArray.put(node.getUpdateAction(getActionId())); // 将节点的更新操作添加到更新数组中
+            int actionId = getActionId();
+            enqueueAction(actionId, node.getUpdateAction(actionId), node, null, null); // 将节点的更新操作加入批次
         }
     }
 
     // 用于移动任务到不同的任务列表中
-    public void moveTask(Task task, TaskList preParent, TaskList curParent)
+    public synchronized void moveTask(Task task, TaskList preParent, TaskList curParent)
             throws NetworkFailureException {
-        commitUpdate(); // 提交当前的更新
-
         try {
-            JSONObject jsPost = new JSONObject(); // 创建一个新的JSONObject对象
-            JSONArray actionList = new JSONArray(); // 创建一个新的JSONArray对象
             JSONObject action = new JSONObject(); // 创建一个新的JSONObject对象用于表示动作
+            int actionId = getActionId();
 
             // action_list
             action.put(GTaskStringUtils.GTASK_JSON_ACTION_TYPE,
                     GTaskStringUtils.GTASK_JSON_ACTION_TYPE_MOVE); // 设置动作类型为移动
-            action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, getActionId()); // 设置动作ID
+            action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, actionId); // 设置动作ID
             action.put(GTaskStringUtils.GTASK_JSON_ID, task.getGid()); // 设置任务的ID
             if (preParent == curParent && task.getPriorSibling() != null) {
                 // put prioring_sibing_id only if moving within the tasklist and
                 // it is not the first one
-                action.put(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, task.getPriorSibling()); // 在任务列表内移动且不是第一个任务时，设置前一个兄弟节点的ID
+                action.put(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, task.getPriorSibling().getGid()); // 在任务列表内移动且不是第一个任务时，设置前一个兄弟节点的ID
             }
             action.put(GTaskStringUtils.GTASK_JSON_SOURCE_LIST, preParent.getGid()); // 设置源任务列表的ID
             action.put(GTaskStringUtils.GTASK_JSON_DEST_PARENT, curParent.getGid()); // 设置目标父节点的ID
@@ -487,44 +496,199 @@ public class GTaskClient {
                 // put the dest_list only if moving between tasklists
                 action.put(GTaskStringUtils.GTASK_JSON_DEST_LIST, curParent.getGid()); // 当在不同任务列表之间移动时，设置目标任务列表的ID
             }
-            actionList.put(action); // 将动作添加到动作列表中
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList); // 将动作列表添加到jsPost中
+            enqueueAction(actionId, action, task, null, null); // 将动作加入批次
 
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion); // 将客户端版本信息添加到jsPost中
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            throw new ActionFailureException("move task: handling JSONObject failed");
+        }
+    }
 
-            postRequest(jsPost); // 发送Post请求
+    // 用于删除节点，删除操作加入批次
+    public synchronized void deleteNode(Node node) throws NetworkFailureException {
+        node.setDeleted(true); // 标记节点为已删除
+        int actionId = getActionId();
+        enqueueAction(actionId, node.getUpdateAction(actionId), node, null, null); // 将节点的更新操作加入批次
+    }
+
+    // 用于生成创建操作的临时ID，只在客户端内部用来引用尚未创建的节点，提交前会被替换为服务器返回的新ID
+    private static String newPlaceholderId() {
+        return PLACEHOLDER_PREFIX + UUID.randomUUID().toString();
+    }
 
+    // 用于把创建操作加入批次，操作中带上节点的临时ID
+    private void enqueueCreate(int actionId, JSONObject action, Node node, String placeholderId,
+            ActionListener listener) throws NetworkFailureException {
+        try {
+            action.put(GTaskStringUtils.GTASK_JSON_ID, placeholderId);
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
-            throw new ActionFailureException("move task: handling JSONObject failed");
+            throw new ActionFailureException("create node: handling JSONObject failed");
         }
+        enqueueAction(actionId, action, node, placeholderId, listener);
     }
 
-    // 用于删除节点并提交相应的更新
-    public void deleteNode(Node node) throws NetworkFailureException {
-        commitUpdate(); // 提交当前的更新
+    /*
+     * 用于将操作加入当前批次
+     * 加入前如果批次的操作数或字节数将超过阈值，先提交当前批次；
+     * 加入后如果批次中最早的操作已等待超过 mMaxBatchDelay，也立即提交
+     */
+    private void enqueueAction(int actionId, JSONObject action, Node node, String placeholderId,
+            ActionListener listener) throws NetworkFailureException {
+        int bytes = getByteLength(action);
+        if (!mPendingActions.isEmpty() && (mPendingActions.size() >= mMaxBatchActions
+                || mPendingBytes + bytes > mMaxBatchBytes)) {
+            postPendingActions(); // 批次已满，先提交
+        }
 
+        if (mPendingActions.isEmpty()) {
+            mFirstPendingTime = System.currentTimeMillis(); // 记录批次开始的时间
+        }
+        mPendingActions.add(new PendingAction(actionId, action, node, placeholderId, listener));
+        mPendingBytes += bytes;
+
+        if (System.currentTimeMillis() - mFirstPendingTime >= mMaxBatchDelay) {
+            postPendingActions(); // 批次等待过久，立即提交
+        }
+    }
+
+    /*
+     * 操作生成时引用的节点可能还在之前的批次中等待创建，那时只能写入临时ID
+     * 之前的批次提交后，把这些引用替换为服务器返回的新ID
+     */
+    private void resolvePlaceholders(JSONObject action) throws JSONException {
+        if (mResolvedIds.isEmpty()) {
+            return;
+        }
+        for (String key : REFERENCE_KEYS) {
+            String newId = mResolvedIds.get(action.optString(key, null));
+            if (newId != null) {
+                action.put(key, newId);
+            }
+        }
+    }
+
+    /*
+     * 用于将当前批次的所有操作合并为一个action_list请求提交
+     * 根据响应中的action_id把新ID写回发起创建操作的节点。服务器可能已经执行了请求失败的批次，
+     * 也可能执行了没有返回新ID的创建操作，重新提交会在服务器上重复创建，因此这两种情况都丢弃
+     * 批次和之后的所有操作并结束本次同步，本地笔记仍保留修改标志，由下一次同步重新比对。
+     * 所有结果处理完后按照加入的顺序执行回调，一个回调失败不影响其余回调
+     */
+    private void postPendingActions() throws NetworkFailureException {
+        if (mPendingActions.isEmpty()) {
+            return;
+        }
+
+        ArrayList<PendingAction> batch = mPendingActions; // 取出当前批次
+        mPendingActions = new ArrayList<PendingAction>();
+        mPendingBytes = 0;
+
+        ArrayList<PendingAction> done = new ArrayList<PendingAction>(batch.size());
+        ActionFailureException createFailure = null;
         try {
             JSONObject jsPost = new JSONObject(); // 创建一个新的JSONObject对象
-            JSONArray actionList = new JSONArray(); // 创建一个新的JSONArray对象
+            JSONArray actionList = new JSONArray(); // 创建一个新的JSONArray对象用于存储操作列表
+            for (PendingAction pending : batch) {
+                resolvePlaceholders(pending.mAction);
+                actionList.put(pending.mAction);
+            }
 
             // action_list
-            node.setDeleted(true); // 标记节点为已删除
-            actionList.put(node.getUpdateAction(getActionId())); // 将节点的更新操作添加到动作列表中
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList); // 将动作列表添加到jsPost中
+            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList); // 将操作列表添加到jsPost中
 
             // client_version
             jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion); // 将客户端版本信息添加到jsPost中
 
-            postRequest(jsPost); // 发送Post请求
-            mUpdateArray = null; // 将更新数组置为空
+            JSONObject jsResponse;
+            try {
+                jsResponse = postRequest(jsPost); // 发送Post请求并获取响应
+            } catch (NetworkFailureException e) {
+                // the server may have applied the batch, never replay it
+                resetUpdateArray();
+                throw e;
+            }
 
+            // map the results back to the actions
+            HashMap<Integer, JSONObject> results = new HashMap<Integer, JSONObject>();
+            JSONArray jsResults = jsResponse.optJSONArray(GTaskStringUtils.GTASK_JSON_RESULTS);
+            if (jsResults != null) {
+                for (int i = 0; i < jsResults.length(); i++) {
+                    JSONObject jsResult = jsResults.getJSONObject(i);
+                    if (jsResult.has(GTaskStringUtils.GTASK_JSON_ACTION_ID)) {
+                        results.put(jsResult.getInt(GTaskStringUtils.GTASK_JSON_ACTION_ID), jsResult);
+                    } else if (i < batch.size()) {
+                        results.put(batch.get(i).mActionId, jsResult); // 没有action_id时按顺序对应
+                    }
+                }
+            }
+
+            for (PendingAction pending : batch) {
+                if (pending.mPlaceholderId != null) {
+                    JSONObject jsResult = results.get(pending.mActionId);
+                    if (jsResult == null || !jsResult.has(GTaskStringUtils.GTASK_JSON_NEW_ID)) {
+                        // the create may still have been applied, don't retry it
+                        Log.w(TAG, "create action " + pending.mActionId + " has no new id");
+                        pending.mNode.setGid(null);
+                        if (createFailure == null) {
+                            createFailure = new ActionFailureException("create node: no new id");
+                        }
+                        continue;
+                    }
+                    String newId = jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID);
+                    pending.mNode.setGid(newId); // 设置节点的全局唯一标识符（GID）
+                    mResolvedIds.put(pending.mPlaceholderId, newId);
+                }
+                done.add(pending);
+            }
+            if (createFailure != null) {
+                resetUpdateArray(); // 之后的操作可能引用了未创建的节点
+            }
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
-            throw new ActionFailureException("delete node: handling JSONObject failed");
+            throw new ActionFailureException("commit update: handling JSONObject failed");
+        }
+
+        NetworkFailureException networkFailure = null;
+        RuntimeException actionFailure = null;
+        for (PendingAction pending : done) {
+            if (pending.mListener == null) {
+                continue;
+            }
+            try {
+                pending.mListener.onActionDone(pending.mNode); // 执行操作完成后的回调
+            } catch (NetworkFailureException e) {
+                Log.e(TAG, "listener of action " + pending.mActionId + " failed", e);
+                if (networkFailure == null) {
+                    networkFailure = e;
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "listener of action " + pending.mActionId + " failed", e);
+                if (actionFailure == null) {
+                    actionFailure = e;
+                }
+            }
+        }
+        if (networkFailure != null) {
+            throw networkFailure;
+        }
+        if (createFailure != null) {
+            throw createFailure;
+        }
+        if (actionFailure != null) {
+            throw actionFailure;
+        }
+    }
+
+    // 用于估算操作提交时的字节数
+    private static int getByteLength(JSONObject action) {
+        try {
+            return action.toString().getBytes("UTF-8").length;
+        } catch (UnsupportedEncodingException e) {
+            return action.toString().length();
         }
     }
 
@@ -535,12 +699,11 @@ public class GTaskClient {
             throw new ActionFailureException("not logged in"); // 抛出未登录异常
         }
 
+        long start = SystemClock.elapsedRealtime();
+        boolean success = false;
         try {
-            HttpGet httpGet = new HttpGet(mGetUrl); // 创建一个HttpGet对象
-            HttpResponse response = mHttpClient.execute(httpGet); // 执行HTTP GET请求
-
             // get the task list
-            String resString = getResponseContent(response.getEntity()); // 获取响应内容
+            String resString = getResponseContent(mTransport.get(mGetUrl)); // 执行HTTP GET请求并获取响应内容
             String jsBegin = "_setup("; // JSON字符串的起始标志
             String jsEnd = ")}</script>"; // JSON字符串的结束标志
             int begin = resString.indexOf(jsBegin); // 获取起始位置
@@ -550,7 +713,9 @@ public class GTaskClient {
                 jsString = resString.substring(begin + jsBegin.length(), end); // 截取JSON字符串
             }
             JSONObject js = new JSONObject(jsString); // 创建一个新的JSONObject对象
-            return js.getJSONObject("t").getJSONArray(GTaskStringUtils.GTASK_JSON_LISTS); // 返回任务列表的JSONArray
+            JSONArray jsTaskLists = js.getJSONObject("t").getJSONArray(GTaskStringUtils.GTASK_JSON_LISTS); // 获取任务列表的JSONArray
+            success = true;
+            return jsTaskLists;
 
         } catch (ClientProtocolException e) {
             Log.e(TAG, e.toString()); // 记录异常信息
@@ -564,13 +729,37 @@ public class GTaskClient {
             Log.e(TAG, e.toString()); // 记录异常信息
             e.printStackTrace();
             throw new ActionFailureException("get task lists: handling JSONObject failed"); // 抛出处理JSON对象异常
+        } finally {
+            recordLatency("get task lists", start, success);
         }
     }
 
-    // 用于获取特定任务列表的任务并处理相应的响应
+    // 用于获取特定任务列表的任务，可以在多个线程中并发调用
     public JSONArray getTaskList(String listGid) throws NetworkFailureException {
+        final JSONArray jsTasks = new JSONArray();
+        getTaskList(listGid, new GTaskResponseParser.TaskHandler() {
+            public void onTask(JSONObject jsTask) {
+                jsTasks.put(jsTask); // 收集所有任务
+            }
+        });
+        return jsTasks;
+    }
+
+    /*
+     * 用于获取特定任务列表的任务，可以在多个线程中并发调用
+     * 响应边下载边解析，每解析出一个任务就交给 handler 处理，不会把整个响应读入内存
+     */
+    public void getTaskList(String listGid, GTaskResponseParser.TaskHandler handler)
+            throws NetworkFailureException {
         commitUpdate(); // 提交当前的更新
 
+        if (!mLoggedin) {
+            Log.e(TAG, "please login first");
+            throw new ActionFailureException("not logged in");
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        boolean success = false;
         try {
             JSONObject jsPost = new JSONObject(); // 创建一个新的JSONObject对象
             JSONArray actionList = new JSONArray(); // 创建一个新的JSONArray对象
@@ -587,13 +776,26 @@ public class GTaskClient {
             // client_version
             jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion); // 将客户端版本信息添加到jsPost中
 
-            JSONObject jsResponse = postRequest(jsPost); // 发送Post请求并获取响应
-            return jsResponse.getJSONArray(GTaskStringUtils.GTASK_JSON_TASKS); // 返回任务列表的JSONArray
+            InputStream input = executePost(jsPost); // 发送Post请求并获取响应的输入流
+            if (!GTaskResponseParser.readArray(input, GTaskStringUtils.GTASK_JSON_TASKS, handler)) { // 逐个解析任务
+                throw new ActionFailureException("get task list: no tasks in response");
+            }
+            success = true;
 
+        } catch (ClientProtocolException e) {
+            Log.e(TAG, e.toString()); // 记录异常信息
+            e.printStackTrace();
+            throw new NetworkFailureException("get task list: httppost failed"); // 抛出网络请求异常
+        } catch (IOException e) {
+            Log.e(TAG, e.toString()); // 记录异常信息
+            e.printStackTrace();
+            throw new NetworkFailureException("get task list: httppost failed"); // 抛出网络请求异常
         } catch (JSONException e) {
             Log.e(TAG, e.toString()); // 记录异常信息
             e.printStackTrace();
             throw new ActionFailureException("get task list: handling JSONObject failed"); // 抛出处理JSON对象异常
+        } finally {
+            recordLatency("get task list", start, success);
         }
     }
 
@@ -602,8 +804,10 @@ public class GTaskClient {
         return mAccount; // 返回同步账户信息
     }
 
-    // 用于将更新数组重置为null
-    public void resetUpdateArray() {
-        mUpdateArray = null; // 重置更新数组为null
+    // 用于丢弃所有待提交的操作
+    public synchronized void resetUpdateArray() {
+        mPendingActions.clear(); // 清空待提交的操作
+        mPendingBytes = 0;
+        mResolvedIds.clear();
     }
 }
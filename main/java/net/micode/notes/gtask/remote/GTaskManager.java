@@ -42,10 +42,16 @@ import org.json.JSONArray; // 用于处理 JSON 数据的数组
 import org.json.JSONException; // 用于处理 JSON 数据的异常
 import org.json.JSONObject; // 用于处理 JSON 数据的对象
 
+import java.util.ArrayList; // 用于按顺序保存并发下载的结果
 import java.util.HashMap; // 用于存储键值对的数据结构，实现快速查找
 import java.util.HashSet; // 用于存储不重复元素的集合
 import java.util.Iterator; // 用于迭代集合中的元素
 import java.util.Map; // 用于表示键值对的接口
+import java.util.concurrent.Callable; // 可返回结果的并发任务接口
+import java.util.concurrent.ExecutionException; // 并发任务执行失败时抛出的异常
+import java.util.concurrent.ExecutorService; // 线程池接口
+import java.util.concurrent.Executors; // 线程池工厂类
+import java.util.concurrent.Future; // 并发任务的结果
 
 // GTaskManager主要负责管理与Google任务同步相关的操作
 public class GTaskManager {
@@ -57,6 +63,11 @@ public class GTaskManager {
     public static final int STATE_SYNC_IN_PROGRESS = 3; // 表示同步正在进行中的状态常量
     public static final int STATE_SYNC_CANCELLED = 4; // 表示同步已取消的状态常量
 
+    // 同步时查询本地笔记的条件，测试中用来检查查询计划
+    static final String LOCAL_TRASH_SELECTION = "(type<>? AND parent_id=?)"; // 回收站中的笔记和文件夹
+    static final String LOCAL_TYPE_SELECTION = "(type=? AND parent_id<>?)"; // 不在回收站中的某一类型的记录
+    static final String LOCAL_NOTES_SELECTION = "(type<>? AND parent_id<>?)"; // 不在回收站中的所有笔记和文件夹
+
     private static GTaskManager mInstance = null; // 单例模式中的实例对象
 
     private Activity mActivity; // 当前活动的 Activity 对象
@@ -75,6 +86,9 @@ public class GTaskManager {
     private HashMap<String, Long> mGidToNid; // 用于存储 Google 任务 ID 到节点 ID 的映射
     private HashMap<Long, String> mNidToGid; // 用于存储节点 ID 到 Google 任务 ID 的映射
 
+    private HashMap<String, Long> mRemoteSyncIds; // 下载时各远程节点的最后修改时间，用于刷新本地同步ID
+    private HashSet<String> mDirtyListGids; // 本次同步中修改过任务的远程任务列表
+
     // GTaskManager 类的私有构造函数
     private GTaskManager() {
         mSyncing = false; // 初始化同步状态为 false
@@ -86,6 +100,8 @@ public class GTaskManager {
         mLocalDeleteIdMap = new HashSet<Long>(); // 初始化本地删除 ID 的集合
         mGidToNid = new HashMap<String, Long>(); // 初始化 Google 任务 ID 到节点 ID 的映射
         mNidToGid = new HashMap<Long, String>(); // 初始化节点 ID 到 Google 任务 ID 的映射
+        mRemoteSyncIds = new HashMap<String, Long>();
+        mDirtyListGids = new HashSet<String>();
     }
 
     // 用于获取 GTaskManager 单例实例
@@ -122,6 +138,10 @@ public class GTaskManager {
         mLocalDeleteIdMap.clear(); // 清空本地删除ID映射
         mGidToNid.clear(); // 清空GID到NID映射
         mNidToGid.clear(); // 清空NID到GID映射
+        mRemoteSyncIds.clear(); // 清空远程节点的最后修改时间
+        mDirtyListGids.clear(); // 清空修改过的任务列表
+        GTaskClient.getInstance().getRequestMetrics().reset(); // 清空请求耗时统计
+        int connectionCount = GTaskClient.getInstance().getConnectionCount(); // 同步开始前已建立的连接数
 
         try {
             GTaskClient client = GTaskClient.getInstance(); // 获取GTaskClient实例
@@ -158,6 +178,11 @@ public class GTaskManager {
             mLocalDeleteIdMap.clear(); // 清空本地删除ID映射
             mGidToNid.clear(); // 清空GID到NID映射
             mNidToGid.clear(); // 清空NID到GID映射
+            mRemoteSyncIds.clear(); // 清空远程节点的最后修改时间
+            mDirtyListGids.clear(); // 清空修改过的任务列表
+            GTaskClient client = GTaskClient.getInstance();
+            Log.d(TAG, "sync " + client.getRequestMetrics() + ", new connections: "
+                    + (client.getConnectionCount() - connectionCount)); // 记录本次同步的请求耗时和握手次数
             mSyncing = false; // 设置同步标志为false
         }
 
@@ -167,9 +192,9 @@ public class GTaskManager {
     /*
     * 用于初始化任务列表
     * 首先根据条件判断是否取消操作
-    * 然后获取任务列表数组
-    * 并根据特定逻辑初始化元数据列表和任务列表
-    * 在遍历任务列表和元数据数组的过程中，根据不同条件创建任务对象、元数据对象，并将它们添加到相应的列表中
+    * 然后获取任务列表数组，并在有界线程池中并发下载各个列表的任务，在工作线程中解析为任务对象
+    * 下载完成后按照任务列表数组的顺序依次合并：先初始化元数据列表，再初始化任务列表
+    * 因此同步耗时取决于最慢的一个列表，而不是所有列表之和，合并结果与顺序下载时一致
     * 在异常处理部分，捕获可能出现的 JSON 异常并抛出相应的动作失败异常。
     * */
     private void initGTaskList() throws NetworkFailureException {
@@ -179,28 +204,37 @@ public class GTaskManager {
         try {
             JSONArray jsTaskLists = client.getTaskLists(); // 获取任务列表数组
 
-            // init meta list first
-            mMetaList = null; // 初始化元数据列表为null
+            // pick the lists we care about
+            ArrayList<TaskList> lists = new ArrayList<TaskList>(); // 需要下载的任务列表
+            ArrayList<Boolean> isMeta = new ArrayList<Boolean>(); // 对应的列表是否为元数据列表
             for (int i = 0; i < jsTaskLists.length(); i++) { // 遍历任务列表数组
                 JSONObject object = jsTaskLists.getJSONObject(i); // 获取当前任务列表对象
-                String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID); // 获取任务列表ID
                 String name = object.getString(GTaskStringUtils.GTASK_JSON_NAME); // 获取任务列表名称
 
-                if (name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_META)) { // 如果是元数据文件夹
-                    mMetaList = new TaskList(); // 创建新的任务列表对象
-                    mMetaList.setContentByRemoteJSON(object); // 根据远程JSON内容设置任务列表
+                if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)) { // 只处理以特定前缀开头的列表
+                    TaskList tasklist = new TaskList(); // 创建新的任务列表对象
+                    tasklist.setContentByRemoteJSON(object); // 根据远程JSON内容设置任务列表
+                    lists.add(tasklist);
+                    isMeta.add(name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX
+                            + GTaskStringUtils.FOLDER_META)); // 是否为元数据文件夹
+                }
+            }
+
+            // fetch and parse all lists concurrently
+            ArrayList<ArrayList<Task>> children = fetchTaskLists(client, lists, isMeta);
+
+            // init meta list first
+            mMetaList = null; // 初始化元数据列表为null
+            for (int i = 0; i < lists.size(); i++) {
+                if (isMeta.get(i)) { // 如果是元数据文件夹
+                    mMetaList = lists.get(i);
 
                     // load meta data
-                    JSONArray jsMetas = client.getTaskList(gid); // 获取元数据数组
-                    for (int j = 0; j < jsMetas.length(); j++) { // 遍历元数据数组
-                        object = (JSONObject) jsMetas.getJSONObject(j); // 获取当前元数据对象
-                        MetaData metaData = new MetaData(); // 创建新的元数据对象
-                        metaData.setContentByRemoteJSON(object); // 根据远程JSON内容设置元数据
-                        if (metaData.isWorthSaving()) { // 如果值得保存
-                            mMetaList.addChildTask(metaData); // 将元数据添加到元数据列表中
-                            if (metaData.getGid() != null) {
-                                mMetaHashMap.put(metaData.getRelatedGid(), metaData); // 将元数据ID和元数据对象放入哈希映射中
-                            }
+                    for (Task task : children.get(i)) { // 遍历元数据
+                        MetaData metaData = (MetaData) task;
+                        mMetaList.addChildTask(metaData); // 将元数据添加到元数据列表中
+                        if (metaData.getGid() != null) {
+                            mMetaHashMap.put(metaData.getRelatedGid(), metaData); // 将元数据ID和元数据对象放入哈希映射中
                         }
                     }
                 }
@@ -214,31 +248,23 @@ public class GTaskManager {
             }
 
             // init task list
-            for (int i = 0; i < jsTaskLists.length(); i++) { // 遍历任务列表数组
-                JSONObject object = jsTaskLists.getJSONObject(i); // 获取当前任务列表对象
-                String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID); // 获取任务列表ID
-                String name = object.getString(GTaskStringUtils.GTASK_JSON_NAME); // 获取任务列表名称
-
-                if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX) // 如果以特定前缀开头
-                        && !name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_META)) { // 并且不是元数据文件夹
-                    TaskList tasklist = new TaskList(); // 创建新的任务列表对象
-                    tasklist.setContentByRemoteJSON(object); // 根据远程JSON内容设置任务列表
-                    mGTaskListHashMap.put(gid, tasklist); // 将任务列表ID和任务列表对象放入哈希映射中
-                    mGTaskHashMap.put(gid, tasklist); // 将任务列表ID和任务列表对象放入哈希映射中
-
-                    // load tasks
-                    JSONArray jsTasks = client.getTaskList(gid); // 获取任务数组
-                    for (int j = 0; j < jsTasks.length(); j++) { // 遍历任务数组
-                        object = (JSONObject) jsTasks.getJSONObject(j); // 获取当前任务对象
-                        gid = object.getString(GTaskStringUtils.GTASK_JSON_ID); // 获取任务ID
-                        Task task = new Task(); // 创建新的任务对象
-                        task.setContentByRemoteJSON(object); // 根据远程JSON内容设置任务
-                        if (task.isWorthSaving()) { // 如果值得保存
-                            task.setMetaInfo(mMetaHashMap.get(gid)); // 设置任务的元数据信息
-                            tasklist.addChildTask(task); // 将任务添加到任务列表中
-                            mGTaskHashMap.put(gid, task); // 将任务ID和任务对象放入哈希映射中
-                        }
-                    }
+            for (int i = 0; i < lists.size(); i++) {
+                if (isMeta.get(i)) {
+                    continue;
+                }
+                TaskList tasklist = lists.get(i);
+                String gid = tasklist.getGid(); // 获取任务列表ID
+                mGTaskListHashMap.put(gid, tasklist); // 将任务列表ID和任务列表对象放入哈希映射中
+                mGTaskHashMap.put(gid, tasklist); // 将任务列表ID和任务列表对象放入哈希映射中
+                mRemoteSyncIds.put(gid, tasklist.getLastModified()); // 记录任务列表的最后修改时间
+
+                // load tasks
+                for (Task task : children.get(i)) { // 遍历任务
+                    gid = task.getGid(); // 获取任务ID
+                    task.setMetaInfo(mMetaHashMap.get(gid)); // 设置任务的元数据信息
+                    tasklist.addChildTask(task); // 将任务添加到任务列表中
+                    mGTaskHashMap.put(gid, task); // 将任务ID和任务对象放入哈希映射中
+                    mRemoteSyncIds.put(gid, task.getLastModified()); // 记录任务的最后修改时间
                 }
             }
         } catch (JSONException e) {
@@ -248,6 +274,87 @@ public class GTaskManager {
         }
     }
 
+    /*
+     * 在有界线程池中并发下载并解析任务列表，线程数不超过 GTaskClient 的连接池大小
+     * 返回的结果与 lists 的顺序一一对应，合并顺序因此与线程完成的先后无关
+     */
+    private ArrayList<ArrayList<Task>> fetchTaskLists(GTaskClient client, ArrayList<TaskList> lists,
+            ArrayList<Boolean> isMeta) throws NetworkFailureException {
+        ArrayList<ArrayList<Task>> results = new ArrayList<ArrayList<Task>>(lists.size());
+        if (lists.isEmpty()) {
+            return results;
+        }
+
+        client.commitUpdate(); // 并发下载前先提交缓存的更新
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(lists.size(), GTaskClient.MAX_CONNECTIONS));
+        try {
+            ArrayList<Future<ArrayList<Task>>> futures = new ArrayList<Future<ArrayList<Task>>>();
+            for (int i = 0; i < lists.size(); i++) {
+                futures.add(executor.submit(new TaskListLoader(client, lists.get(i), isMeta.get(i))));
+            }
+            for (Future<ArrayList<Task>> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NetworkFailureException("initGTaskList: fetching task lists interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NetworkFailureException) {
+                throw (NetworkFailureException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ActionFailureException("initGTaskList: fetching task lists failed", cause);
+        } finally {
+            executor.shutdownNow(); // 出错时取消尚未完成的下载
+        }
+    }
+
+    // 在工作线程中下载一个任务列表并解析出其中值得保存的任务或元数据
+    private class TaskListLoader implements Callable<ArrayList<Task>> {
+        private final GTaskClient mClient;
+
+        private final TaskList mTaskList;
+
+        private final boolean mMeta;
+
+        TaskListLoader(GTaskClient client, TaskList tasklist, boolean meta) {
+            mClient = client;
+            mTaskList = tasklist;
+            mMeta = meta;
+        }
+
+        public ArrayList<Task> call() throws NetworkFailureException {
+            final ArrayList<Task> tasks = new ArrayList<Task>();
+            if (mCancelled) {
+                return tasks;
+            }
+
+            GTaskResponseParser.TaskHandler handler = new GTaskResponseParser.TaskHandler() {
+                public void onTask(JSONObject jsTask) {
+                    Task task = mMeta ? new MetaData() : new Task(); // 创建新的元数据或任务对象
+                    task.setContentByRemoteJSON(jsTask); // 根据远程JSON内容设置任务
+                    if (task.isWorthSaving()) { // 如果值得保存
+                        tasks.add(task);
+                    }
+                }
+            };
+
+            mClient.getTaskList(mTaskList.getGid(), handler); // 下载整个列表
+            return tasks;
+        }
+    }
+
+    // 记录远程任务被修改的任务列表，同步结束时只需重新下载这些列表
+    private void markListDirty(Node node) {
+        if (node instanceof Task && ((Task) node).getParent() != null) {
+            mDirtyListGids.add(((Task) node).getParent().getGid());
+        }
+    }
+
     /*用于同步内容
     首先清空本地删除ID映射
     然后根据条件判断是否取消操作
@@ -269,7 +376,7 @@ public class GTaskManager {
         // for local deleted note
         try {
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type<>? AND parent_id=?)", new String[] {
+                    LOCAL_TRASH_SELECTION, new String[] {
                             String.valueOf(Notes.TYPE_SYSTEM), String.valueOf(Notes.ID_TRASH_FOLER)
                     }, null); // 查询非系统类型且不在垃圾箱中的笔记
             if (c != null) {
@@ -299,7 +406,7 @@ public class GTaskManager {
         // for note existing in database
         try {
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type=? AND parent_id<>?)", new String[] {
+                    LOCAL_TYPE_SELECTION, new String[] {
                             String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER)
                     }, NoteColumns.TYPE + " DESC"); // 查询数据库中存在的笔记
             if (c != null) {
@@ -433,7 +540,7 @@ public class GTaskManager {
         // for local existing folders
         try {
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type=? AND parent_id<>?)", new String[] {
+                    LOCAL_TYPE_SELECTION, new String[] {
                             String.valueOf(Notes.TYPE_FOLDER), String.valueOf(Notes.ID_TRASH_FOLER)
                     }, NoteColumns.TYPE + " DESC"); // 查询本地存在的文件夹
             if (c != null) {
@@ -509,6 +616,7 @@ public class GTaskManager {
                 if (meta != null) {
                     GTaskClient.getInstance().deleteNode(meta); // 删除远程节点的元数据
                 }
+                markListDirty(node); // 标记任务所在的列表已修改
                 GTaskClient.getInstance().deleteNode(node); // 删除远程节点
                 break;
             case Node.SYNC_ACTION_UPDATE_LOCAL:
@@ -639,12 +747,11 @@ public class GTaskManager {
             return;
         }
 
-        SqlNote sqlNote = new SqlNote(mContext, c); // 根据游标c创建SqlNote对象
-        Node n;
+        final SqlNote sqlNote = new SqlNote(mContext, c); // 根据游标c创建SqlNote对象
 
         // update remotely
         if (sqlNote.isNoteType()) { // 如果SqlNote对象是笔记类型
-            Task task = new Task(); // 创建一个任务对象
+            final Task task = new Task(); // 创建一个任务对象
             task.setContentByLocalJSON(sqlNote.getContent()); // 根据SqlNote对象的内容设置任务对象的内容
 
             String parentGid = mNidToGid.get(sqlNote.getParentId()); // 获取父任务列表的Google ID
@@ -654,11 +761,16 @@ public class GTaskManager {
             }
             mGTaskListHashMap.get(parentGid).addChildTask(task); // 在父任务列表中添加子任务
 
-            GTaskClient.getInstance().createTask(task); // 创建任务
-            n = (Node) task; // 将任务对象转换为节点对象
-
-            // add meta
-            updateRemoteMeta(task.getGid(), sqlNote); // 更新远程元数据
+            // 创建操作加入批次，批次提交、任务获得Gid后先保存Gid，再添加元数据并清除本地修改标志
+            GTaskClient.getInstance().createTask(task, new GTaskClient.ActionListener() {
+                public void onActionDone(Node node) throws NetworkFailureException {
+                    saveRemoteGid(task, sqlNote); // 先保存，之后的请求失败时下一次同步不会重复创建
+                    // add meta
+                    updateRemoteMeta(task.getGid(), sqlNote); // 更新远程元数据
+                    finishAddRemoteNode(sqlNote);
+                }
+            });
+            markListDirty(task); // 标记任务所在的列表已修改
         } else {
             TaskList tasklist = null;
 
@@ -693,20 +805,28 @@ public class GTaskManager {
                 GTaskClient.getInstance().createTaskList(tasklist);
                 mGTaskListHashMap.put(tasklist.getGid(), tasklist);
             }
-            n = (Node) tasklist;
+            saveRemoteGid(tasklist, sqlNote);
+            finishAddRemoteNode(sqlNote);
         }
+    }
 
+    // 远程节点创建完成后，立即把Google任务ID写入本地笔记并建立映射
+    private void saveRemoteGid(Node n, SqlNote sqlNote) {
         // update local note
         sqlNote.setGtaskId(n.getGid()); // 设置SqlNote对象的Google任务ID
         sqlNote.commit(false); // 提交SqlNote对象，不包含本地修改
-        sqlNote.resetLocalModified(); // 重置本地修改状态
-        sqlNote.commit(true); // 提交SqlNote对象，包含本地修改
 
         // gid-id mapping
         mGidToNid.put(n.getGid(), sqlNote.getId()); // 将Google任务ID和本地ID进行映射
         mNidToGid.put(sqlNote.getId(), n.getGid()); // 将本地ID和Google任务ID进行映射
     }
 
+    // 远程节点的所有操作都已加入批次后，清除本地修改标志
+    private void finishAddRemoteNode(SqlNote sqlNote) {
+        sqlNote.resetLocalModified(); // 重置本地修改状态
+        sqlNote.commit(true); // 提交SqlNote对象，包含本地修改
+    }
+
     /*用于更新远程节点
     根据传入的节点和游标c，创建相应的SqlNote对象，并根据SqlNote对象的内容更新节点的内容，并将更新后的节点同步到远程
     同时更新远程元数据，如果需要移动任务，则根据当前和之前的父任务列表进行相应的操作，最后清除本地修改标志*/
@@ -720,6 +840,7 @@ public class GTaskManager {
         // update remotely
         node.setContentByLocalJSON(sqlNote.getContent()); // 根据SqlNote对象的内容设置节点的内容
         GTaskClient.getInstance().addUpdateNode(node); // 更新节点到远程
+        markListDirty(node); // 标记任务所在的列表已修改
 
         // update meta
         updateRemoteMeta(node.getGid(), sqlNote); // 更新远程元数据
@@ -740,6 +861,7 @@ public class GTaskManager {
                 preParentList.removeChildTask(task); // 从之前的父任务列表中移除任务
                 curParentList.addChildTask(task); // 在当前父任务列表中添加任务
                 GTaskClient.getInstance().moveTask(task, preParentList, curParentList); // 移动任务到新的父任务列表
+                mDirtyListGids.add(curParentList.getGid()); // 移入任务的列表同样已修改
             }
         }
 
@@ -769,33 +891,65 @@ public class GTaskManager {
     }
 
     /*用于刷新本地同步ID
-    首先清空相关哈希映射，然后查询本地笔记并遍历结果，根据Google ID获取节点并更新本地笔记的同步ID为节点的最后修改时间
-    如果节点为空，则记录错误日志并抛出异常*/
+    不再重新下载全部任务列表：只获取一次列表概要，并重新下载本次同步中修改过任务的列表
+    其余节点沿用同步开始时记录的最后修改时间，然后把本地笔记的同步ID更新为对应节点的最后修改时间
+    如果找不到节点，则记录错误日志并抛出异常*/
     private void refreshLocalSyncId() throws NetworkFailureException {
         if (mCancelled) { // 如果任务被取消，则返回
             return;
         }
 
-        // get the latest gtask list
-        mGTaskHashMap.clear(); // 清空Google任务哈希映射
-        mGTaskListHashMap.clear(); // 清空Google任务列表哈希映射
-        mMetaHashMap.clear(); // 清空元数据哈希映射
-        initGTaskList(); // 初始化Google任务列表
+        // get the latest modified time of the changed lists
+        GTaskClient client = GTaskClient.getInstance();
+        try {
+            JSONArray jsTaskLists = client.getTaskLists(); // 获取任务列表概要
+            for (int i = 0; i < jsTaskLists.length(); i++) {
+                JSONObject object = jsTaskLists.getJSONObject(i);
+                String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
+                String name = object.getString(GTaskStringUtils.GTASK_JSON_NAME);
+                if (!name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)
+                        || name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_META)) {
+                    continue;
+                }
+
+                long lastModified = object.optLong(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, 0);
+                mRemoteSyncIds.put(gid, lastModified); // 更新任务列表的最后修改时间
+                if (!mDirtyListGids.contains(gid)) {
+                    continue; // 未修改的列表沿用下载时的记录
+                }
+
+                // 重新下载修改过的列表
+                client.getTaskList(gid, new GTaskResponseParser.TaskHandler() {
+                    public void onTask(JSONObject jsTask) throws JSONException {
+                        if (jsTask.has(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED)) {
+                            mRemoteSyncIds.put(jsTask.getString(GTaskStringUtils.GTASK_JSON_ID),
+                                    jsTask.getLong(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED));
+                        }
+                    }
+                });
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString()); // 记录JSON异常
+            e.printStackTrace(); // 打印堆栈跟踪
+            throw new ActionFailureException("refreshLocalSyncId: handing JSONObject failed"); // 抛出动作失败异常
+        }
 
         Cursor c = null; // 声明游标对象
         try {
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type<>? AND parent_id<>?)", new String[] {
+                    LOCAL_NOTES_SELECTION, new String[] {
                             String.valueOf(Notes.TYPE_SYSTEM), String.valueOf(Notes.ID_TRASH_FOLER)
                     }, NoteColumns.TYPE + " DESC"); // 查询本地笔记，按类型降序排列
             if (c != null) {
                 while (c.moveToNext()) { // 遍历查询结果
                     String gid = c.getString(SqlNote.GTASK_ID_COLUMN); // 获取Google ID
-                    Node node = mGTaskHashMap.get(gid); // 根据Google ID获取节点
-                    if (node != null) { // 如果节点不为空
-                        mGTaskHashMap.remove(gid); // 移除Google任务哈希映射中的节点
+                    Long syncId = mRemoteSyncIds.get(gid); // 根据Google ID获取节点的最后修改时间
+                    if (syncId != null) { // 如果节点存在
+                        if (c.getLong(SqlNote.SYNC_ID_COLUMN) == syncId) {
+                            continue; // 同步ID没有变化，无需更新
+                        }
                         ContentValues values = new ContentValues(); // 创建内容值对象
-                        values.put(NoteColumns.SYNC_ID, node.getLastModified()); // 设置同步ID为节点的最后修改时间
+                        values.put(NoteColumns.SYNC_ID, syncId); // 设置同步ID为节点的最后修改时间
                         mContentResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI,
                                 c.getLong(SqlNote.ID_COLUMN)), values, null, null); // 更新本地笔记的同步ID
                     } else {
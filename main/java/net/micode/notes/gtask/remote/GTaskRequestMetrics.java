@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+/*
+ * GTaskRequestMetrics 统计 GTaskClient 发出的每个请求的耗时
+ * 耗时从发送请求开始，到响应内容读取或解析完毕为止
+ */
+public class GTaskRequestMetrics {
+    private int mRequestCount; // 请求总数
+
+    private int mFailureCount; // 失败的请求数
+
+    private long mTotalLatency; // 所有请求的总耗时
+
+    private long mMaxLatency; // 单个请求的最大耗时
+
+    // 记录一个请求的耗时
+    public synchronized void record(long latency, boolean success) {
+        mRequestCount++;
+        if (!success) {
+            mFailureCount++;
+        }
+        mTotalLatency += latency;
+        if (latency > mMaxLatency) {
+            mMaxLatency = latency;
+        }
+    }
+
+    public synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    public synchronized int getFailureCount() {
+        return mFailureCount;
+    }
+
+    public synchronized long getTotalLatency() {
+        return mTotalLatency;
+    }
+
+    public synchronized long getMaxLatency() {
+        return mMaxLatency;
+    }
+
+    public synchronized long getAverageLatency() {
+        return mRequestCount == 0 ? 0 : mTotalLatency / mRequestCount;
+    }
+
+    // 清空统计，每次同步开始时调用
+    public synchronized void reset() {
+        mRequestCount = 0;
+        mFailureCount = 0;
+        mTotalLatency = 0;
+        mMaxLatency = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "requests: " + mRequestCount + ", failures: " + mFailureCount
+                + ", average: " + getAverageLatency() + "ms, max: " + mMaxLatency + "ms";
+    }
+}
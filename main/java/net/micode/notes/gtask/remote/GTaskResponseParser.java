@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/*
+ * GTaskResponseParser 使用拉取式解析器 JsonReader 逐个读取响应中的任务
+ * 整个响应不会被读入字符串或构建成完整的JSON树，每次只在内存中保留一个任务的JSON对象，
+ * 因此解析大任务列表时的内存占用与列表大小无关
+ */
+public class GTaskResponseParser {
+
+    // 解析出一个任务后的回调
+    public interface TaskHandler {
+        void onTask(JSONObject jsTask) throws JSONException;
+    }
+
+    /*
+     * 读取根对象中名为 arrayName 的数组，对其中的每个元素调用 handler，其余字段被跳过
+     * 返回是否找到了该数组
+     */
+    public static boolean readArray(InputStream input, String arrayName, TaskHandler handler)
+            throws IOException, JSONException {
+        JsonReader reader = new JsonReader(new InputStreamReader(input, "UTF-8"));
+        try {
+            return readArray(reader, arrayName, handler);
+        } finally {
+            reader.close();
+        }
+    }
+
+    static boolean readArray(JsonReader reader, String arrayName, TaskHandler handler)
+            throws IOException, JSONException {
+        boolean found = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals(arrayName) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    handler.onTask(readObject(reader)); // 每次只构建一个任务的JSON对象
+                }
+                reader.endArray();
+                found = true;
+            } else {
+                reader.skipValue(); // 跳过不需要的字段
+            }
+        }
+        reader.endObject();
+        return found;
+    }
+
+    // 将当前位置的JSON对象读取为JSONObject
+    static JSONObject readObject(JsonReader reader) throws IOException, JSONException {
+        JSONObject js = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            js.put(name, readValue(reader));
+        }
+        reader.endObject();
+        return js;
+    }
+
+    private static JSONArray readJsonArray(JsonReader reader) throws IOException, JSONException {
+        JSONArray js = new JSONArray();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            js.put(readValue(reader));
+        }
+        reader.endArray();
+        return js;
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                return readJsonArray(reader);
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NUMBER:
+                return parseNumber(reader.nextString());
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            case STRING:
+            default:
+                return reader.nextString();
+        }
+    }
+
+    // 整数保留为Long，避免last_modified等时间戳丢失精度
+    private static Object parseNumber(String number) {
+        try {
+            return Long.valueOf(number);
+        } catch (NumberFormatException e) {
+            return Double.valueOf(number);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * GTaskTransport 是 GTaskClient 发送HTTP请求所用的传输层
+ * 默认实现为带连接池的 PooledHttpTransport，也可以通过 GTaskClient.setTransport 替换为其他实现
+ * get 和 post 返回已按内容编码解压的响应输入流，调用者读完后必须关闭它，以便连接回到连接池中复用
+ * 实现需要支持多个线程并发调用
+ */
+public interface GTaskTransport {
+
+    // 发送GET请求，返回响应内容的输入流
+    InputStream get(String url) throws IOException;
+
+    // 以 application/x-www-form-urlencoded 格式发送POST请求，返回响应内容的输入流
+    InputStream post(String url, String form) throws IOException;
+
+    // 是否存在名称中包含 name 的Cookie
+    boolean hasCookie(String name);
+
+    // 清空所有Cookie，重新登录前调用
+    void clearCookies();
+
+    // 返回已建立的连接数，即TCP/TLS握手的次数
+    int getConnectionCount();
+
+    // 关闭所有连接，之后不能再使用该传输层
+    void shutdown();
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.util.Log;
+
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/*
+ * PooledHttpTransport 是 GTaskTransport 的默认实现
+ * 整个进程共用一个带连接池的 HTTP 客户端，连接在请求之间保持活动，重新登录时也不会重建，
+ * 因此一次同步中的所有请求通常只需要少数几次 TCP/TLS 握手
+ * 请求响应使用 gzip 压缩；请求体默认不压缩，通过 setCompressRequests 开启后较大的请求体用 gzip 压缩发送，
+ * 服务器以任何 4xx 状态拒绝压缩的请求体时，退回到不压缩并在之后都不再压缩
+ */
+public class PooledHttpTransport implements GTaskTransport {
+    private static final String TAG = PooledHttpTransport.class.getSimpleName();
+
+    private static final int TIMEOUT_CONNECTION = 10000; // 连接超时时间为10秒
+
+    private static final int TIMEOUT_SOCKET = 15000; // Socket超时时间为15秒
+
+    private static final long DEFAULT_KEEP_ALIVE = 30 * 1000; // 服务器没有指定时，空闲连接保持30秒
+
+    private static final int MIN_COMPRESS_BYTES = 1024; // 小于该字节数的请求体不压缩
+
+    private final DefaultHttpClient mHttpClient;
+
+    private final ClientConnectionManager mConnManager;
+
+    private final AtomicInteger mConnectionCount = new AtomicInteger(); // 已建立的连接数
+
+    private volatile boolean mCompressRequests = false; // 是否压缩请求体，服务器不一定支持，默认关闭
+
+    public PooledHttpTransport(int maxConnections) {
+        HttpParams httpParameters = new BasicHttpParams(); // 创建HTTP参数对象
+        HttpConnectionParams.setConnectionTimeout(httpParameters, TIMEOUT_CONNECTION); // 设置连接超时时间
+        HttpConnectionParams.setSoTimeout(httpParameters, TIMEOUT_SOCKET); // 设置Socket超时时间
+        HttpConnectionParams.setStaleCheckingEnabled(httpParameters, true); // 复用连接前检查连接是否已被服务器关闭
+        HttpProtocolParams.setUseExpectContinue(httpParameters, false); // 设置不使用Expect: 100-continue机制
+        ConnManagerParams.setMaxTotalConnections(httpParameters, maxConnections); // 设置连接池的最大连接数
+        ConnManagerParams.setMaxConnectionsPerRoute(httpParameters,
+                new ConnPerRouteBean(maxConnections)); // 所有请求都发往同一主机，每个路由的连接数与总数一致
+        SchemeRegistry schemeRegistry = new SchemeRegistry(); // 注册http和https协议
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        mConnManager = new ThreadSafeClientConnManager(httpParameters, schemeRegistry); // 线程安全的连接管理器，支持并发请求
+        mHttpClient = new DefaultHttpClient(mConnManager, httpParameters); // 创建默认的HTTP客户端
+        mHttpClient.setCookieStore(new BasicCookieStore()); // 设置HTTP客户端的Cookie存储
+
+        // 服务器在响应中指定了Keep-Alive超时时按其指定，否则使用默认值
+        mHttpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+            private final ConnectionKeepAliveStrategy mDefault = new DefaultConnectionKeepAliveStrategy();
+
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = mDefault.getKeepAliveDuration(response, context);
+                return duration > 0 ? duration : DEFAULT_KEEP_ALIVE;
+            }
+        });
+
+        // 连接上的第一个请求说明这是新建立的连接
+        mHttpClient.addResponseInterceptor(new HttpResponseInterceptor() {
+            public void process(HttpResponse response, HttpContext context) {
+                HttpConnection conn = (HttpConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+                if (conn != null && conn.getMetrics().getRequestCount() == 1) {
+                    mConnectionCount.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    public InputStream get(String url) throws IOException {
+        HttpGet httpGet = new HttpGet(url);
+        httpGet.setHeader("Accept-Encoding", "gzip"); // 请求服务器压缩响应
+        return execute(httpGet);
+    }
+
+    // 开启或关闭请求体的压缩
+    public void setCompressRequests(boolean compress) {
+        mCompressRequests = compress;
+    }
+
+    public InputStream post(String url, String form) throws IOException {
+        byte[] body = form.getBytes("UTF-8");
+        if (mCompressRequests && body.length >= MIN_COMPRESS_BYTES) {
+            mConnManager.closeIdleConnections(DEFAULT_KEEP_ALIVE, TimeUnit.MILLISECONDS); // 关闭空闲太久的连接
+            HttpResponse response = mHttpClient.execute(createHttpPost(url, gzip(body), true));
+            int status = response.getStatusLine().getStatusCode();
+            if (status < HttpStatus.SC_BAD_REQUEST || status >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+                // 其他状态都交给调用者处理，操作列表不是幂等的，不能重新发送
+                return getContentStream(response.getEntity());
+            }
+
+            // 4xx 说明服务器没有接受压缩的请求体，请求没有被处理，之后都以不压缩的方式发送
+            Log.w(TAG, "compressed request rejected with status " + status);
+            mCompressRequests = false;
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                entity.consumeContent(); // 读完响应，使连接可以复用
+            }
+        }
+        return execute(createHttpPost(url, body, false));
+    }
+
+    public boolean hasCookie(String name) {
+        for (Cookie cookie : mHttpClient.getCookieStore().getCookies()) {
+            if (cookie.getName().contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void clearCookies() {
+        mHttpClient.getCookieStore().clear();
+    }
+
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    public void shutdown() {
+        mConnManager.shutdown();
+    }
+
+    private InputStream execute(HttpUriRequest request) throws IOException {
+        mConnManager.closeIdleConnections(DEFAULT_KEEP_ALIVE, TimeUnit.MILLISECONDS); // 关闭空闲太久的连接
+        HttpResponse response = mHttpClient.execute(request);
+        return getContentStream(response.getEntity());
+    }
+
+    // 用于创建一个HttpPost对象并设置相应的请求头信息
+    private HttpPost createHttpPost(String url, byte[] body, boolean compressed) {
+        HttpPost httpPost = new HttpPost(url);
+        httpPost.setHeader("Content-Type", "application/x-www-form-urlencoded;charset=utf-8");
+        httpPost.setHeader("AT", "1");
+        httpPost.setHeader("Accept-Encoding", "gzip"); // 请求服务器压缩响应
+        if (compressed) {
+            httpPost.setHeader("Content-Encoding", "gzip");
+        }
+        httpPost.setEntity(new ByteArrayEntity(body));
+        return httpPost;
+    }
+
+    // 用于从HttpEntity中获取按内容编码解压后的输入流
+    private static InputStream getContentStream(HttpEntity entity) throws IOException {
+        if (entity == null) {
+            throw new IOException("empty response");
+        }
+
+        String contentEncoding = null;
+        if (entity.getContentEncoding() != null) {
+            contentEncoding = entity.getContentEncoding().getValue(); // 获取内容编码的值
+            Log.d(TAG, "encoding: " + contentEncoding);
+        }
+
+        InputStream input = entity.getContent();
+        if (contentEncoding != null && contentEncoding.equalsIgnoreCase("gzip")) {
+            input = new GZIPInputStream(input); // 如果内容编码为gzip，使用GZIPInputStream解压缩输入流
+        } else if (contentEncoding != null && contentEncoding.equalsIgnoreCase("deflate")) {
+            input = new InflaterInputStream(input, new Inflater(true)); // 如果内容编码为deflate，使用InflaterInputStream解压缩输入流
+        }
+        return input;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4);
+        GZIPOutputStream output = new GZIPOutputStream(bytes);
+        try {
+            output.write(data);
+        } finally {
+            output.close();
+        }
+        return bytes.toByteArray();
+    }
+}
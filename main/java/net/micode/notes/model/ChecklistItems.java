@@ -0,0 +1,422 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.model;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.text.TextUtils;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.CheckItem;
+import net.micode.notes.data.Notes.DataColumns;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+/*
+ * ChecklistItems 是清单模式下的条目模型，每个非空条目对应数据表中的一行 CheckItem，
+ * 记录文本、完成状态和位置。位置之间留有间隔，插入条目时不需要移动其他条目
+ * 保存时只写入修改过的条目：勾选一个条目只更新这一行的 CHECKED，不会重写整个笔记内容
+ * 条目也可以序列化为 "√ 内容\n" 或 "□ 内容\n" 形式的文本，用于分享、同步和切换到文本模式。
+ * 序列化是增量的：每个条目记录自己在结果中的起始位置，修改某个条目后只重新拼接它之后的部分
+ * 编辑器在主线程中修改条目，保存在后台线程中进行，所有方法都是同步的
+ */
+public class ChecklistItems {
+    private static final String TAG = "ChecklistItems";
+
+    private static final String[] ITEM_PROJECTION = new String[] {
+        DataColumns.ID,
+        DataColumns.CONTENT,
+        CheckItem.CHECKED,
+        CheckItem.POSITION
+    };
+
+    private static final int ITEM_ID_COLUMN = 0;
+
+    private static final int ITEM_CONTENT_COLUMN = 1;
+
+    private static final int ITEM_CHECKED_COLUMN = 2;
+
+    private static final int ITEM_POSITION_COLUMN = 3;
+
+    // 条目中需要写入数据库的修改
+    private static final int CHANGE_TEXT = 1;
+
+    private static final int CHANGE_CHECKED = 1 << 1;
+
+    private static final int CHANGE_POSITION = 1 << 2;
+
+    private static final int CHANGE_ALL = CHANGE_TEXT | CHANGE_CHECKED | CHANGE_POSITION;
+
+    private static class Item {
+        long dataId; // 数据行的ID，尚未写入时为0
+        long position;
+        String text;
+        boolean checked;
+        int offset; // 在序列化结果中的起始位置
+        int changes; // 尚未写入的修改
+        boolean inserting; // 正在后台插入
+        boolean removed; // 插入期间被删除，插入完成后需要删除对应的行
+
+        Item(String text, boolean checked) {
+            this.text = text;
+            this.checked = checked;
+        }
+    }
+
+    private final ArrayList<Item> mItems = new ArrayList<Item>();
+
+    private final LinkedHashSet<Item> mChangedItems = new LinkedHashSet<Item>();
+
+    private final ArrayList<Long> mRemovedIds = new ArrayList<Long>();
+
+    private final StringBuilder mSerialized = new StringBuilder();
+
+    private String mSerializedText;
+
+    private int mDirtyFrom; // 从这个条目开始需要重新序列化
+
+    private int mCheckedCount;
+
+    // 读取笔记的条目，末尾追加一个空条目用于输入
+    public static ChecklistItems load(ContentResolver resolver, long noteId) {
+        ChecklistItems items = new ChecklistItems();
+        Cursor cursor = resolver.query(Notes.CONTENT_DATA_URI, ITEM_PROJECTION,
+                DataColumns.NOTE_ID + "=? AND " + DataColumns.MIME_TYPE + "=?", new String[] {
+                    String.valueOf(noteId), CheckItem.CONTENT_ITEM_TYPE
+                }, CheckItem.POSITION + " ASC");
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                Item item = new Item(cursor.getString(ITEM_CONTENT_COLUMN),
+                        cursor.getInt(ITEM_CHECKED_COLUMN) > 0);
+                item.dataId = cursor.getLong(ITEM_ID_COLUMN);
+                item.position = cursor.getLong(ITEM_POSITION_COLUMN);
+                items.mItems.add(item);
+                if (item.checked) {
+                    items.mCheckedCount++;
+                }
+            }
+            cursor.close();
+        }
+        items.add(items.size(), "");
+        return items;
+    }
+
+    // 解析带有清单标记的文本，每一个非空行是一个条目
+    public static ChecklistItems parse(String text) {
+        ChecklistItems items = new ChecklistItems();
+        items.replaceAll(text);
+        return items;
+    }
+
+    /*
+     * 用文本中的条目替换所有条目，已写入的条目在保存时被删除
+     * 以 TAG_CHECKED 开头的行是已完成的条目，末尾追加一个空条目用于输入
+     */
+    public synchronized void replaceAll(String text) {
+        removeAll();
+        if (text != null) {
+            for (String line : text.split("\n")) {
+                if (TextUtils.isEmpty(line)) {
+                    continue;
+                }
+                boolean checked = false;
+                if (line.startsWith(CheckItem.TAG_CHECKED)) {
+                    checked = true;
+                    line = line.substring(CheckItem.TAG_CHECKED.length()).trim();
+                } else if (line.startsWith(CheckItem.TAG_UNCHECKED)) {
+                    line = line.substring(CheckItem.TAG_UNCHECKED.length()).trim();
+                }
+                add(mItems.size(), line, checked);
+            }
+        }
+        add(mItems.size(), "");
+    }
+
+    // 删除所有条目，已写入的条目在保存时被删除
+    public synchronized void removeAll() {
+        while (!mItems.isEmpty()) {
+            remove(mItems.size() - 1);
+        }
+    }
+
+    public synchronized int size() {
+        return mItems.size();
+    }
+
+    public synchronized String getText(int index) {
+        return mItems.get(index).text;
+    }
+
+    public synchronized boolean isChecked(int index) {
+        return mItems.get(index).checked;
+    }
+
+    // 是否有已完成的条目
+    public synchronized boolean hasChecked() {
+        return mCheckedCount > 0;
+    }
+
+    // 是否没有任何非空条目
+    public synchronized boolean isEmpty() {
+        for (Item item : mItems) {
+            if (!TextUtils.isEmpty(item.text)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 第一个非空条目的文本，没有时返回空字符串
+    public synchronized String getFirstText() {
+        for (Item item : mItems) {
+            if (!TextUtils.isEmpty(item.text)) {
+                return item.text;
+            }
+        }
+        return "";
+    }
+
+    public synchronized void setText(int index, String text) {
+        Item item = mItems.get(index);
+        if (!TextUtils.equals(item.text, text)) {
+            item.text = text;
+            markChanged(item, CHANGE_TEXT);
+            markDirty(index);
+        }
+    }
+
+    public synchronized void setChecked(int index, boolean checked) {
+        Item item = mItems.get(index);
+        if (item.checked != checked) {
+            item.checked = checked;
+            mCheckedCount += checked ? 1 : -1;
+            markChanged(item, CHANGE_CHECKED);
+            markDirty(index);
+        }
+    }
+
+    // 在 index 处插入一个未完成的条目
+    public synchronized void add(int index, String text) {
+        add(index, text, false);
+    }
+
+    private void add(int index, String text, boolean checked) {
+        long prev = index > 0 ? mItems.get(index - 1).position : 0;
+        long next = index < mItems.size() ? mItems.get(index).position
+                : prev + 2 * CheckItem.POSITION_STEP;
+        if (next - prev < 2) {
+            // 相邻条目之间已经没有间隔，重新编排所有条目的位置
+            for (int i = 0; i < mItems.size(); i++) {
+                Item item = mItems.get(i);
+                item.position = (i < index ? i + 1 : i + 2) * CheckItem.POSITION_STEP;
+                if (item.dataId > 0 || !TextUtils.isEmpty(item.text)) {
+                    markChanged(item, CHANGE_POSITION);
+                }
+            }
+            prev = index * CheckItem.POSITION_STEP;
+            next = prev + 2 * CheckItem.POSITION_STEP;
+        }
+
+        Item item = new Item(text, checked);
+        item.position = prev + (next - prev) / 2;
+        mItems.add(index, item);
+        if (checked) {
+            mCheckedCount++;
+        }
+        if (!TextUtils.isEmpty(text)) {
+            markChanged(item, CHANGE_ALL); // 空条目在输入内容后才需要写入
+        }
+        markDirty(index);
+    }
+
+    public synchronized void remove(int index) {
+        Item item = mItems.remove(index);
+        if (item.checked) {
+            mCheckedCount--;
+        }
+        mChangedItems.remove(item);
+        if (item.dataId > 0) {
+            mRemovedIds.add(item.dataId);
+        } else if (item.inserting) {
+            item.removed = true;
+        }
+        markDirty(index);
+    }
+
+    private void markChanged(Item item, int changes) {
+        item.changes |= changes;
+        mChangedItems.add(item);
+    }
+
+    private void markDirty(int index) {
+        mDirtyFrom = Math.min(mDirtyFrom, index);
+        mSerializedText = null;
+    }
+
+    // 是否有尚未写入数据库的修改
+    public synchronized boolean hasChanges() {
+        return !mChangedItems.isEmpty() || !mRemovedIds.isEmpty();
+    }
+
+    /*
+     * 把修改过的条目写入数据库：新条目插入，修改过的条目只更新改变的列，删除的条目和被清空的条目删除
+     * 写入期间编辑器可以继续修改条目，这些修改在下一次保存时写入；写入失败时修改被保留
+     */
+    public boolean commit(ContentResolver resolver, long noteId) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        ArrayList<Item> changed;
+        ArrayList<Long> removed;
+        ArrayList<Item> inserted = new ArrayList<Item>();
+        ArrayList<Item> cleared = new ArrayList<Item>();
+        synchronized (this) {
+            if (!hasChanges()) {
+                return true;
+            }
+            changed = new ArrayList<Item>(mChangedItems);
+            removed = new ArrayList<Long>(mRemovedIds);
+            mChangedItems.clear();
+            mRemovedIds.clear();
+
+            for (Item item : changed) {
+                if (TextUtils.isEmpty(item.text)) {
+                    // 空条目不写入数据库
+                    if (item.dataId > 0) {
+                        operations.add(ContentProviderOperation.newDelete(
+                                getItemUri(item.dataId)).build());
+                        cleared.add(item);
+                    }
+                } else if (item.dataId == 0) {
+                    operations.add(ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                            .withValue(DataColumns.NOTE_ID, noteId)
+                            .withValue(DataColumns.MIME_TYPE, CheckItem.CONTENT_ITEM_TYPE)
+                            .withValue(DataColumns.CONTENT, item.text)
+                            .withValue(CheckItem.CHECKED, item.checked ? 1 : 0)
+                            .withValue(CheckItem.POSITION, item.position)
+                            .build());
+                    item.inserting = true;
+                    inserted.add(item);
+                } else {
+                    ContentProviderOperation.Builder builder = ContentProviderOperation
+                            .newUpdate(getItemUri(item.dataId));
+                    if ((item.changes & CHANGE_TEXT) != 0) {
+                        builder.withValue(DataColumns.CONTENT, item.text);
+                    }
+                    if ((item.changes & CHANGE_CHECKED) != 0) {
+                        builder.withValue(CheckItem.CHECKED, item.checked ? 1 : 0);
+                    }
+                    if ((item.changes & CHANGE_POSITION) != 0) {
+                        builder.withValue(CheckItem.POSITION, item.position);
+                    }
+                    operations.add(builder.build());
+                }
+                item.changes = 0;
+            }
+            for (long dataId : removed) {
+                operations.add(ContentProviderOperation.newDelete(getItemUri(dataId)).build());
+            }
+        }
+
+        ContentProviderResult[] results = null;
+        if (operations.size() > 0) {
+            try {
+                results = resolver.applyBatch(Notes.AUTHORITY, operations);
+            } catch (RemoteException e) {
+                Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            } catch (OperationApplicationException e) {
+                Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            }
+        }
+
+        synchronized (this) {
+            if (operations.size() > 0 && results == null) {
+                // 写入失败，保留所有修改等待下一次保存
+                for (Item item : changed) {
+                    item.inserting = false;
+                    if (item.removed) {
+                        item.removed = false;
+                    } else if (mItems.contains(item)) {
+                        markChanged(item, CHANGE_ALL);
+                    }
+                }
+                mRemovedIds.addAll(removed);
+                return false;
+            }
+            int index = 0;
+            for (int i = 0; i < operations.size(); i++) {
+                if (!operations.get(i).isInsert()) {
+                    continue;
+                }
+                Item item = inserted.get(index++);
+                item.inserting = false;
+                long dataId = ContentUris.parseId(results[i].uri);
+                if (item.removed) {
+                    mRemovedIds.add(dataId);
+                } else {
+                    item.dataId = dataId;
+                }
+            }
+            for (Item item : cleared) {
+                item.dataId = 0;
+            }
+        }
+        return true;
+    }
+
+    private static Uri getItemUri(long dataId) {
+        return ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId);
+    }
+
+    // 序列化为带有清单标记的文本，只重新拼接上次序列化之后修改过的部分
+    public synchronized String serialize() {
+        if (mSerializedText != null) {
+            return mSerializedText;
+        }
+        int size = mItems.size();
+        int from = Math.min(mDirtyFrom, size);
+        // 修改过的条目可能是新插入的，从它前一个未修改的条目的结束位置开始
+        mSerialized.setLength(from > 0 ? end(mItems.get(from - 1)) : 0);
+        for (int i = from; i < size; i++) {
+            Item item = mItems.get(i);
+            item.offset = mSerialized.length();
+            if (!TextUtils.isEmpty(item.text)) {
+                mSerialized.append(item.checked ? CheckItem.TAG_CHECKED : CheckItem.TAG_UNCHECKED)
+                        .append(" ").append(item.text).append("\n");
+            }
+        }
+        mDirtyFrom = size;
+        mSerializedText = mSerialized.toString();
+        return mSerializedText;
+    }
+
+    // 条目在序列化结果中的结束位置
+    private static int end(Item item) {
+        if (TextUtils.isEmpty(item.text)) {
+            return item.offset;
+        }
+        String tag = item.checked ? CheckItem.TAG_CHECKED : CheckItem.TAG_UNCHECKED;
+        return item.offset + tag.length() + item.text.length() + 2;
+    }
+}
@@ -70,13 +70,13 @@ public class Note {
         mNoteData = new NoteData();
     }
 
-    public void setNoteValue(String key, String value) {
+    public synchronized void setNoteValue(String key, String value) {
         mNoteDiffValues.put(key, value);
         mNoteDiffValues.put(NoteColumns.LOCAL_MODIFIED, 1);
         mNoteDiffValues.put(NoteColumns.MODIFIED_DATE, System.currentTimeMillis());
     }
 
-    public void setTextData(String key, String value) {
+    public synchronized void setTextData(String key, String value) {
         mNoteData.setTextData(key, value);
     }
 
@@ -92,53 +92,126 @@ public class Note {
         mNoteData.setCallDataId(id);
     }
 
-    public void setCallData(String key, String value) {
+    public synchronized void setCallData(String key, String value) {
         mNoteData.setCallData(key, value);
     }
 
-    public boolean isLocalModified() {
+    public synchronized boolean isLocalModified() {
         return mNoteDiffValues.size() > 0 || mNoteData.isLocalModified();
     }
 
-    public boolean syncNote(Context context, long noteId) {
+    /**
+     * The note may be saved in a background thread while the editor keeps changing it. The
+     * changes are taken out under the lock of the setters and written without holding it, so
+     * the setters and {@link #isLocalModified()} never wait for the provider.
+     * <p>
+     * The note row, the segments of a large note and the text data are written in one batch,
+     * which the provider applies in one transaction. The text data is only written when the
+     * first segment changed.
+     *
+     * @param chunks the segments prepared by {@link NoteTextChunks#update}, or null
+     */
+    public boolean syncNote(Context context, long noteId, NoteTextChunks chunks) {
         if (noteId <= 0) {
             throw new IllegalArgumentException("Wrong note id:" + noteId);
         }
 
-        if (!isLocalModified()) {
-            return true;
+        ContentValues noteValues;
+        ContentValues textValues;
+        ContentValues callValues;
+        synchronized (this) {
+            if (!isLocalModified()) {
+                return true;
+            }
+            noteValues = new ContentValues(mNoteDiffValues);
+            mNoteDiffValues.clear();
+            textValues = new ContentValues(mNoteData.mTextDataValues);
+            callValues = new ContentValues(mNoteData.mCallDataValues);
+            // lzier
+            mNoteData.clear();
         }
 
+        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
         /**
          * In theory, once data changed, the note should be updated on {@link NoteColumns#LOCAL_MODIFIED} and
          * {@link NoteColumns#MODIFIED_DATE}. For data safety, though update note fails, we also update the
          * note data info
          */
-        if (context.getContentResolver().update(
-                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), mNoteDiffValues, null,
-                null) == 0) {
-            Log.e(TAG, "Update note error, should not happen");
-            // Do not return, fall through
+        if (noteValues.size() > 0) {
+            operationList.add(ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId))
+                    .withValues(noteValues).build());
         }
-        mNoteDiffValues.clear();
+        int chunksOffset = operationList.size();
+        if (chunks != null) {
+            operationList.addAll(chunks.getPendingOperations(noteId));
+        }
+        int textIndex = mNoteData.addTextOperation(operationList, noteId, textValues);
+        int callIndex = mNoteData.addCallOperation(operationList, noteId, callValues);
 
-        if (mNoteData.isLocalModified()
-                && (mNoteData.pushIntoContentResolver(context, noteId) == null)) {
+        ContentProviderResult[] results;
+        try {
+            results = context.getContentResolver().applyBatch(Notes.AUTHORITY, operationList);
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            restoreChanges(noteValues, textValues, callValues);
             return false;
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            restoreChanges(noteValues, textValues, callValues);
+            return false;
+        } catch (RuntimeException e) {
+            restoreChanges(noteValues, textValues, callValues);
+            throw e;
         }
+        if (results == null || results.length != operationList.size()) {
+            Log.e(TAG, "Update note error with noteId" + noteId);
+            restoreChanges(noteValues, textValues, callValues);
+            return false;
+        }
+        if (noteValues.size() > 0 && results[0].count != null && results[0].count == 0) {
+            Log.e(TAG, "Update note error, should not happen");
+        }
+        if (chunks != null) {
+            chunks.applyResults(results, chunksOffset);
+        }
+        if (textIndex >= 0 && mNoteData.mTextDataId == 0) {
+            mNoteData.setTextDataId(ContentUris.parseId(results[textIndex].uri));
+        }
+        if (callIndex >= 0 && mNoteData.mCallDataId == 0) {
+            mNoteData.setCallDataId(ContentUris.parseId(results[callIndex].uri));
+        }
+        return true;
+    }
 
-        // lzier
-        mNoteData.clear();
+    /**
+     * Put the changes of a failed save back, so the next save writes them again. The values
+     * the editor has set since the snapshot are newer and are kept.
+     */
+    private synchronized void restoreChanges(ContentValues noteValues, ContentValues textValues,
+            ContentValues callValues) {
+        merge(mNoteDiffValues, noteValues);
+        merge(mNoteData.mTextDataValues, textValues);
+        merge(mNoteData.mCallDataValues, callValues);
+    }
 
-        return true;
+    private static void merge(ContentValues current, ContentValues snapshot) {
+        if (snapshot.size() == 0) {
+            return;
+        }
+        ContentValues merged = new ContentValues(snapshot);
+        merged.putAll(current);
+        current.clear();
+        current.putAll(merged);
     }
 
     private class NoteData {
-        private long mTextDataId;
+        // the ids are only changed by the thread saving the note
+        private volatile long mTextDataId;
 
         private ContentValues mTextDataValues;
 
-        private long mCallDataId;
+        private volatile long mCallDataId;
 
         private ContentValues mCallDataValues;
 
@@ -155,8 +228,7 @@ public class Note {
         void clear(){
             mTextDataValues.clear();
             mCallDataValues.clear();
-            mTextDataId = 0;
-            mCallDataId = 0;
+            // keep the data ids, otherwise the next save of the same note inserts its data again
         }
 
         boolean isLocalModified() {
@@ -189,76 +261,40 @@ public class Note {
             mNoteDiffValues.put(NoteColumns.MODIFIED_DATE, System.currentTimeMillis());
         }
 
-        Uri pushIntoContentResolver(Context context, long noteId) {
-            /**
-             * Check for safety
-             */
-            if (noteId <= 0) {
-                throw new IllegalArgumentException("Wrong note id:" + noteId);
-            }
+        /**
+         * Add the insert or update of the text data row to the batch
+         *
+         * @return index of the operation in the batch, -1 if there is nothing to write
+         */
+        int addTextOperation(ArrayList<ContentProviderOperation> operationList, long noteId,
+                ContentValues textValues) {
+            return addDataOperation(operationList, noteId, mTextDataId, TextNote.CONTENT_ITEM_TYPE,
+                    textValues);
+        }
 
-            ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
-            ContentProviderOperation.Builder builder = null;
-
-            if(mTextDataValues.size() > 0) {
-                mTextDataValues.put(DataColumns.NOTE_ID, noteId);
-                if (mTextDataId == 0) {
-                    mTextDataValues.put(DataColumns.MIME_TYPE, TextNote.CONTENT_ITEM_TYPE);
-                    Uri uri = context.getContentResolver().insert(Notes.CONTENT_DATA_URI,
-                            mTextDataValues);
-                    try {
-                        setTextDataId(Long.valueOf(uri.getPathSegments().get(1)));
-                    } catch (NumberFormatException e) {
-                        Log.e(TAG, "Insert new text data fail with noteId" + noteId);
-                        mTextDataValues.clear();
-                        return null;
-                    }
-                } else {
-                    builder = ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
-                            Notes.CONTENT_DATA_URI, mTextDataId));
-                    builder.withValues(mTextDataValues);
-                    operationList.add(builder.build());
-                }
-                mTextDataValues.clear();
-            }
+        int addCallOperation(ArrayList<ContentProviderOperation> operationList, long noteId,
+                ContentValues callValues) {
+            return addDataOperation(operationList, noteId, mCallDataId, CallNote.CONTENT_ITEM_TYPE,
+                    callValues);
+        }
 
-            if(mCallDataValues.size() > 0) {
-                mCallDataValues.put(DataColumns.NOTE_ID, noteId);
-                if (mCallDataId == 0) {
-                    mCallDataValues.put(DataColumns.MIME_TYPE, CallNote.CONTENT_ITEM_TYPE);
-                    Uri uri = context.getContentResolver().insert(Notes.CONTENT_DATA_URI,
-                            mCallDataValues);
-                    try {
-                        setCallDataId(Long.valueOf(uri.getPathSegments().get(1)));
-                    } catch (NumberFormatException e) {
-                        Log.e(TAG, "Insert new call data fail with noteId" + noteId);
-                        mCallDataValues.clear();
-                        return null;
-                    }
-                } else {
-                    builder = ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
-                            Notes.CONTENT_DATA_URI, mCallDataId));
-                    builder.withValues(mCallDataValues);
-                    operationList.add(builder.build());
-                }
-                mCallDataValues.clear();
+        private int addDataOperation(ArrayList<ContentProviderOperation> operationList,
+                long noteId, long dataId, String mimeType, ContentValues values) {
+            if (values.size() == 0) {
+                return -1;
             }
-
-            if (operationList.size() > 0) {
-                try {
-                    ContentProviderResult[] results = context.getContentResolver().applyBatch(
-                            Notes.AUTHORITY, operationList);
-                    return (results == null || results.length == 0 || results[0] == null) ? null
-                            : ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId);
-                } catch (RemoteException e) {
-                    Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-                    return null;
-                } catch (OperationApplicationException e) {
-                    Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
-                    return null;
-                }
+            values = new ContentValues(values); // the snapshot is put back as it is on failure
+            values.put(DataColumns.NOTE_ID, noteId);
+            ContentProviderOperation.Builder builder;
+            if (dataId == 0) {
+                values.put(DataColumns.MIME_TYPE, mimeType);
+                builder = ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI);
+            } else {
+                builder = ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
+                        Notes.CONTENT_DATA_URI, dataId));
             }
-            return null;
+            operationList.add(builder.withValues(values).build());
+            return operationList.size() - 1;
         }
     }
 }
@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.model;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.TextNote;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The text of a large note is stored in ordered segments of at most {@link #CHUNK_SIZE}
+ * chars. The first segment is the content of the note's {@link TextNote} row, which is
+ * written by {@link Note} and keeps the snippet, the widget and the sync working as before;
+ * the rest are {@link TextNote#CHUNK_ITEM_TYPE} rows of the same note ordered by
+ * {@link TextNote#CHUNK_INDEX}. Each segment is read with its own query, so no cursor has to
+ * hold the whole text, and an edit only rewrites the segments it touched.
+ * <p>
+ * Each segment is indexed on its own row together with the start of the next one, so an edit
+ * only re-indexes the segments it wrote and the ones before them. The chunk operations go
+ * into the same batch as the head row, see
+ * {@link Note#syncNote(android.content.Context, long, NoteTextChunks)}.
+ */
+public class NoteTextChunks {
+    private static final String TAG = "NoteTextChunks";
+
+    /**
+     * Max length of a segment, well below the size of a cursor window
+     */
+    public static final int CHUNK_SIZE = 32 * 1024;
+
+    private static final String[] CHUNK_ID_PROJECTION = new String[] {
+        DataColumns.ID
+    };
+
+    private static final String[] CHUNK_CONTENT_PROJECTION = new String[] {
+        DataColumns.CONTENT
+    };
+
+    private static class Segment {
+        // Id of the chunk row, 0 for the head and for the chunks not inserted yet
+        long dataId;
+
+        // Text of the segment, null until loaded
+        String text;
+
+        Segment(long dataId, String text) {
+            this.dataId = dataId;
+            this.text = text;
+        }
+    }
+
+    // Segments in the database, the head first
+    private List<Segment> mSegments;
+
+    // Segments and operations of the update not committed yet
+    private List<Segment> mPendingSegments;
+
+    private ArrayList<ContentProviderOperation> mPendingOperations;
+
+    // Positions in mPendingSegments of the chunks inserted by the pending operations
+    private List<Integer> mPendingInserts;
+
+    public NoteTextChunks() {
+        mSegments = new ArrayList<Segment>();
+        mSegments.add(new Segment(0, ""));
+    }
+
+    /**
+     * Set the head segment and look up the ids of the note's chunk rows, their text is
+     * loaded by {@link #getContent(ContentResolver)}
+     */
+    public synchronized void load(ContentResolver resolver, long noteId, String head) {
+        mSegments.clear();
+        mSegments.add(new Segment(0, head == null ? "" : head));
+        Cursor cursor = resolver.query(Notes.CONTENT_DATA_URI, CHUNK_ID_PROJECTION,
+                DataColumns.NOTE_ID + "=? AND " + DataColumns.MIME_TYPE + "=?", new String[] {
+                    String.valueOf(noteId), TextNote.CHUNK_ITEM_TYPE
+                }, TextNote.CHUNK_INDEX + " ASC");
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                mSegments.add(new Segment(cursor.getLong(0), null));
+            }
+            cursor.close();
+        }
+    }
+
+    /**
+     * Whether the text is longer than the head segment
+     */
+    public synchronized boolean hasTail() {
+        return mSegments.size() > 1;
+    }
+
+    /**
+     * Assemble the text, loading the segments not loaded yet one at a time
+     */
+    public synchronized String getContent(ContentResolver resolver) {
+        if (mSegments.size() == 1) {
+            return mSegments.get(0).text;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Segment segment : mSegments) {
+            if (segment.text == null) {
+                segment.text = loadSegment(resolver, segment.dataId);
+            }
+            sb.append(segment.text);
+        }
+        return sb.toString();
+    }
+
+    private static String loadSegment(ContentResolver resolver, long dataId) {
+        String text = null;
+        Cursor cursor = resolver.query(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId),
+                CHUNK_CONTENT_PROJECTION, null, null, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                text = cursor.getString(0);
+            }
+            cursor.close();
+        }
+        if (text == null) {
+            Log.e(TAG, "Failed to load chunk with id:" + dataId);
+            text = "";
+        }
+        return text;
+    }
+
+    /**
+     * Prepare the operations to store the content. The segments before and after the edited
+     * range are kept as they are, the range is split again into segments reusing the rows it
+     * occupied. The operations on the chunk rows are taken by {@link #getPendingOperations}.
+     *
+     * @return the new text of the head segment, or null if the head segment has not changed;
+     *         {@link #hasPendingOperations()} tells whether other segments changed
+     */
+    public synchronized String update(ContentResolver resolver, String content) {
+        if (content == null) {
+            content = "";
+        }
+        getContent(resolver); // every segment has to be loaded to be compared
+        discard();
+
+        // Segments kept at the start
+        int first = 0;
+        int start = 0;
+        while (first < mSegments.size()) {
+            String text = mSegments.get(first).text;
+            if (!content.startsWith(text, start)) {
+                break;
+            }
+            start += text.length();
+            first++;
+        }
+        // Segments kept at the end
+        int last = mSegments.size() - 1;
+        int end = content.length();
+        while (last >= first) {
+            String text = mSegments.get(last).text;
+            if (end - text.length() < start || !content.startsWith(text, end - text.length())) {
+                break;
+            }
+            end -= text.length();
+            last--;
+        }
+        if (first > last) {
+            if (start == end) {
+                return null; // nothing changed
+            }
+            // Text inserted between two segments goes into one of them instead of adding a
+            // small segment for every insertion
+            if (first > 0) {
+                first--;
+                start -= mSegments.get(first).text.length();
+            } else {
+                last++;
+                end += mSegments.get(last).text.length();
+            }
+        }
+
+        List<String> pieces = split(content, start, end);
+        if (first == 0 && pieces.isEmpty()) {
+            pieces.add(""); // the head segment always exists
+        }
+
+        List<Segment> segments = new ArrayList<Segment>(mSegments.subList(0, first));
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        List<Integer> inserts = new ArrayList<Integer>();
+        String head = mSegments.get(0).text;
+        int reuse = first;
+        for (String piece : pieces) {
+            int position = segments.size();
+            long dataId = 0;
+            if (position == 0) {
+                head = piece;
+                reuse++;
+            } else if (reuse <= last) {
+                dataId = mSegments.get(reuse++).dataId;
+                operations.add(ContentProviderOperation.newUpdate(getChunkUri(dataId))
+                        .withValue(DataColumns.CONTENT, piece)
+                        .withValue(TextNote.CHUNK_INDEX, position)
+                        .build());
+            } else {
+                inserts.add(position); // inserted with the head row, when the note id is known
+            }
+            segments.add(new Segment(dataId, piece));
+        }
+        // Rows of the edited range that are no longer needed
+        for (; reuse <= last; reuse++) {
+            operations.add(ContentProviderOperation.newDelete(
+                    getChunkUri(mSegments.get(reuse).dataId)).build());
+        }
+        // Segments after the range only move if the range changed its number of segments
+        boolean shifted = segments.size() != last + 1;
+        for (int i = last + 1; i < mSegments.size(); i++) {
+            Segment segment = mSegments.get(i);
+            if (shifted) {
+                operations.add(ContentProviderOperation.newUpdate(getChunkUri(segment.dataId))
+                        .withValue(TextNote.CHUNK_INDEX, segments.size())
+                        .build());
+            }
+            segments.add(segment);
+        }
+
+        mPendingSegments = segments;
+        mPendingOperations = operations;
+        mPendingInserts = inserts;
+        return first == 0 ? head : null; // the head is only rewritten when the edit reaches it
+    }
+
+    /**
+     * Whether the update prepared by {@link #update} writes any chunk row
+     */
+    public synchronized boolean hasPendingOperations() {
+        return mPendingSegments != null
+                && (!mPendingInserts.isEmpty() || !mPendingOperations.isEmpty());
+    }
+
+    /**
+     * The operations on the chunk rows prepared by {@link #update}, the inserts first. They
+     * are applied in the batch writing the head row, whose results are handed back to
+     * {@link #applyResults}.
+     */
+    public synchronized ArrayList<ContentProviderOperation> getPendingOperations(long noteId) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        if (mPendingSegments == null) {
+            return operations;
+        }
+        for (int position : mPendingInserts) {
+            operations.add(ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                    .withValue(DataColumns.NOTE_ID, noteId)
+                    .withValue(DataColumns.MIME_TYPE, TextNote.CHUNK_ITEM_TYPE)
+                    .withValue(DataColumns.CONTENT, mPendingSegments.get(position).text)
+                    .withValue(TextNote.CHUNK_INDEX, position)
+                    .build());
+        }
+        operations.addAll(mPendingOperations);
+        return operations;
+    }
+
+    /**
+     * Take the pending update as the segments in the database once its batch succeeded
+     *
+     * @param offset index in results of the first operation of {@link #getPendingOperations}
+     */
+    public synchronized void applyResults(ContentProviderResult[] results, int offset) {
+        if (mPendingSegments == null) {
+            return;
+        }
+        for (int i = 0; i < mPendingInserts.size(); i++) {
+            mPendingSegments.get(mPendingInserts.get(i)).dataId =
+                    ContentUris.parseId(results[offset + i].uri);
+        }
+        mSegments = mPendingSegments;
+        discard();
+    }
+
+    /**
+     * Drop the update prepared by {@link #update}. On a failed batch the next update compares
+     * against the segments in the database again.
+     */
+    public synchronized void discard() {
+        mPendingSegments = null;
+        mPendingOperations = null;
+        mPendingInserts = null;
+    }
+
+    private static Uri getChunkUri(long dataId) {
+        return ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId);
+    }
+
+    /**
+     * Split content[start, end) into pieces of at most {@link #CHUNK_SIZE} chars, never
+     * between the two chars of a surrogate pair
+     */
+    private static List<String> split(String content, int start, int end) {
+        List<String> pieces = new ArrayList<String>();
+        while (start < end) {
+            int cut = Math.min(start + CHUNK_SIZE, end);
+            if (cut < end && Character.isHighSurrogate(content.charAt(cut - 1))) {
+                cut--;
+            }
+            pieces.add(content.substring(start, cut));
+            start = cut;
+        }
+        return pieces;
+    }
+}
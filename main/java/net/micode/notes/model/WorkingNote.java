@@ -25,6 +25,7 @@ import android.util.Log;
 
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.CallNote;
+import net.micode.notes.data.Notes.CheckItem;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
@@ -40,8 +41,20 @@ public class WorkingNote {
     private Note mNote;
     // Note Id
     private long mNoteId;
-    // Note content
-    private String mContent;
+    // Note content, set by the editor and read by the background save
+    private volatile String mContent;
+    // Content last written to the database, and its hash to skip the saves that change nothing
+    private String mSavedContent;
+
+    private int mSavedContentHash;
+    // Segments of the content in the database
+    private NoteTextChunks mChunks;
+    // False until the segments of a large note are assembled into mContent
+    private volatile boolean mContentLoaded;
+    // Items of the note in check list mode, null in normal mode
+    private ChecklistItems mChecklist;
+    // Items left behind when switching to normal mode, their rows are deleted on save
+    private ChecklistItems mRemovedChecklist;
     // Note mode
     private int mMode;
 
@@ -65,6 +78,9 @@ public class WorkingNote {
 
     private NoteSettingChangedListener mNoteSettingStatusListener;
 
+    // 保存期间持有，同一时间只有一次保存。编辑器的修改只短暂持有对象锁，不会等待保存中的数据库写入
+    private final Object mSaveLock = new Object();
+
     public static final String[] DATA_PROJECTION = new String[] {
             DataColumns.ID,
             DataColumns.CONTENT,
@@ -111,6 +127,8 @@ public class WorkingNote {
         mModifiedDate = System.currentTimeMillis();
         mFolderId = folderId;
         mNote = new Note();
+        mChunks = new NoteTextChunks();
+        mContentLoaded = true;
         mNoteId = 0;
         mIsDeleted = false;
         mMode = 0;
@@ -124,6 +142,7 @@ public class WorkingNote {
         mFolderId = folderId;
         mIsDeleted = false;
         mNote = new Note();
+        mChunks = new NoteTextChunks();
         loadNote();
     }
 
@@ -150,9 +169,10 @@ public class WorkingNote {
     }
 
     private void loadNoteData() {
+        // 大笔记的其余分段由 mChunks 按需逐段读取，清单条目由 ChecklistItems 读取，不在这里读入
         Cursor cursor = mContext.getContentResolver().query(Notes.CONTENT_DATA_URI, DATA_PROJECTION,
-                DataColumns.NOTE_ID + "=?", new String[] {
-                    String.valueOf(mNoteId)
+                DataColumns.NOTE_ID + "=? AND " + DataColumns.MIME_TYPE + " NOT IN (?,?)", new String[] {
+                    String.valueOf(mNoteId), DataConstants.NOTE_CHUNK, DataConstants.CHECK_ITEM
                 }, null);
 
         if (cursor != null) {
@@ -161,6 +181,7 @@ public class WorkingNote {
                     String type = cursor.getString(DATA_MIME_TYPE_COLUMN);
                     if (DataConstants.NOTE.equals(type)) {
                         mContent = cursor.getString(DATA_CONTENT_COLUMN);
+                        markContentSaved(mContent);
                         mMode = cursor.getInt(DATA_MODE_COLUMN);
                         mNote.setTextDataId(cursor.getLong(DATA_ID_COLUMN));
                     } else if (DataConstants.CALL_NOTE.equals(type)) {
@@ -175,6 +196,22 @@ public class WorkingNote {
             Log.e(TAG, "No data with id:" + mNoteId);
             throw new IllegalArgumentException("Unable to find note's data with id " + mNoteId);
         }
+        mChunks.load(mContext.getContentResolver(), mNoteId, mContent);
+        mContentLoaded = !mChunks.hasTail();
+        if (mMode == TextNote.MODE_CHECK_LIST) {
+            loadChecklist();
+        }
+    }
+
+    // 清单的条目保存在各自的数据行中，笔记的文本为空
+    private void loadChecklist() {
+        ChecklistItems checklist = ChecklistItems.load(mContext.getContentResolver(), mNoteId);
+        if (mChunks.hasTail() || !TextUtils.isEmpty(mContent)) {
+            // 同步下来的清单仍是带标记的文本，转换为条目，保存时清空文本
+            checklist.replaceAll(getContent());
+            setWorkingText("");
+        }
+        mChecklist = checklist;
     }
 
     public static WorkingNote createEmptyNote(Context context, long folderId, int widgetId,
@@ -190,17 +227,54 @@ public class WorkingNote {
         return new WorkingNote(context, id, 0);
     }
 
-    //保存笔记到数据库中
-    public synchronized boolean saveNote() {
-        if (isWorthSaving()) {
+    //保存笔记到数据库中，可以在后台线程中调用
+    public boolean saveNote() {
+        synchronized (mSaveLock) {
+            return saveNoteLocked();
+        }
+    }
+
+    private boolean saveNoteLocked() {
+        // 编辑器可能在保存期间继续修改内容或切换清单模式，只保存此刻的快照
+        String content;
+        ChecklistItems checklist;
+        ChecklistItems removedChecklist;
+        synchronized (this) {
+            content = mContent;
+            checklist = mChecklist;
+            removedChecklist = mRemovedChecklist;
+        }
+        boolean contentChanged = mContentLoaded && isContentChanged(content);
+        if (contentChanged) {
+            // 只重写被修改的分段，第一段有修改时才随笔记的文本数据一起写入
+            String head = mChunks.update(mContext.getContentResolver(), content);
+            if (head != null) {
+                mNote.setTextData(DataColumns.CONTENT, head);
+            } else if (mChunks.hasPendingOperations()) {
+                // 只修改了后面的分段，笔记本身仍需要标记为已修改
+                mNote.setNoteValue(NoteColumns.LOCAL_MODIFIED, "1");
+            }
+        }
+        if (hasChecklistChanges(checklist, removedChecklist)) {
+            // 只修改了清单条目，笔记本身仍需要标记为已修改
+            mNote.setNoteValue(NoteColumns.LOCAL_MODIFIED, "1");
+        }
+        if (isWorthSaving(content)) {
             if (!existInDatabase()) {
                 if ((mNoteId = Note.getNewNoteId(mContext, mFolderId)) == 0) {
                     Log.e(TAG, "Create new note fail with id:" + mNoteId);
+                    mChunks.discard();
                     return false;
                 }
             }
 
-            mNote.syncNote(mContext, mNoteId);
+            // 笔记、分段和文本数据在同一批操作中写入
+            if (mNote.syncNote(mContext, mNoteId, mChunks)
+                    && commitChecklist(checklist, removedChecklist)
+                    && contentChanged) {
+                markContentSaved(content);
+            }
+            mChunks.discard();
 
             /**
              * Update widget content if there exist any widget of this note
@@ -220,15 +294,62 @@ public class WorkingNote {
         return mNoteId > 0;
     }
 
-    private boolean isWorthSaving() {
-        if (mIsDeleted || (!existInDatabase() && TextUtils.isEmpty(mContent))
-                || (existInDatabase() && !mNote.isLocalModified())) {
+    private boolean isWorthSaving(String content) {
+        if (mIsDeleted || (!existInDatabase() && TextUtils.isEmpty(content)
+                    && (mChecklist == null || mChecklist.isEmpty()))
+                || (existInDatabase() && !mNote.isLocalModified()
+                    && (!mContentLoaded || !isContentChanged(content))
+                    && !hasChecklistChanges())) {
             return false;
         } else {
             return true;
         }
     }
 
+    private boolean hasChecklistChanges() {
+        return hasChecklistChanges(mChecklist, mRemovedChecklist);
+    }
+
+    private static boolean hasChecklistChanges(ChecklistItems checklist,
+            ChecklistItems removedChecklist) {
+        return (checklist != null && checklist.hasChanges())
+                || (removedChecklist != null && removedChecklist.hasChanges());
+    }
+
+    // 写入清单条目的修改，只写入修改过的条目，不持有对象锁
+    private boolean commitChecklist(ChecklistItems checklist, ChecklistItems removedChecklist) {
+        if (removedChecklist != null) {
+            if (!removedChecklist.commit(mContext.getContentResolver(), mNoteId)) {
+                return false;
+            }
+            synchronized (this) {
+                if (mRemovedChecklist == removedChecklist) {
+                    mRemovedChecklist = null; // 保存期间没有切换回清单模式
+                }
+            }
+        }
+        return checklist == null || checklist.commit(mContext.getContentResolver(), mNoteId);
+    }
+
+    //是否有尚未保存的修改
+    public boolean hasUnsavedChanges() {
+        return isWorthSaving(mContent);
+    }
+
+    //先比较哈希值，只有哈希值相同时才需要逐字比较
+    private boolean isContentChanged(String content) {
+        if (content == mSavedContent) {
+            return false;
+        }
+        return content == null || content.hashCode() != mSavedContentHash
+                || !content.equals(mSavedContent);
+    }
+
+    private void markContentSaved(String content) {
+        mSavedContent = content;
+        mSavedContentHash = content == null ? 0 : content.hashCode();
+    }
+
     public void setOnSettingStatusChangedListener(NoteSettingChangedListener l) {
         mNoteSettingStatusListener = l;
     }
@@ -265,9 +386,30 @@ public class WorkingNote {
         }
     }
 
-    //设置笔记的清单模式
-    public void setCheckListMode(int mode) {
+    //设置笔记的清单模式，文本与清单条目互相转换，调用前需要先设置编辑器中的文本
+    public synchronized void setCheckListMode(int mode) {
         if (mMode != mode) {
+            if (mode == TextNote.MODE_CHECK_LIST) {
+                String text = getContent();
+                if (mRemovedChecklist != null) {
+                    // 尚未保存的删除与新的条目一起写入
+                    mChecklist = mRemovedChecklist;
+                    mRemovedChecklist = null;
+                    mChecklist.replaceAll(text);
+                } else {
+                    mChecklist = ChecklistItems.parse(text);
+                }
+                setWorkingText("");
+            } else {
+                String text = mChecklist.serialize();
+                if (!mChecklist.hasChecked()) {
+                    text = text.replace(CheckItem.TAG_UNCHECKED + " ", "");
+                }
+                mChecklist.removeAll();
+                mRemovedChecklist = mChecklist;
+                mChecklist = null;
+                setWorkingText(text);
+            }
             if (mNoteSettingStatusListener != null) {
                 mNoteSettingStatusListener.onCheckListModeChanged(mMode, mode);
             }
@@ -292,11 +434,10 @@ public class WorkingNote {
         }
     }
 
+    //只记录编辑器中的内容，保存时才与已保存的内容比较，连续的修改只写入一次
     public void setWorkingText(String text) {
-        if (!TextUtils.equals(mContent, text)) {
-            mContent = text;
-            mNote.setTextData(DataColumns.CONTENT, mContent);
-        }
+        mContent = text;
+        mContentLoaded = true;
     }
 
     public void convertToCallNote(String phoneNumber, long callDate) {
@@ -309,7 +450,21 @@ public class WorkingNote {
         return (mAlertDate > 0 ? true : false);
     }
 
+    //大笔记的内容在第一次读取时才逐段组装
     public String getContent() {
+        ChecklistItems checklist = mChecklist;
+        if (checklist != null) {
+            return checklist.serialize();
+        }
+        if (!mContentLoaded) {
+            synchronized (this) {
+                if (!mContentLoaded) {
+                    mContent = mChunks.getContent(mContext.getContentResolver());
+                    markContentSaved(mContent);
+                    mContentLoaded = true;
+                }
+            }
+        }
         return mContent;
     }
 
@@ -337,6 +492,11 @@ public class WorkingNote {
         return mMode;
     }
 
+    //清单模式下的条目，文本模式下为null
+    public ChecklistItems getChecklist() {
+        return mChecklist;
+    }
+
     public long getNoteId() {
         return mNoteId;
     }
@@ -28,6 +28,9 @@ import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.model.ChecklistItems;
+import net.micode.notes.model.NoteTextChunks;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -121,6 +124,8 @@ public class BackupUtils {
 
         private static final int DATA_COLUMN_CALL_DATE = 2;
 
+        private static final int DATA_COLUMN_MODE = 2;
+
         private static final int DATA_COLUMN_PHONE_NUMBER = 4;
 
         private final String [] TEXT_FORMAT;
@@ -173,9 +178,11 @@ public class BackupUtils {
          * Export note identified by id to a print stream
          */
         private void exportNoteToText(String noteId, PrintStream ps) {
+            // The segments of a large note and the check items are read with its text row
             Cursor dataCursor = mContext.getContentResolver().query(Notes.CONTENT_DATA_URI,
-                    DATA_PROJECTION, DataColumns.NOTE_ID + "=?", new String[] {
-                        noteId
+                    DATA_PROJECTION, DataColumns.NOTE_ID + "=? AND " + DataColumns.MIME_TYPE
+                    + " NOT IN (?,?)", new String[] {
+                        noteId, DataConstants.NOTE_CHUNK, DataConstants.CHECK_ITEM
                     }, null);
 
             if (dataCursor != null) {
@@ -202,7 +209,16 @@ public class BackupUtils {
                                         location));
                             }
                         } else if (DataConstants.NOTE.equals(mimeType)) {
-                            String content = dataCursor.getString(DATA_COLUMN_CONTENT);
+                            String content;
+                            if (dataCursor.getInt(DATA_COLUMN_MODE) == TextNote.MODE_CHECK_LIST) {
+                                content = ChecklistItems.load(mContext.getContentResolver(),
+                                        Long.valueOf(noteId)).serialize();
+                            } else {
+                                NoteTextChunks chunks = new NoteTextChunks();
+                                chunks.load(mContext.getContentResolver(), Long.valueOf(noteId),
+                                        dataCursor.getString(DATA_COLUMN_CONTENT));
+                                content = chunks.getContent(mContext.getContentResolver());
+                            }
                             if (!TextUtils.isEmpty(content)) {
                                 ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
                                         content));
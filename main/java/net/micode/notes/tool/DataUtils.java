@@ -32,6 +32,7 @@ import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.ui.NotesListAdapter.AppWidgetAttribute;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 
 /**
@@ -40,6 +41,8 @@ import java.util.HashSet;
 public class DataUtils {
     public static final String TAG = "DataUtils";
 
+    private static final int ID_IN_CHUNK_SIZE = 500; // 每条 IN (...) 语句包含的最大ID数
+
     //批量删除笔记
     public static boolean batchDeleteNotes(ContentResolver resolver, HashSet<Long> ids) {
         if (ids == null) {
@@ -51,7 +54,7 @@ public class DataUtils {
             return true;
         }
 
-        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
+        ArrayList<Long> deleteIds = new ArrayList<Long>(ids.size());
         for (long id : ids) {
             //lzier
             if(id == Notes.ID_ROOT_FOLDER || id == Notes.ID_CALL_RECORD_FOLDER) {
@@ -62,9 +65,13 @@ public class DataUtils {
                 Log.e(TAG, "Don't delete system folder root");
                 continue;
             }*/
-            ContentProviderOperation.Builder builder = ContentProviderOperation
-                    .newDelete(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id));
-            operationList.add(builder.build());
+            deleteIds.add(id);
+        }
+        // 每 ID_IN_CHUNK_SIZE 个ID合并为一条 DELETE ... WHERE _id IN (...)，所有语句在同一个事务中执行
+        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
+        for (String selection : buildIdInSelections(deleteIds)) {
+            operationList.add(ContentProviderOperation.newDelete(Notes.CONTENT_NOTE_URI)
+                    .withSelection(selection, null).build());
         }
         try {
             ContentProviderResult[] results = resolver.applyBatch(Notes.AUTHORITY, operationList);
@@ -98,12 +105,14 @@ public class DataUtils {
             return true;
         }
 
+        // 每 ID_IN_CHUNK_SIZE 个ID合并为一条 UPDATE ... WHERE _id IN (...)，所有语句在同一个事务中执行
         ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
-        for (long id : ids) {
+        for (String selection : buildIdInSelections(ids)) {
             ContentProviderOperation.Builder builder = ContentProviderOperation
-                    .newUpdate(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id));
+                    .newUpdate(Notes.CONTENT_NOTE_URI);
             builder.withValue(NoteColumns.PARENT_ID, folderId);
             builder.withValue(NoteColumns.LOCAL_MODIFIED, 1);
+            builder.withSelection(selection, null);
             operationList.add(builder.build());
         }
 
@@ -122,6 +131,30 @@ public class DataUtils {
         return false;
     }
 
+    //将ID集合拆分为若干个 _id IN (...) 条件，每个条件最多包含 ID_IN_CHUNK_SIZE 个ID
+    private static ArrayList<String> buildIdInSelections(Collection<Long> ids) {
+        ArrayList<String> selections = new ArrayList<String>();
+        StringBuilder selection = null;
+        int count = 0;
+        for (long id : ids) {
+            if (selection == null) {
+                selection = new StringBuilder(NoteColumns.ID + " IN (");
+            } else {
+                selection.append(',');
+            }
+            selection.append(id);
+            if (++count == ID_IN_CHUNK_SIZE) {
+                selections.add(selection.append(')').toString());
+                selection = null;
+                count = 0;
+            }
+        }
+        if (selection != null) {
+            selections.add(selection.append(')').toString());
+        }
+        return selections;
+    }
+
     //获取用户创建的文件夹数量（不包括系统文件夹）
     /**
      * Get the all folder count except system folders {@link Notes#TYPE_SYSTEM}}
@@ -261,6 +294,32 @@ public class DataUtils {
         return "";
     }
 
+    //获取文件夹中最近修改的 limit 条通话记录的电话号码，已去重
+    public static HashSet<String> getCallNumbersInFolder(ContentResolver resolver, long folderId, int limit) {
+        HashSet<String> numbers = new HashSet<String>();
+        Cursor cursor = resolver.query(Notes.CONTENT_DATA_URI,
+                new String [] { CallNote.PHONE_NUMBER },
+                CallNote.MIME_TYPE + "=? AND " + CallNote.NOTE_ID + " IN (SELECT " + NoteColumns.ID
+                + " FROM note WHERE " + NoteColumns.PARENT_ID + "=? ORDER BY "
+                + NoteColumns.MODIFIED_DATE + " DESC LIMIT " + limit + ")",
+                new String [] { CallNote.CONTENT_ITEM_TYPE, String.valueOf(folderId) },
+                null);
+
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    String number = cursor.getString(0);
+                    if (number != null && number.length() > 0) {
+                        numbers.add(number);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return numbers;
+    }
+
     //根据电话号码和通话日期获取笔记 ID
     public static long getNoteIdByPhoneNumberAndCallDate(ContentResolver resolver, String phoneNumber, long callDate) {
         Cursor cursor = resolver.query(Notes.CONTENT_DATA_URI,
@@ -42,5 +42,8 @@ public class AlarmReceiver extends BroadcastReceiver {
         // 使用提供的上下文启动 AlarmAlertActivity 活动。由于这个接收器可能是在应用程序的任何其他组件之外接收到广播的，
         // 所以必须为这个 Intent 添加 FLAG_ACTIVITY_NEW_TASK 标志，以确保活动可以正确启动
         context.startActivity(intent);
+
+        // 这个提醒已经响起，在后台注册队列中接下来的提醒
+        AlarmScheduler.rescheduleAsync(context, goAsync());
     }
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * AlarmScheduler 只向系统注册最近的 MAX_ARMED 个笔记提醒
+ * 提醒时间保存在笔记表中，alerted_date 上的索引就是待提醒的队列，每次只按顺序读取队首的几条
+ * 每当一个提醒响起、开机完成或用户修改了提醒，都会在后台线程中重新注册队首的提醒，
+ * 队列中靠后的提醒会在前面的提醒响起后才被注册
+ * 重新注册同一笔记的 PendingIntent 会替换原来的闹钟，因此重复注册是安全的
+ */
+class AlarmScheduler {
+    // 同时向系统注册的提醒个数
+    static final int MAX_ARMED = 16;
+
+    private static final String [] PROJECTION = new String [] {
+        NoteColumns.ID,
+        NoteColumns.ALERTED_DATE
+    };
+
+    private static final int COLUMN_ID           = 0;
+    private static final int COLUMN_ALERTED_DATE = 1;
+
+    // 未来的、不在回收站中的笔记提醒，由 note_alerted_date_index 索引
+    static final String SELECTION = NoteColumns.ALERTED_DATE + ">? AND "
+            + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + " AND "
+            + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER + " AND "
+            + NoteColumns.ID + "<>?";
+
+    // 与队首最后一条提醒时间相同的提醒，它们也需要一起注册
+    static final String TIE_SELECTION = NoteColumns.ALERTED_DATE + "=? AND "
+            + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + " AND "
+            + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER + " AND "
+            + NoteColumns.ID + "<>?";
+
+    // 按提醒时间顺序读取队首
+    static final String SORT_ORDER = NoteColumns.ALERTED_DATE + " ASC";
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    // 提醒响起时发送给 AlarmReceiver 的广播，每个笔记的数据URI不同，因此各自对应一个闹钟
+    static PendingIntent getAlarmIntent(Context context, long noteId) {
+        Intent intent = new Intent(context, AlarmReceiver.class);
+        intent.setData(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId));
+        return PendingIntent.getBroadcast(context, 0, intent, 0);
+    }
+
+    /*
+     * 用户修改了笔记的提醒，alertDate 为0表示取消提醒
+     * 该笔记的闹钟立即被设置或取消，此时新的提醒时间可能还没有保存到数据库中，
+     * 因此后台重新注册队首提醒时会跳过这个笔记
+     */
+    static void onAlertChanged(Context context, final long noteId, long alertDate) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent pendingIntent = getAlarmIntent(context, noteId);
+        if (alertDate > 0) {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, alertDate, pendingIntent);
+        } else {
+            alarmManager.cancel(pendingIntent);
+        }
+
+        final Context appContext = context.getApplicationContext();
+        sExecutor.execute(new Runnable() {
+            public void run() {
+                reschedule(appContext, noteId);
+            }
+        });
+    }
+
+    // 在广播接收器中调用，在后台重新注册队首的提醒，完成后结束广播
+    static void rescheduleAsync(Context context, final BroadcastReceiver.PendingResult result) {
+        final Context appContext = context.getApplicationContext();
+        sExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    reschedule(appContext, 0);
+                } finally {
+                    result.finish();
+                }
+            }
+        });
+    }
+
+    // 注册最近的 MAX_ARMED 个提醒，skipNoteId 对应的笔记不会被注册
+    private static void reschedule(Context context, long skipNoteId) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        Uri uri = Notes.CONTENT_NOTE_URI.buildUpon()
+                .appendQueryParameter(Notes.QUERY_PARAMETER_LIMIT, String.valueOf(MAX_ARMED))
+                .build();
+        String skipId = String.valueOf(skipNoteId);
+        Cursor c = context.getContentResolver().query(uri, PROJECTION, SELECTION,
+                new String[] { String.valueOf(System.currentTimeMillis()), skipId },
+                SORT_ORDER);
+        int count = c == null ? 0 : c.getCount();
+        long lastDate = arm(context, alarmManager, c);
+        if (count >= MAX_ARMED) {
+            // 队列中可能还有与最后一条时间相同的提醒，它们也要注册，否则最后一条响起后它们会被跳过
+            arm(context, alarmManager, context.getContentResolver().query(Notes.CONTENT_NOTE_URI,
+                    PROJECTION, TIE_SELECTION, new String[] { String.valueOf(lastDate), skipId },
+                    null));
+        }
+    }
+
+    // 注册游标中的提醒并关闭游标，返回最后一条的提醒时间
+    private static long arm(Context context, AlarmManager alarmManager, Cursor c) {
+        long alertDate = 0;
+        if (c == null) {
+            return alertDate;
+        }
+        try {
+            while (c.moveToNext()) {
+                alertDate = c.getLong(COLUMN_ALERTED_DATE);
+                alarmManager.set(AlarmManager.RTC_WAKEUP, alertDate,
+                        getAlarmIntent(context, c.getLong(COLUMN_ID)));
+            }
+        } finally {
+            c.close();
+        }
+        return alertDate;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.ui;
+
+import android.content.Context;
+import android.graphics.Paint;
+import android.text.Editable;
+import android.text.TextUtils;
+import android.text.TextWatcher;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
+import android.widget.CompoundButton.OnCheckedChangeListener;
+
+import net.micode.notes.R;
+import net.micode.notes.model.ChecklistItems;
+
+/*
+ * ChecklistAdapter 把清单条目绑定到可复用的行视图，列表只为可见的条目创建行，
+ * 打开有大量条目的清单时视图数量与条目数量无关
+ * 行中的修改直接写回笔记的 ChecklistItems，回车和删除仍由 NoteEditText 的监听器处理
+ */
+public class ChecklistAdapter extends BaseAdapter {
+    // 条目的显示与修改回调
+    public interface Callback {
+        // 条目显示时的文本，例如高亮搜索的关键字
+        CharSequence getDisplayText(String text);
+
+        // 条目的内容或完成状态被用户修改
+        void onItemChanged();
+    }
+
+    private final Context mContext;
+
+    private final Callback mCallback;
+
+    private final NoteEditText.OnTextViewChangeListener mTextViewChangeListener;
+
+    private ChecklistItems mItems;
+
+    private int mTextAppearance;
+
+    private int mFocusPosition = -1; // 下一次绑定时需要获得焦点的条目
+
+    private int mFocusSelection;
+
+    private boolean mBinding; // 绑定视图时忽略由此引起的修改回调
+
+    private class ViewHolder {
+        CheckBox checkBox;
+        NoteEditText edit;
+        int position;
+    }
+
+    public ChecklistAdapter(Context context, Callback callback,
+            NoteEditText.OnTextViewChangeListener listener) {
+        mContext = context;
+        mCallback = callback;
+        mTextViewChangeListener = listener;
+        mItems = ChecklistItems.parse(null);
+    }
+
+    public void setItems(ChecklistItems items) {
+        mItems = items;
+        notifyDataSetChanged();
+    }
+
+    public ChecklistItems getItems() {
+        return mItems;
+    }
+
+    public void setTextAppearance(int resId) {
+        if (mTextAppearance != resId) {
+            mTextAppearance = resId;
+            notifyDataSetChanged();
+        }
+    }
+
+    // 条目下一次显示时获得焦点，并把光标移到 selection 处
+    public void requestFocus(int position, int selection) {
+        mFocusPosition = position;
+        mFocusSelection = selection;
+    }
+
+    public int getCount() {
+        return mItems.size();
+    }
+
+    public Object getItem(int position) {
+        return mItems.getText(position);
+    }
+
+    public long getItemId(int position) {
+        return position;
+    }
+
+    public View getView(int position, View convertView, ViewGroup parent) {
+        final ViewHolder holder;
+        if (convertView == null) {
+            convertView = LayoutInflater.from(mContext).inflate(R.layout.note_edit_list_item,
+                    parent, false);
+            holder = new ViewHolder();
+            holder.checkBox = (CheckBox) convertView.findViewById(R.id.cb_edit_item);
+            holder.edit = (NoteEditText) convertView.findViewById(R.id.et_edit_text);
+            holder.edit.setOnTextViewChangeListener(mTextViewChangeListener);
+            holder.checkBox.setOnCheckedChangeListener(new OnCheckedChangeListener() {
+                public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                    setStrikeThrough(holder.edit, isChecked);
+                    if (!mBinding) {
+                        mItems.setChecked(holder.position, isChecked);
+                        mCallback.onItemChanged();
+                    }
+                }
+            });
+            holder.edit.addTextChangedListener(new TextWatcher() {
+                public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+                }
+
+                public void onTextChanged(CharSequence s, int start, int before, int count) {
+                }
+
+                public void afterTextChanged(Editable s) {
+                    if (!mBinding && holder.position < mItems.size()) {
+                        mItems.setText(holder.position, s.toString());
+                        mCallback.onItemChanged();
+                    }
+                }
+            });
+            convertView.setTag(holder);
+        } else {
+            holder = (ViewHolder) convertView.getTag();
+        }
+
+        mBinding = true;
+        holder.position = position;
+        holder.edit.setIndex(position);
+        if (mTextAppearance != 0) {
+            holder.edit.setTextAppearance(mContext, mTextAppearance);
+        }
+        String text = mItems.getText(position);
+        boolean checked = mItems.isChecked(position);
+        holder.checkBox.setChecked(checked);
+        setStrikeThrough(holder.edit, checked);
+        holder.checkBox.setVisibility(TextUtils.isEmpty(text) ? View.GONE : View.VISIBLE);
+        holder.edit.setText(mCallback.getDisplayText(text));
+        mBinding = false;
+
+        if (position == mFocusPosition) {
+            mFocusPosition = -1;
+            holder.edit.requestFocus();
+            holder.edit.setSelection(Math.min(mFocusSelection, holder.edit.length()));
+        }
+        return convertView;
+    }
+
+    // 根据条目是否有内容显示或隐藏可见行的复选框
+    public void setCheckBoxVisible(ViewGroup list, int position, boolean visible) {
+        for (int i = 0; i < list.getChildCount(); i++) {
+            ViewHolder holder = (ViewHolder) list.getChildAt(i).getTag();
+            if (holder != null && holder.position == position) {
+                holder.checkBox.setVisibility(visible ? View.VISIBLE : View.GONE);
+                break;
+            }
+        }
+    }
+
+    private static void setStrikeThrough(NoteEditText edit, boolean checked) {
+        if (checked) {
+            edit.setPaintFlags(edit.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
+        } else {
+            edit.setPaintFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
+        }
+    }
+}
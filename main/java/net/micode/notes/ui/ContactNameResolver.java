@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Handler;
+
+import net.micode.notes.data.Contact;
+import net.micode.notes.tool.DataUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/*
+ * ContactNameResolver 在后台批量查询通话记录的联系人名称
+ * 绑定列表项时只把缓存中没有的号码加入等待队列，稍等片刻收集同一次滚动中出现的号码后，
+ * 在后台线程中用一次批量查询得到它们的名称，完成后通知列表刷新，已显示的号码会被替换为名称
+ */
+public class ContactNameResolver {
+    // 收集号码的等待时间，毫秒
+    private static final long BATCH_DELAY = 100;
+
+    // 打开文件夹时预先查询的通话记录条数
+    private static final int PREWARM_LIMIT = 200;
+
+    // 名称查询完成后的回调，在UI线程中调用
+    public interface OnNamesResolvedListener {
+        void onNamesResolved();
+    }
+
+    private final Context mContext;
+
+    private final OnNamesResolvedListener mListener;
+
+    private final Handler mHandler = new Handler();
+
+    private final HashSet<String> mPending = new HashSet<String>(); // 等待查询的号码
+
+    private final HashSet<String> mRequested = new HashSet<String>(); // 已经查询过的号码，包括没有匹配联系人的号码
+
+    private int mGeneration = Contact.getGeneration(); // 查询 mRequested 中号码时联系人缓存的版本
+
+    private AsyncTask<Void, Void, Boolean> mTask; // 正在执行的查询
+
+    private AsyncTask<Void, Void, Boolean> mPrewarmTask; // 正在执行的预查询
+
+    private final Runnable mStartBatch = new Runnable() {
+        public void run() {
+            startBatch();
+        }
+    };
+
+    public ContactNameResolver(Context context, OnNamesResolvedListener listener) {
+        mContext = context.getApplicationContext();
+        mListener = listener;
+    }
+
+    // 请求查询号码对应的联系人名称，已查询过的号码会被忽略
+    public void request(String phoneNumber) {
+        int generation = Contact.getGeneration();
+        if (generation != mGeneration) {
+            // 联系人缓存已失效，之前查询过的号码需要重新查询
+            mGeneration = generation;
+            mRequested.clear();
+        }
+        if (!mRequested.add(phoneNumber)) {
+            return;
+        }
+        mPending.add(phoneNumber);
+        if (mTask == null) {
+            mHandler.removeCallbacks(mStartBatch);
+            mHandler.postDelayed(mStartBatch, BATCH_DELAY);
+        }
+    }
+
+    // 在后台预先查询文件夹中最近 PREWARM_LIMIT 条通话记录的联系人名称，完成后刷新列表
+    public void prewarm(final long folderId) {
+        if (mPrewarmTask != null) {
+            mPrewarmTask.cancel(false);
+        }
+        mPrewarmTask = new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                HashSet<String> numbers = DataUtils.getCallNumbersInFolder(
+                        mContext.getContentResolver(), folderId, PREWARM_LIMIT);
+                return !Contact.getContacts(mContext, numbers).isEmpty();
+            }
+
+            @Override
+            protected void onPostExecute(Boolean found) {
+                mPrewarmTask = null;
+                if (found) {
+                    mListener.onNamesResolved();
+                }
+            }
+        };
+        mPrewarmTask.execute();
+    }
+
+    // 取消所有等待中的查询，不再回调
+    public void cancel() {
+        mHandler.removeCallbacks(mStartBatch);
+        mPending.clear();
+        mRequested.clear();
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+        if (mPrewarmTask != null) {
+            mPrewarmTask.cancel(false);
+            mPrewarmTask = null;
+        }
+    }
+
+    private void startBatch() {
+        if (mPending.isEmpty()) {
+            return;
+        }
+        final ArrayList<String> batch = new ArrayList<String>(mPending);
+        mPending.clear();
+        mTask = new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                return !Contact.getContacts(mContext, batch).isEmpty();
+            }
+
+            @Override
+            protected void onPostExecute(Boolean found) {
+                mTask = null;
+                if (found) {
+                    mListener.onNamesResolved(); // 刷新列表，显示查到的名称
+                }
+                if (!mPending.isEmpty()) {
+                    startBatch(); // 查询期间又加入的号码
+                }
+            }
+        };
+        mTask.execute();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.ui;
+
+import android.os.Handler;
+import android.util.Log;
+
+import net.micode.notes.model.WorkingNote;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * NoteAutoSaver 在后台线程中保存正在编辑的笔记
+ * 编辑时每次修改都会推迟自动保存，停止输入 AUTO_SAVE_DELAY 毫秒后才保存一次，连续的修改合并为一次写入
+ * 内容与上次保存的相同时 WorkingNote 会跳过写入
+ * 所有编辑界面共用一个保存线程，保存按提交的顺序执行；离开编辑界面时会提交最后一次保存，
+ * 界面不可见后由 flush 等待它写入完成，之后进程可能随时被回收。
+ * 需要立即得到结果的调用者使用 saveNow，它会等待之前提交的保存全部完成
+ */
+class NoteAutoSaver {
+    private static final String TAG = "NoteAutoSaver";
+
+    private static final long AUTO_SAVE_DELAY = 2000; // 停止输入两秒后自动保存
+
+    private static final ExecutorService sSaveExecutor = Executors.newSingleThreadExecutor();
+
+    // 在UI线程中把编辑器的内容交给 WorkingNote，并返回要保存的笔记
+    interface Callback {
+        WorkingNote onCollectWorkingText();
+    }
+
+    private final Handler mHandler = new Handler();
+
+    private final Callback mCallback;
+
+    private final Runnable mAutoSave = new Runnable() {
+        public void run() {
+            saveInBackground();
+        }
+    };
+
+    NoteAutoSaver(Callback callback) {
+        mCallback = callback;
+    }
+
+    // 内容发生变化，推迟自动保存
+    public void schedule() {
+        mHandler.removeCallbacks(mAutoSave);
+        mHandler.postDelayed(mAutoSave, AUTO_SAVE_DELAY);
+    }
+
+    // 取消尚未开始的自动保存
+    public void cancel() {
+        mHandler.removeCallbacks(mAutoSave);
+    }
+
+    // 立即在后台保存，返回笔记是否有需要保存的修改
+    public boolean saveInBackground() {
+        mHandler.removeCallbacks(mAutoSave);
+        final WorkingNote note = mCallback.onCollectWorkingText();
+        if (note == null || !note.hasUnsavedChanges()) {
+            return false;
+        }
+        sSaveExecutor.execute(new Runnable() {
+            public void run() {
+                note.saveNote();
+            }
+        });
+        return true;
+    }
+
+    // 等待之前提交的保存完成后再保存一次，返回是否保存成功
+    public boolean saveNow() {
+        mHandler.removeCallbacks(mAutoSave);
+        final WorkingNote note = mCallback.onCollectWorkingText();
+        if (note == null) {
+            return false;
+        }
+        Boolean saved = await(new Callable<Boolean>() {
+            public Boolean call() {
+                return note.saveNote();
+            }
+        });
+        return saved != null && saved;
+    }
+
+    // 等待之前提交的保存完成，仍有未保存的修改时再保存一次，返回修改是否都已写入
+    public boolean flush() {
+        mHandler.removeCallbacks(mAutoSave);
+        final WorkingNote note = mCallback.onCollectWorkingText();
+        if (note == null) {
+            return true;
+        }
+        Boolean saved = await(new Callable<Boolean>() {
+            public Boolean call() {
+                return !note.hasUnsavedChanges() || note.saveNote();
+            }
+        });
+        return saved != null && saved;
+    }
+
+    // 等待之前提交的保存全部完成
+    public void waitForPendingSaves() {
+        await(new Callable<Boolean>() {
+            public Boolean call() {
+                return true;
+            }
+        });
+    }
+
+    private Boolean await(Callable<Boolean> task) {
+        try {
+            return sSaveExecutor.submit(task).get();
+        } catch (InterruptedException e) {
+            Log.e(TAG, e.toString());
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Save note failed", e.getCause());
+        }
+        return null;
+    }
+}
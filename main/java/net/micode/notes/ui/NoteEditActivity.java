@@ -17,44 +17,37 @@
 package net.micode.notes.ui;
 
 import android.app.Activity;
-import android.app.AlarmManager;
 import android.app.AlertDialog;
-import android.app.PendingIntent;
 import android.app.SearchManager;
 import android.appwidget.AppWidgetManager;
-import android.content.ContentUris;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.graphics.Paint;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
-import android.text.Spannable;
-import android.text.SpannableString;
+import android.text.Editable;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.text.format.DateUtils;
-import android.text.style.BackgroundColorSpan;
 import android.util.Log;
-import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.WindowManager;
-import android.widget.CheckBox;
-import android.widget.CompoundButton;
-import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.EditText;
 import android.widget.ImageView;
-import android.widget.LinearLayout;
+import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.CheckItem;
 import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.model.ChecklistItems;
 import net.micode.notes.model.WorkingNote;
 import net.micode.notes.model.WorkingNote.NoteSettingChangedListener;
 import net.micode.notes.tool.DataUtils;
@@ -68,8 +61,6 @@ import net.micode.notes.widget.NoteWidgetProvider_4x;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 
 // 头部视图持有者，包含笔记修改时间、提醒图标、提醒日期和设置背景颜色的按钮
@@ -162,15 +153,35 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     private static final int SHORTCUT_ICON_TITLE_MAX_LEN = 10;
 
     // 选中和未选中标签的常量
-    public static final String TAG_CHECKED = String.valueOf('\u221A');
-    public static final String TAG_UNCHECKED = String.valueOf('\u25A1');
+    public static final String TAG_CHECKED = CheckItem.TAG_CHECKED;
+    public static final String TAG_UNCHECKED = CheckItem.TAG_UNCHECKED;
 
-    // 编辑文本的LinearLayout列表
-    private LinearLayout mEditTextList;
+    // 清单模式下的条目列表，只为可见的条目创建视图
+    private ListView mEditTextList;
+
+    private ChecklistAdapter mChecklistAdapter;
+
+    // 文本模式下包含编辑器的滚动视图
+    private View mNoteScrollView;
+
+    private NoteAutoSaver mAutoSaver; // 在后台自动保存笔记
+
+    // 内容变化时推迟自动保存
+    private final TextWatcher mAutoSaveWatcher = new TextWatcher() {
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+        }
+
+        public void afterTextChanged(Editable s) {
+            mAutoSaver.schedule();
+        }
+    };
 
     // 用户查询字符串
     private String mUserQuery;
-    private Pattern mPattern;// 用于处理用户查询的正则表达式模式
+    private NoteHighlighter mHighlighter; // 高亮搜索词，不是从搜索结果打开时为null
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -207,6 +218,10 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     private boolean initActivityState(Intent intent) {
         // 初始化活动状态，根据Intent的不同操作执行不同逻辑
         mWorkingNote = null;
+        if (mHighlighter != null) {
+            mHighlighter.cancel();
+            mHighlighter = null;
+        }
         if (TextUtils.equals(Intent.ACTION_VIEW, intent.getAction())) {
             // 处理查看笔记的情况
             long noteId = intent.getLongExtra(Intent.EXTRA_UID, 0);
@@ -218,6 +233,8 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             if (intent.hasExtra(SearchManager.EXTRA_DATA_KEY)) {
                 noteId = Long.parseLong(intent.getStringExtra(SearchManager.EXTRA_DATA_KEY));
                 mUserQuery = intent.getStringExtra(SearchManager.USER_QUERY);
+                mHighlighter = new NoteHighlighter(mUserQuery,
+                        getResources().getColor(R.color.user_query_highlight));
             }
 
             if (!DataUtils.visibleInNoteDatabase(getContentResolver(), noteId, Notes.TYPE_NOTE)) {
@@ -296,9 +313,9 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         mNoteEditor.setTextAppearance(this, TextAppearanceResources
                 .getTexAppearanceResource(mFontSizeId));
         if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
-            switchToListMode(mWorkingNote.getContent());
+            switchToListMode();
         } else {
-            mNoteEditor.setText(getHighlightQueryResult(mWorkingNote.getContent(), mUserQuery));
+            setNoteEditorText(mWorkingNote.getContent());
             mNoteEditor.setSelection(mNoteEditor.getText().length());
         }
         for (Integer id : sBgSelectorSelectionMap.keySet()) {
@@ -423,19 +440,59 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         if(mFontSizeId >= TextAppearanceResources.getResourcesSize()) {
             mFontSizeId = ResourceParser.BG_DEFAULT_FONT_SIZE;
         }
-        mEditTextList = (LinearLayout) findViewById(R.id.note_edit_list);
+        mNoteScrollView = findViewById(R.id.sv_note_scroll);
+        mEditTextList = (ListView) findViewById(R.id.note_edit_list);
+        mEditTextList.setItemsCanFocus(true);
+        mChecklistAdapter = new ChecklistAdapter(this, new ChecklistAdapter.Callback() {
+            public CharSequence getDisplayText(String text) {
+                return mHighlighter != null ? mHighlighter.highlight(text) : text;
+            }
+
+            public void onItemChanged() {
+                mAutoSaver.schedule();
+            }
+        }, this);
+        mEditTextList.setAdapter(mChecklistAdapter);
+        mAutoSaver = new NoteAutoSaver(new NoteAutoSaver.Callback() {
+            public WorkingNote onCollectWorkingText() {
+                if (mWorkingNote == null) {
+                    return null;
+                }
+                getWorkingText();
+                return mWorkingNote;
+            }
+        });
+        mNoteEditor.addTextChangedListener(mAutoSaveWatcher);
     }
 
     @Override
     // 在活动暂停时保存笔记，并清理设置状态
     protected void onPause() {
         super.onPause();
-        if(saveNote()) {
-            Log.d(TAG, "Note data was saved with length:" + mWorkingNote.getContent().length());
+        // 离开时在后台保存最后的修改，不阻塞界面
+        if (mAutoSaver.saveInBackground()) {
+            Log.d(TAG, "Note data is saving with length:" + mWorkingNote.getContent().length());
         }
         clearSettingState();
     }
 
+    @Override
+    // 界面不可见后进程可能被回收，等待 onPause 提交的保存写入完成
+    protected void onStop() {
+        super.onStop();
+        if (!mAutoSaver.flush()) {
+            Log.e(TAG, "Failed to save the note when leaving the editor");
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mHighlighter != null) {
+            mHighlighter.cancel(); // 停止在后台查找搜索词
+        }
+        super.onDestroy();
+    }
+
     // 更新小部件显示，如果有关联的小部件
     private void updateWidget() {
         Intent intent = new Intent(AppWidgetManager.ACTION_APPWIDGET_UPDATE);
@@ -474,8 +531,8 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             mSharedPrefs.edit().putInt(PREFERENCE_FONT_SIZE, mFontSizeId).commit();
             findViewById(sFontSelectorSelectionMap.get(mFontSizeId)).setVisibility(View.VISIBLE);
             if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
-                getWorkingText();
-                switchToListMode(mWorkingNote.getContent());
+                mChecklistAdapter.setTextAppearance(TextAppearanceResources
+                        .getTexAppearanceResource(mFontSizeId));
             } else {
                 mNoteEditor.setTextAppearance(this,
                         TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
@@ -491,7 +548,9 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             return;
         }
 
-        saveNote();
+        if (mAutoSaver.saveInBackground()) {
+            setResult(RESULT_OK);
+        }
         super.onBackPressed();
     }
 
@@ -569,6 +628,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
                 findViewById(sFontSelectorSelectionMap.get(mFontSizeId)).setVisibility(View.VISIBLE);
                 break;
             case R.id.menu_list_mode:
+                getWorkingText();
                 mWorkingNote.setCheckListMode(mWorkingNote.getCheckListMode() == 0 ?
                         TextNote.MODE_CHECK_LIST : 0);
                 break;
@@ -629,6 +689,9 @@ public class NoteEditActivity extends Activity implements OnClickListener,
 
     // 删除当前笔记，如果在数据库中存在。如果处于同步模式，将笔记移动到垃圾箱而不是直接删除。
     private void deleteCurrentNote() {
+        // 等待正在进行的保存完成，避免删除后又被保存回来
+        mAutoSaver.cancel();
+        mAutoSaver.waitForPendingSaves();
         if (mWorkingNote.existInDatabase()) {
             HashSet<Long> ids = new HashSet<Long>();
             long id = mWorkingNote.getNoteId();
@@ -665,16 +728,8 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             saveNote();
         }
         if (mWorkingNote.getNoteId() > 0) {
-            Intent intent = new Intent(this, AlarmReceiver.class);
-            intent.setData(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, mWorkingNote.getNoteId()));
-            PendingIntent pendingIntent = PendingIntent.getBroadcast(this, 0, intent, 0);
-            AlarmManager alarmManager = ((AlarmManager) getSystemService(ALARM_SERVICE));
             showAlertHeader();
-            if(!set) {
-                alarmManager.cancel(pendingIntent);
-            } else {
-                alarmManager.set(AlarmManager.RTC_WAKEUP, date, pendingIntent);
-            }
+            AlarmScheduler.onAlertChanged(this, mWorkingNote.getNoteId(), set ? date : 0);
         } else {
             /**
              * There is the condition that user has input nothing (the note is
@@ -692,177 +747,99 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     }
 
     // 当用户删除一个编辑框时调用，用于处理笔记内容的更新
-    // 删除编辑框并将文本内容追加到前一个编辑框
+    // 删除条目并将文本内容追加到前一个条目
     public void onEditTextDelete(int index, String text) {
-        int childCount = mEditTextList.getChildCount();
-        if (childCount == 1) {
+        ChecklistItems items = mChecklistAdapter.getItems();
+        if (items.size() == 1 || index >= items.size()) {
             return;
         }
 
-        for (int i = index + 1; i < childCount; i++) {
-            ((NoteEditText) mEditTextList.getChildAt(i).findViewById(R.id.et_edit_text))
-                    .setIndex(i - 1);
-        }
-
-        mEditTextList.removeViewAt(index);
-        NoteEditText edit = null;
-        if(index == 0) {
-            edit = (NoteEditText) mEditTextList.getChildAt(0).findViewById(
-                    R.id.et_edit_text);
-        } else {
-            edit = (NoteEditText) mEditTextList.getChildAt(index - 1).findViewById(
-                    R.id.et_edit_text);
-        }
-        int length = edit.length();
-        edit.append(text);
-        edit.requestFocus();
-        edit.setSelection(length);
+        items.remove(index);
+        int target = index == 0 ? 0 : index - 1;
+        int length = items.getText(target).length();
+        items.setText(target, items.getText(target) + text);
+        showListItem(target, length);
     }
 
-    // 当用户在编辑文本框中按下回车时调用。这个方法用于在指定位置插入一个新的编辑框，并更新后续编辑框的索引。
+    // 当用户在编辑文本框中按下回车时调用。这个方法用于在指定位置插入一个新的条目，后续条目的位置由适配器重新绑定。
     public void onEditTextEnter(int index, String text) {
         /**
          * Should not happen, check for debug
          */
-        if(index > mEditTextList.getChildCount()) {
-            Log.e(TAG, "Index out of mEditTextList boundrary, should not happen");
-        }
-
-        View view = getListItem(text, index);
-        mEditTextList.addView(view, index);
-        NoteEditText edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
-        edit.requestFocus();
-        edit.setSelection(0);
-        for (int i = index + 1; i < mEditTextList.getChildCount(); i++) {
-            ((NoteEditText) mEditTextList.getChildAt(i).findViewById(R.id.et_edit_text))
-                    .setIndex(i);
-        }
-    }
-
-    // 将笔记的编辑模式从文本模式切换到清单模式。这个方法会解析传入的文本，将每一行文本转换为一个带有复选框的列表项。
-    private void switchToListMode(String text) {
-        mEditTextList.removeAllViews();
-        String[] items = text.split("\n");
-        int index = 0;
-        for (String item : items) {
-            if(!TextUtils.isEmpty(item)) {
-                mEditTextList.addView(getListItem(item, index));
-                index++;
-            }
+        ChecklistItems items = mChecklistAdapter.getItems();
+        if(index > items.size()) {
+            Log.e(TAG, "Index out of checklist boundrary, should not happen");
+            index = items.size();
         }
-        mEditTextList.addView(getListItem("", index));
-        mEditTextList.getChildAt(index).findViewById(R.id.et_edit_text).requestFocus();
 
-        mNoteEditor.setVisibility(View.GONE);
-        mEditTextList.setVisibility(View.VISIBLE);
+        items.add(index, text);
+        showListItem(index, 0);
     }
 
-    // 根据用户的查询字符串，高亮显示笔记内容中与查询字符串匹配的部分。这个方法返回一个`Spannable`对象，其中包含了高亮显示的结果。
-    private Spannable getHighlightQueryResult(String fullText, String userQuery) {
-        SpannableString spannable = new SpannableString(fullText == null ? "" : fullText);
-        if (!TextUtils.isEmpty(userQuery)) {
-            mPattern = Pattern.compile(userQuery);
-            Matcher m = mPattern.matcher(fullText);
-            int start = 0;
-            while (m.find(start)) {
-                spannable.setSpan(
-                        new BackgroundColorSpan(this.getResources().getColor(
-                                R.color.user_query_highlight)), m.start(), m.end(),
-                        Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
-                start = m.end();
-            }
+    // 刷新清单并让指定条目获得焦点，条目不可见时先滚动到该条目
+    private void showListItem(int position, int selection) {
+        mChecklistAdapter.requestFocus(position, selection);
+        mChecklistAdapter.notifyDataSetChanged();
+        if (position < mEditTextList.getFirstVisiblePosition()
+                || position > mEditTextList.getLastVisiblePosition()) {
+            mEditTextList.setSelection(position);
         }
-        return spannable;
+        mAutoSaver.schedule();
     }
 
-    // 创建一个新的列表项视图。这个方法根据给定的文本和索引创建一个包含复选框和编辑框的视图，并设置相应的监听器和样式。
-    private View getListItem(String item, int index) {
-        View view = LayoutInflater.from(this).inflate(R.layout.note_edit_list_item, null);
-        final NoteEditText edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
-        edit.setTextAppearance(this, TextAppearanceResources.getTexAppearanceResource(mFontSizeId));
-        CheckBox cb = ((CheckBox) view.findViewById(R.id.cb_edit_item));
-        cb.setOnCheckedChangeListener(new OnCheckedChangeListener() {
-            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-                if (isChecked) {
-                    edit.setPaintFlags(edit.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
-                } else {
-                    edit.setPaintFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
-                }
-            }
-        });
+    // 将笔记的编辑模式从文本模式切换到清单模式。列表显示笔记的清单条目，只为可见的条目创建视图。
+    private void switchToListMode() {
+        ChecklistItems items = mWorkingNote.getChecklist();
+        mChecklistAdapter.setTextAppearance(TextAppearanceResources
+                .getTexAppearanceResource(mFontSizeId));
+        mChecklistAdapter.requestFocus(items.size() - 1, 0);
+        mChecklistAdapter.setItems(items);
+        mEditTextList.setSelection(items.size() - 1);
 
-        if (item.startsWith(TAG_CHECKED)) {
-            cb.setChecked(true);
-            edit.setPaintFlags(edit.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
-            item = item.substring(TAG_CHECKED.length(), item.length()).trim();
-        } else if (item.startsWith(TAG_UNCHECKED)) {
-            cb.setChecked(false);
-            edit.setPaintFlags(Paint.ANTI_ALIAS_FLAG | Paint.DEV_KERN_TEXT_FLAG);
-            item = item.substring(TAG_UNCHECKED.length(), item.length()).trim();
-        }
+        mNoteScrollView.setVisibility(View.GONE);
+        mEditTextList.setVisibility(View.VISIBLE);
+    }
 
-        edit.setOnTextViewChangeListener(this);
-        edit.setIndex(index);
-        edit.setText(getHighlightQueryResult(item, mUserQuery));
-        return view;
+    // 显示笔记内容，从搜索结果打开时在后台查找搜索词，找到后再高亮显示
+    private void setNoteEditorText(String text) {
+        if (mHighlighter != null) {
+            mHighlighter.highlightAsync(mNoteEditor, text);
+        } else {
+            mNoteEditor.setText(text);
+        }
     }
 
-    // 当列表模式下某个编辑框的文本发生变化时调用。这个方法根据编辑框是否有文本来显示或隐藏对应的复选框。
+    // 当列表模式下某个编辑框的焦点或文本发生变化时调用。这个方法根据编辑框是否有文本来显示或隐藏对应的复选框。
     public void onTextChange(int index, boolean hasText) {
-        if (index >= mEditTextList.getChildCount()) {
+        if (index >= mChecklistAdapter.getCount()) {
             Log.e(TAG, "Wrong index, should not happen");
             return;
         }
-        if(hasText) {
-            mEditTextList.getChildAt(index).findViewById(R.id.cb_edit_item).setVisibility(View.VISIBLE);
-        } else {
-            mEditTextList.getChildAt(index).findViewById(R.id.cb_edit_item).setVisibility(View.GONE);
-        }
+        mChecklistAdapter.setCheckBoxVisible(mEditTextList, index, hasText);
     }
 
     // 当笔记的清单模式发生变化时调用。这个方法根据新的模式是文本模式还是清单模式来更新UI。
+    // 文本与清单条目之间的转换已由 WorkingNote 完成
     public void onCheckListModeChanged(int oldMode, int newMode) {
         if (newMode == TextNote.MODE_CHECK_LIST) {
-            switchToListMode(mNoteEditor.getText().toString());
+            switchToListMode();
         } else {
-            if (!getWorkingText()) {
-                mWorkingNote.setWorkingText(mWorkingNote.getContent().replace(TAG_UNCHECKED + " ",
-                        ""));
-            }
-            mNoteEditor.setText(getHighlightQueryResult(mWorkingNote.getContent(), mUserQuery));
+            setNoteEditorText(mWorkingNote.getContent());
             mEditTextList.setVisibility(View.GONE);
-            mNoteEditor.setVisibility(View.VISIBLE);
+            mNoteScrollView.setVisibility(View.VISIBLE);
         }
     }
 
-    // 获取当前所有编辑框中的文本，并将其合并成一个字符串。这个方法用于保存笔记内容前的文本收集。
-    private boolean getWorkingText() {
-        boolean hasChecked = false;
-        if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < mEditTextList.getChildCount(); i++) {
-                View view = mEditTextList.getChildAt(i);
-                NoteEditText edit = (NoteEditText) view.findViewById(R.id.et_edit_text);
-                if (!TextUtils.isEmpty(edit.getText())) {
-                    if (((CheckBox) view.findViewById(R.id.cb_edit_item)).isChecked()) {
-                        sb.append(TAG_CHECKED).append(" ").append(edit.getText()).append("\n");
-                        hasChecked = true;
-                    } else {
-                        sb.append(TAG_UNCHECKED).append(" ").append(edit.getText()).append("\n");
-                    }
-                }
-            }
-            mWorkingNote.setWorkingText(sb.toString());
-        } else {
+    // 获取文本模式下编辑器中的文本。清单模式下条目的修改已经直接写入笔记的条目，无需收集。
+    private void getWorkingText() {
+        if (mWorkingNote.getCheckListMode() != TextNote.MODE_CHECK_LIST) {
             mWorkingNote.setWorkingText(mNoteEditor.getText().toString());
         }
-        return hasChecked;
     }
 
-    // 保存当前笔记。这个方法会先调用`getWorkingText`方法获取笔记文本，然后保存笔记，并根据保存结果返回一个布尔值。
+    // 立即保存当前笔记。获取笔记文本后等待后台的保存完成再保存，用于需要立即得到笔记ID的场景，并根据保存结果返回一个布尔值。
     private boolean saveNote() {
-        getWorkingText();
-        boolean saved = mWorkingNote.saveNote();
+        boolean saved = mAutoSaver.saveNow();
         if (saved) {
             /**
              * There are two modes from List view to edit view, open one note,
@@ -893,8 +870,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
             shortcutIntent.setAction(Intent.ACTION_VIEW);
             shortcutIntent.putExtra(Intent.EXTRA_UID, mWorkingNote.getNoteId());
             sender.putExtra(Intent.EXTRA_SHORTCUT_INTENT, shortcutIntent);
-            sender.putExtra(Intent.EXTRA_SHORTCUT_NAME,
-                    makeShortcutIconTitle(mWorkingNote.getContent()));
+            sender.putExtra(Intent.EXTRA_SHORTCUT_NAME, makeShortcutIconTitle());
             sender.putExtra(Intent.EXTRA_SHORTCUT_ICON_RESOURCE,
                     Intent.ShortcutIconResource.fromContext(this, R.drawable.icon_app));
             sender.putExtra("duplicate", true);
@@ -913,9 +889,16 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     }
 
     // 根据笔记内容创建快捷方式的标题。这个方法会处理内容字符串，确保标题不会太长，并移除已完成和未完成标记。
-    private String makeShortcutIconTitle(String content) {
-        content = content.replace(TAG_CHECKED, "");
-        content = content.replace(TAG_UNCHECKED, "");
+    // 清单模式下直接使用第一个条目，无需序列化整个清单
+    private String makeShortcutIconTitle() {
+        String content;
+        if (mWorkingNote.getCheckListMode() == TextNote.MODE_CHECK_LIST) {
+            content = mWorkingNote.getChecklist().getFirstText();
+        } else {
+            content = mWorkingNote.getContent();
+            content = content.replace(TAG_CHECKED, "");
+            content = content.replace(TAG_UNCHECKED, "");
+        }
         return content.length() > SHORTCUT_ICON_TITLE_MAX_LEN ? content.substring(0,
                 SHORTCUT_ICON_TITLE_MAX_LEN) : content;
     }
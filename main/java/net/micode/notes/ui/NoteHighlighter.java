@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.os.AsyncTask;
+import android.text.Editable;
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.TextUtils;
+import android.text.style.BackgroundColorSpan;
+import android.widget.EditText;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * NoteHighlighter 高亮笔记中与搜索词匹配的文字
+ * 搜索词按空白拆分后逐个用 Pattern.quote 转义，与搜索时一样按字面、不区分大小写匹配，
+ * 用户输入的正则元字符不会导致异常；所有搜索词合并为一个模式，只在创建时编译一次，匹配器也被重复使用
+ * 长笔记在后台线程中查找匹配位置，完成后再在UI线程中给编辑器加上高亮
+ */
+class NoteHighlighter {
+    private final int mColor;
+
+    private final Pattern mPattern; // 没有搜索词时为null
+
+    private final Matcher mMatcher; // 只在后台查找时使用，同步高亮使用各自的匹配器，不必等待后台任务
+
+    private AsyncTask<Void, Void, int[]> mTask; // 正在查找匹配位置的后台任务
+
+    NoteHighlighter(String userQuery, int color) {
+        mColor = color;
+        mPattern = compile(userQuery);
+        mMatcher = mPattern == null ? null : mPattern.matcher("");
+    }
+
+    private static Pattern compile(String userQuery) {
+        if (TextUtils.isEmpty(userQuery)) {
+            return null;
+        }
+        LinkedHashSet<String> terms = new LinkedHashSet<String>();
+        for (String term : userQuery.trim().split("\\s+")) {
+            if (term.length() > 0) {
+                terms.add(term);
+            }
+        }
+        if (terms.isEmpty()) {
+            return null;
+        }
+        // 较长的词排在前面，使 "note" 与 "notes" 同时出现时优先匹配完整的 "notes"
+        ArrayList<String> sorted = new ArrayList<String>(terms);
+        Collections.sort(sorted, new Comparator<String>() {
+            public int compare(String lhs, String rhs) {
+                return rhs.length() - lhs.length();
+            }
+        });
+        StringBuilder regex = new StringBuilder();
+        for (String term : sorted) {
+            if (regex.length() > 0) {
+                regex.append('|');
+            }
+            regex.append(Pattern.quote(term));
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+
+    // 在后台线程中用共用的匹配器查找
+    private synchronized int[] findMatches(CharSequence text) {
+        int[] result = findMatches(mMatcher.reset(text));
+        mMatcher.reset("");
+        return result;
+    }
+
+    // 返回所有匹配的起止位置，依次为 start0, end0, start1, end1 ...
+    private static int[] findMatches(Matcher matcher) {
+        int[] offsets = new int[16];
+        int count = 0;
+        while (matcher.find()) {
+            if (count + 2 > offsets.length) {
+                int[] grown = new int[offsets.length * 2];
+                System.arraycopy(offsets, 0, grown, 0, count);
+                offsets = grown;
+            }
+            offsets[count++] = matcher.start();
+            offsets[count++] = matcher.end();
+        }
+        int[] result = new int[count];
+        System.arraycopy(offsets, 0, result, 0, count);
+        return result;
+    }
+
+    private void applySpans(Spannable text, int[] offsets) {
+        for (int i = 0; i < offsets.length; i += 2) {
+            text.setSpan(new BackgroundColorSpan(mColor), offsets[i], offsets[i + 1],
+                    Spannable.SPAN_INCLUSIVE_EXCLUSIVE);
+        }
+    }
+
+    // 同步地返回高亮后的文字，用于清单条目这样的短文本
+    public CharSequence highlight(String text) {
+        SpannableString spannable = new SpannableString(text == null ? "" : text);
+        if (mPattern != null && spannable.length() > 0) {
+            applySpans(spannable, findMatches(mPattern.matcher(text)));
+        }
+        return spannable;
+    }
+
+    // 立即显示文字，在后台查找匹配位置后再给编辑器加上高亮，期间文字被修改时放弃本次高亮
+    public void highlightAsync(final EditText editor, String text) {
+        cancel();
+        final String content = text == null ? "" : text;
+        editor.setText(content);
+        if (mMatcher == null || content.length() == 0) {
+            return;
+        }
+        mTask = new AsyncTask<Void, Void, int[]>() {
+            @Override
+            protected int[] doInBackground(Void... params) {
+                return findMatches(content);
+            }
+
+            @Override
+            protected void onPostExecute(int[] offsets) {
+                mTask = null;
+                Editable editable = editor.getText();
+                if (offsets.length > 0 && TextUtils.equals(editable, content)) {
+                    applySpans(editable, offsets);
+                }
+            }
+        };
+        mTask.execute();
+    }
+
+    // 取消尚未完成的高亮
+    public void cancel() {
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+    }
+}
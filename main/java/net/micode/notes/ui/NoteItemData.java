@@ -17,13 +17,14 @@
 package net.micode.notes.ui;
 
 import android.content.Context;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
 import android.text.TextUtils;
 
 import net.micode.notes.data.Contact;
 import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.CallNote;
 import net.micode.notes.data.Notes.NoteColumns;
-import net.micode.notes.tool.DataUtils;
 
 
 // NoteItemData 类封装了笔记应用中每个笔记项的数据。
@@ -42,6 +43,11 @@ public class NoteItemData {
         NoteColumns.TYPE,
         NoteColumns.WIDGET_ID,
         NoteColumns.WIDGET_TYPE,
+        // 通话记录笔记的电话号码随列表一起查出，不必为每一行单独查询
+        "(CASE WHEN " + NoteColumns.PARENT_ID + "=" + Notes.ID_CALL_RECORD_FOLDER
+            + " THEN (SELECT " + CallNote.PHONE_NUMBER + " FROM data WHERE "
+            + CallNote.NOTE_ID + "=note." + NoteColumns.ID + " AND " + CallNote.MIME_TYPE
+            + "='" + CallNote.CONTENT_ITEM_TYPE + "' LIMIT 1) END) AS " + CallNote.PHONE_NUMBER,
     };
 
     private static final int ID_COLUMN                    = 0;
@@ -56,6 +62,7 @@ public class NoteItemData {
     private static final int TYPE_COLUMN                  = 9;
     private static final int WIDGET_ID_COLUMN             = 10;
     private static final int WIDGET_TYPE_COLUMN           = 11;
+    private static final int PHONE_NUMBER_COLUMN          = 12;
 
     private long mId; // 笔记ID
     private long mAlertDate; // 提醒日期
@@ -65,12 +72,17 @@ public class NoteItemData {
     private long mModifiedDate;
     private int mNotesCount;
     private long mParentId;
-    private String mSnippet;
+    private String mSnippet; // 摘要，需要时才由 mSnippetBuffer 创建
+    private final CharArrayBuffer mSnippetBuffer = new CharArrayBuffer(128); // 复用的摘要缓冲区，绑定时不分配新字符串
+    private int mSnippetLength; // 摘要的长度
+    private int mTitleStart; // 格式化摘要（去掉首尾空白后的第一行）在缓冲区中的起始位置
+    private int mTitleEnd; // 格式化摘要在缓冲区中的结束位置
     private int mType;
     private int mWidgetId;
     private int mWidgetType;
     private String mName;
     private String mPhoneNumber;
+    private boolean mNameResolved = true; // 联系人名称是否已从缓存中得到
 
     private boolean mIsLastItem;
     private boolean mIsFirstItem;
@@ -79,30 +91,84 @@ public class NoteItemData {
     private boolean mIsMultiNotesFollowingFolder;
  
     // 根据数据库查询结果Cursor初始化NoteItemData实例。
-    // 初始化笔记的各种属性，如ID、警告日期、背景颜色等。
-    // 特别处理电话记录笔记，从联系人数据库中获取电话号码对应的名称。
     public NoteItemData(Context context, Cursor cursor) {
-        mId = cursor.getLong(ID_COLUMN);
+        load(cursor);
+    }
+
+    // 创建一个可以复用的空实例，由列表项在每次绑定时调用 load 填充
+    NoteItemData() {
+    }
+
+    // 用于保存另一个实例的快照，之后原实例被复用时快照不受影响
+    public NoteItemData(NoteItemData other) {
+        mId = other.mId;
+        mAlertDate = other.mAlertDate;
+        mBgColorId = other.mBgColorId;
+        mCreatedDate = other.mCreatedDate;
+        mHasAttachment = other.mHasAttachment;
+        mModifiedDate = other.mModifiedDate;
+        mNotesCount = other.mNotesCount;
+        mParentId = other.mParentId;
+        mSnippet = other.getSnippet();
+        mSnippetBuffer.data = other.mSnippetBuffer.data.clone();
+        mSnippetBuffer.sizeCopied = other.mSnippetBuffer.sizeCopied;
+        mSnippetLength = other.mSnippetLength;
+        mTitleStart = other.mTitleStart;
+        mTitleEnd = other.mTitleEnd;
+        mType = other.mType;
+        mWidgetId = other.mWidgetId;
+        mWidgetType = other.mWidgetType;
+        mName = other.mName;
+        mPhoneNumber = other.mPhoneNumber;
+        mNameResolved = other.mNameResolved;
+        mIsLastItem = other.mIsLastItem;
+        mIsFirstItem = other.mIsFirstItem;
+        mIsOnlyOneItem = other.mIsOnlyOneItem;
+        mIsOneNoteFollowingFolder = other.mIsOneNoteFollowingFolder;
+        mIsMultiNotesFollowingFolder = other.mIsMultiNotesFollowingFolder;
+    }
+
+    // 从Cursor的当前行读取数据，直接写入基本类型字段和复用的摘要缓冲区。
+    // 初始化笔记的各种属性，如ID、警告日期、背景颜色等。
+    // 特别处理电话记录笔记，电话号码来自查询结果，名称只从联系人缓存中获取，
+    // 缓存中没有时先显示电话号码，由 ContactNameResolver 在后台查询名称。
+    // 同一行再次绑定时沿用之前读取的电话号码和名称。
+    void load(Cursor cursor) {
+        long id = cursor.getLong(ID_COLUMN);
+        long parentId = cursor.getLong(PARENT_ID_COLUMN);
+        boolean sameRow = (id == mId && parentId == mParentId && mPhoneNumber != null);
+        mId = id;
         mAlertDate = cursor.getLong(ALERTED_DATE_COLUMN);
         mBgColorId = cursor.getInt(BG_COLOR_ID_COLUMN);
         mCreatedDate = cursor.getLong(CREATED_DATE_COLUMN);
         mHasAttachment = (cursor.getInt(HAS_ATTACHMENT_COLUMN) > 0) ? true : false;
         mModifiedDate = cursor.getLong(MODIFIED_DATE_COLUMN);
         mNotesCount = cursor.getInt(NOTES_COUNT_COLUMN);
-        mParentId = cursor.getLong(PARENT_ID_COLUMN);
-        mSnippet = cursor.getString(SNIPPET_COLUMN);
-        mSnippet = mSnippet.replace(NoteEditActivity.TAG_CHECKED, "").replace(
-                NoteEditActivity.TAG_UNCHECKED, "");
+        mParentId = parentId;
+        loadSnippet(cursor);
         mType = cursor.getInt(TYPE_COLUMN);
         mWidgetId = cursor.getInt(WIDGET_ID_COLUMN);
         mWidgetType = cursor.getInt(WIDGET_TYPE_COLUMN);
 
+        if (!sameRow || (mParentId == Notes.ID_CALL_RECORD_FOLDER && !mNameResolved)) {
+            loadCallName(cursor);
+        }
+        checkPostion(cursor);
+    }
+
+    private void loadCallName(Cursor cursor) {
         mPhoneNumber = "";
+        mName = null;
+        mNameResolved = true;
         if (mParentId == Notes.ID_CALL_RECORD_FOLDER) {
-            mPhoneNumber = DataUtils.getCallNumberByNoteId(context.getContentResolver(), mId);
+            mPhoneNumber = cursor.getString(PHONE_NUMBER_COLUMN);
+            if (mPhoneNumber == null) {
+                mPhoneNumber = "";
+            }
             if (!TextUtils.isEmpty(mPhoneNumber)) {
-                mName = Contact.getContact(context, mPhoneNumber);
+                mName = Contact.getCachedContact(mPhoneNumber);
                 if (mName == null) {
+                    mNameResolved = Contact.isCached(mPhoneNumber); // 已知没有匹配联系人时无需再查询
                     mName = mPhoneNumber;
                 }
             }
@@ -111,7 +177,33 @@ public class NoteItemData {
         if (mName == null) {
             mName = "";
         }
-        checkPostion(cursor);
+    }
+
+    // 把摘要复制到缓冲区中，并计算格式化摘要的范围，与 DataUtils.getFormattedSnippet 的结果一致
+    // 摘要在写入时已经去掉了清单标记，清单的摘要由条目拼接而成，本身不含标记
+    private void loadSnippet(Cursor cursor) {
+        cursor.copyStringToBuffer(SNIPPET_COLUMN, mSnippetBuffer);
+        char[] data = mSnippetBuffer.data;
+        int length = mSnippetBuffer.sizeCopied;
+        mSnippetLength = length;
+        mSnippet = null;
+
+        int start = 0;
+        int end = length;
+        while (start < end && data[start] <= ' ') {
+            start++;
+        }
+        while (end > start && data[end - 1] <= ' ') {
+            end--;
+        }
+        for (int i = start; i < end; i++) {
+            if (data[i] == '\n') {
+                end = i;
+                break;
+            }
+        }
+        mTitleStart = start;
+        mTitleEnd = end;
     }
 
     // 检查当前笔记在Cursor中的位置，设置是否是第一项、最后一项、唯一一项的标志。
@@ -159,6 +251,15 @@ public class NoteItemData {
         return mName;
     }
 
+    public String getPhoneNumber() {
+        return mPhoneNumber;
+    }
+
+    // 通话记录的联系人名称是否还需要在后台查询
+    public boolean needsNameResolution() {
+        return !mNameResolved;
+    }
+
     public boolean isFirst() {
         return mIsFirstItem;
     }
@@ -216,9 +317,26 @@ public class NoteItemData {
     }
 
     public String getSnippet() {
+        if (mSnippet == null) {
+            mSnippet = new String(mSnippetBuffer.data, 0, mSnippetLength);
+        }
         return mSnippet;
     }
 
+    // 格式化摘要所在的字符数组，与 getTitleStart、getTitleLength 一起传给 TextView.setText，
+    // 数组会在下次 load 时被改写，只能用于立即显示
+    char[] getTitleChars() {
+        return mSnippetBuffer.data;
+    }
+
+    int getTitleStart() {
+        return mTitleStart;
+    }
+
+    int getTitleLength() {
+        return mTitleEnd - mTitleStart;
+    }
+
     public boolean hasAlert() {
         return (mAlertDate > 0);
     }
@@ -232,4 +350,19 @@ public class NoteItemData {
     public static int getNoteType(Cursor cursor) {
         return cursor.getInt(TYPE_COLUMN);
     }
+
+    // 从Cursor中获取笔记的ID。
+    public static long getNoteId(Cursor cursor) {
+        return cursor.getLong(ID_COLUMN);
+    }
+
+    // 从Cursor中获取笔记的小部件ID。
+    public static int getWidgetId(Cursor cursor) {
+        return cursor.getInt(WIDGET_ID_COLUMN);
+    }
+
+    // 从Cursor中获取笔记的小部件类型。
+    public static int getWidgetType(Cursor cursor) {
+        return cursor.getInt(WIDGET_TYPE_COLUMN);
+    }
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import net.micode.notes.ui.NotesListAdapter.AppWidgetAttribute;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/*
+ * NoteSelection 以笔记ID记录列表中选中的笔记
+ * 选中的ID保存在有序的 long 数组中，查询用二分查找，选中数量就是数组长度，不需要遍历统计
+ * 全选时一次性写入所有ID后只排序一次
+ * 只有带小部件的笔记才会额外记录小部件属性，批量操作时不必再移动光标读取
+ */
+class NoteSelection {
+    private long[] mIds = new long[16]; // 选中的笔记ID，按升序排列
+
+    private int mSize; // 选中的数量
+
+    private final HashMap<Long, AppWidgetAttribute> mWidgets = new HashMap<Long, AppWidgetAttribute>(); // 选中笔记的小部件属性
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean contains(long id) {
+        return Arrays.binarySearch(mIds, 0, mSize, id) >= 0;
+    }
+
+    // 选中或取消选中一个笔记，返回选中状态是否发生变化
+    public boolean set(long id, boolean selected, AppWidgetAttribute widget) {
+        int index = Arrays.binarySearch(mIds, 0, mSize, id);
+        if (selected == (index >= 0)) {
+            return false;
+        }
+        if (selected) {
+            index = -index - 1;
+            ensureCapacity(mSize + 1);
+            System.arraycopy(mIds, index, mIds, index + 1, mSize - index);
+            mIds[index] = id;
+            mSize++;
+            if (widget != null) {
+                mWidgets.put(id, widget);
+            }
+        } else {
+            System.arraycopy(mIds, index + 1, mIds, index, mSize - index - 1);
+            mSize--;
+            mWidgets.remove(id);
+        }
+        return true;
+    }
+
+    // 用 count 个ID替换当前的选中状态，ids 数组会被排序
+    public void setAll(long[] ids, int count, HashMap<Long, AppWidgetAttribute> widgets) {
+        Arrays.sort(ids, 0, count);
+        ensureCapacity(count);
+        System.arraycopy(ids, 0, mIds, 0, count);
+        mSize = count;
+        mWidgets.clear();
+        mWidgets.putAll(widgets);
+    }
+
+    // 只保留 ids 中的 count 个ID，ids 数组会被排序
+    public void retain(long[] ids, int count) {
+        Arrays.sort(ids, 0, count);
+        int size = 0;
+        for (int i = 0; i < mSize; i++) {
+            long id = mIds[i];
+            if (Arrays.binarySearch(ids, 0, count, id) >= 0) {
+                mIds[size++] = id;
+            } else {
+                mWidgets.remove(id);
+            }
+        }
+        mSize = size;
+    }
+
+    public void clear() {
+        mSize = 0;
+        mWidgets.clear();
+    }
+
+    public HashSet<Long> getIds() {
+        HashSet<Long> ids = new HashSet<Long>(mSize * 2);
+        for (int i = 0; i < mSize; i++) {
+            ids.add(mIds[i]);
+        }
+        return ids;
+    }
+
+    public HashSet<AppWidgetAttribute> getWidgets() {
+        return new HashSet<AppWidgetAttribute>(mWidgets.values());
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mIds.length) {
+            mIds = Arrays.copyOf(mIds, Math.max(capacity, mIds.length * 2));
+        }
+    }
+}
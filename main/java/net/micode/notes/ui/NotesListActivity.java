@@ -28,6 +28,7 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
@@ -50,6 +51,8 @@ import android.view.View.OnClickListener;
 import android.view.View.OnCreateContextMenuListener;
 import android.view.View.OnTouchListener;
 import android.view.inputmethod.InputMethodManager;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.AdapterView.OnItemLongClickListener;
@@ -76,12 +79,21 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.HashSet;
 
 public class NotesListActivity extends Activity implements OnClickListener, OnItemLongClickListener {
     // 定义查询标识符
     private static final int FOLDER_NOTE_LIST_QUERY_TOKEN = 0; // 文件夹内笔记列表查询标识
     private static final int FOLDER_LIST_QUERY_TOKEN      = 1; // 文件夹列表查询标识
+    private static final int FOLDER_NOTE_PAGE_QUERY_TOKEN = 2; // 文件夹内笔记列表后续页查询标识
+    private static final int FOLDER_NOTE_COUNT_QUERY_TOKEN = 3; // 文件夹内笔记数量查询标识
+
+    // 笔记列表每页加载的条数
+    private static final int NOTES_LIST_PAGE_SIZE = 100;
+
+    // 距离已加载末尾还有多少条时开始加载下一页
+    private static final int NOTES_LIST_PREFETCH = 20;
 
     // 定义菜单项标识符
     private static final int MENU_FOLDER_DELETE = 0; // 删除文件夹菜单项
@@ -141,12 +153,42 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     // 当前焦点的笔记数据项
     private NoteItemData mFocusNoteDataItem;
 
-    // 查询条件常量
-    private static final String NORMAL_SELECTION = NoteColumns.PARENT_ID + "=?"; // 常规文件夹选择
-    private static final String ROOT_FOLDER_SELECTION = "(" + NoteColumns.TYPE + "<>"
+    // 当前查询的序号，用于丢弃切换文件夹或重新查询之前发出的查询结果
+    private int mQueryGeneration;
+
+    // 是否正在加载一页
+    private boolean mLoadingPage;
+
+    // 是否还有未加载的页
+    private boolean mHasMorePages;
+
+    // 全部加载完后要执行的选择菜单项（全选或反选），0 表示没有
+    private int mPendingSelectAction;
+
+    // 数据变化后重新查询，同一轮消息中的多次变化只查询一次
+    private final Runnable mReloadNotesList = new Runnable() {
+        public void run() {
+            startNotesListQuery(Math.max(NOTES_LIST_PAGE_SIZE, mNotesListAdapter.getCount()));
+        }
+    };
+
+    // 笔记列表的排序，_id 保证排序唯一，以便按键集分页
+    static final String NOTES_LIST_SORT_ORDER = NoteColumns.TYPE + " DESC,"
+            + NoteColumns.MODIFIED_DATE + " DESC," + NoteColumns.ID + " DESC";
+
+    // 按键集 (type, modified_date, _id) 取排在上一页最后一条之后的记录，不需要跳过前面的记录
+    static final String NEXT_PAGE_SELECTION = NoteColumns.TYPE + "<? OR ("
+            + NoteColumns.TYPE + "=? AND (" + NoteColumns.MODIFIED_DATE + "<? OR ("
+            + NoteColumns.MODIFIED_DATE + "=? AND " + NoteColumns.ID + "<?)))";
+
+    // 查询条件常量，测试中用来检查查询计划
+    static final String NORMAL_SELECTION = NoteColumns.PARENT_ID + "=?"; // 常规文件夹选择
+    static final String ROOT_FOLDER_SELECTION = "(" + NoteColumns.TYPE + "<>"
             + Notes.TYPE_SYSTEM + " AND " + NoteColumns.PARENT_ID + "=?)" + " OR ("
             + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER + " AND "
             + NoteColumns.NOTES_COUNT + ">0)"; // 根文件夹选择
+    static final String FOLDER_SELECTION = NoteColumns.TYPE + "=? AND " + NoteColumns.PARENT_ID
+            + "<>? AND " + NoteColumns.ID + "<>?"; // 移动笔记的目标文件夹选择
 
     // 请求码常量
     private final static int REQUEST_CODE_OPEN_NODE = 102; // 打开笔记的请求码
@@ -228,6 +270,12 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         startAsyncNotesListQuery();// 在Activity启动时开始异步加载笔记列表
     }
 
+    @Override
+    protected void onDestroy() {
+        mNotesListAdapter.cancelContactNameResolution(); // 停止在后台查询联系人名称
+        super.onDestroy();
+    }
+
      // 初始化资源和UI组件
     private void initResources() {
         mContentResolver = this.getContentResolver(); // 获取内容解析器
@@ -240,7 +288,25 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         mNotesListView.setOnItemClickListener(new OnListItemClickListener()); // 设置项点击监听器
         mNotesListView.setOnItemLongClickListener(this); // 设置长按监听器
         mNotesListAdapter = new NotesListAdapter(this); // 创建列表适配器
+        mNotesListAdapter.setOnContentChangedListener(new NotesListAdapter.OnContentChangedListener() {
+            public void onContentChanged() {
+                mNotesListView.removeCallbacks(mReloadNotesList);
+                mNotesListView.post(mReloadNotesList); // 在后台重新查询已加载的部分
+            }
+        });
         mNotesListView.setAdapter(mNotesListAdapter); // 设置适配器
+        mNotesListView.setOnScrollListener(new OnScrollListener() {
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                // 滚动到接近已加载的末尾时加载下一页
+                if (firstVisibleItem + visibleItemCount >= totalItemCount - NOTES_LIST_PREFETCH) {
+                    startNextPageQuery(NOTES_LIST_PAGE_SIZE);
+                }
+            }
+        });
         mAddNewNote = (Button) findViewById(R.id.btn_new_note); // 获取添加新笔记按钮
         mAddNewNote.setOnClickListener(this); // 设置点击监听器
         mAddNewNote.setOnTouchListener(new NewNoteOnTouchListener()); // 设置触摸监听器
@@ -281,8 +347,18 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                     R.menu.note_list_dropdown);
             mDropDownMenu.setOnDropdownMenuItemClickListener(new PopupMenu.OnMenuItemClickListener(){
                 public boolean onMenuItemClick(MenuItem item) {
-                    mNotesListAdapter.selectAll(!mNotesListAdapter.isAllSelected());
-                    updateMenu();
+                    int action = item.getItemId();
+                    if (action == R.id.action_select_all && mNotesListAdapter.isAllSelected()) {
+                        mNotesListAdapter.selectAll(false); // 取消全选不需要加载剩余的记录
+                        updateMenu();
+                        return true;
+                    }
+                    if (mHasMorePages) {
+                        mPendingSelectAction = action; // 先加载剩余的所有记录，加载完后再选择
+                        startNextPageQuery(0);
+                        return true;
+                    }
+                    applySelectAction(action);
                     return true;
                 }
 
@@ -290,6 +366,16 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
             return true;
         }
 
+        // 全选或反选已加载的所有笔记，列表只刷新一次
+        private void applySelectAction(int action) {
+            if (action == R.id.action_invert_selection) {
+                mNotesListAdapter.invertSelection();
+            } else {
+                mNotesListAdapter.selectAll(true);
+            }
+            updateMenu();
+        }
+
         private void updateMenu() {
             int selectedCount = mNotesListAdapter.getSelectedCount();
             // Update dropdown menu
@@ -318,6 +404,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         }
 
         public void onDestroyActionMode(ActionMode mode) {
+            mPendingSelectAction = 0;
             mNotesListAdapter.setChoiceMode(false);
             mNotesListView.setLongClickable(true);
             mAddNewNote.setVisibility(View.VISIBLE);
@@ -430,12 +517,61 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     };
 
     private void startAsyncNotesListQuery() {
-        String selection = (mCurrentFolderId == Notes.ID_ROOT_FOLDER) ? ROOT_FOLDER_SELECTION
+        startNotesListQuery(NOTES_LIST_PAGE_SIZE);
+    }
+
+    // 重新查询当前文件夹的前 limit 条记录，并用聚合查询统计笔记数量
+    private void startNotesListQuery(int limit) {
+        mNotesListView.removeCallbacks(mReloadNotesList);
+        mQueryGeneration++;
+        mLoadingPage = true;
+        mHasMorePages = false;
+        String selection = getNotesListSelection();
+        String[] selectionArgs = new String[] {
+            String.valueOf(mCurrentFolderId)
+        };
+        mBackgroundQueryHandler.startQuery(FOLDER_NOTE_LIST_QUERY_TOKEN, new int[] {
+                mQueryGeneration, limit
+        }, getLimitedUri(limit), NoteItemData.PROJECTION, selection, selectionArgs,
+                NOTES_LIST_SORT_ORDER);
+        mBackgroundQueryHandler.startQuery(FOLDER_NOTE_COUNT_QUERY_TOKEN, new int[] {
+                mQueryGeneration, 0
+        }, Notes.CONTENT_NOTE_URI, new String[] {
+            "COUNT(*)"
+        }, "(" + selection + ") AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE, selectionArgs,
+                null);
+    }
+
+    // 从已加载的最后一条记录之后开始加载 limit 条记录，limit 为0时加载剩余的所有记录
+    private void startNextPageQuery(int limit) {
+        Cursor cursor = mNotesListAdapter.getCursor();
+        if (mLoadingPage || !mHasMorePages || cursor == null || !cursor.moveToLast()) {
+            return;
+        }
+        // 直接读取键集所需的列，不构造 NoteItemData，以免查询通话记录的号码
+        String type = String.valueOf(NoteItemData.getNoteType(cursor));
+        String modifiedDate = cursor.getString(cursor.getColumnIndexOrThrow(NoteColumns.MODIFIED_DATE));
+        String id = cursor.getString(cursor.getColumnIndexOrThrow(NoteColumns.ID));
+        mLoadingPage = true;
+        mBackgroundQueryHandler.startQuery(FOLDER_NOTE_PAGE_QUERY_TOKEN, new int[] {
+                mQueryGeneration, limit
+        }, getLimitedUri(limit), NoteItemData.PROJECTION,
+                "(" + getNotesListSelection() + ") AND (" + NEXT_PAGE_SELECTION + ")", new String[] {
+                    String.valueOf(mCurrentFolderId), type, type, modifiedDate, modifiedDate, id
+                }, NOTES_LIST_SORT_ORDER);
+    }
+
+    private String getNotesListSelection() {
+        return (mCurrentFolderId == Notes.ID_ROOT_FOLDER) ? ROOT_FOLDER_SELECTION
                 : NORMAL_SELECTION;
-        mBackgroundQueryHandler.startQuery(FOLDER_NOTE_LIST_QUERY_TOKEN, null,
-                Notes.CONTENT_NOTE_URI, NoteItemData.PROJECTION, selection, new String[] {
-                    String.valueOf(mCurrentFolderId)
-                }, NoteColumns.TYPE + " DESC," + NoteColumns.MODIFIED_DATE + " DESC");
+    }
+
+    private Uri getLimitedUri(int limit) {
+        if (limit <= 0) {
+            return Notes.CONTENT_NOTE_URI;
+        }
+        return Notes.CONTENT_NOTE_URI.buildUpon()
+                .appendQueryParameter(Notes.QUERY_PARAMETER_LIMIT, String.valueOf(limit)).build();
     }
 
     private final class BackgroundQueryHandler extends AsyncQueryHandler {
@@ -445,9 +581,36 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
         @Override
         protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+            if (cookie instanceof int[] && ((int[]) cookie)[0] != mQueryGeneration) {
+                if (cursor != null) {
+                    cursor.close(); // 已过期的查询结果
+                }
+                return;
+            }
             switch (token) {
                 case FOLDER_NOTE_LIST_QUERY_TOKEN:
-                    mNotesListAdapter.changeCursor(cursor);
+                case FOLDER_NOTE_PAGE_QUERY_TOKEN:
+                    int limit = ((int[]) cookie)[1];
+                    mLoadingPage = false;
+                    mHasMorePages = limit > 0 && cursor != null && cursor.getCount() >= limit;
+                    if (token == FOLDER_NOTE_LIST_QUERY_TOKEN) {
+                        mNotesListAdapter.changeCursor(cursor);
+                    } else {
+                        mNotesListAdapter.appendPage(cursor);
+                    }
+                    if (mPendingSelectAction != 0 && !mHasMorePages) {
+                        int action = mPendingSelectAction;
+                        mPendingSelectAction = 0;
+                        mModeCallBack.applySelectAction(action);
+                    }
+                    break;
+                case FOLDER_NOTE_COUNT_QUERY_TOKEN:
+                    if (cursor != null) {
+                        if (cursor.moveToFirst()) {
+                            mNotesListAdapter.setNotesCount(cursor.getInt(0));
+                        }
+                        cursor.close();
+                    }
                     break;
                 case FOLDER_LIST_QUERY_TOKEN:
                     if (cursor != null && cursor.getCount() > 0) {
@@ -515,12 +678,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
             @Override
             protected void onPostExecute(HashSet<AppWidgetAttribute> widgets) {
                 if (widgets != null) {
-                    for (AppWidgetAttribute widget : widgets) {
-                        if (widget.widgetId != AppWidgetManager.INVALID_APPWIDGET_ID
-                                && widget.widgetType != Notes.TYPE_WIDGET_INVALIDE) {
-                            updateWidget(widget.widgetId, widget.widgetType);
-                        }
-                    }
+                    updateWidgets(widgets);
                 }
                 mModeCallBack.finishActionMode();
             }
@@ -545,12 +703,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
             DataUtils.batchMoveToFolder(mContentResolver, ids, Notes.ID_TRASH_FOLER);
         }
         if (widgets != null) {
-            for (AppWidgetAttribute widget : widgets) {
-                if (widget.widgetId != AppWidgetManager.INVALID_APPWIDGET_ID
-                        && widget.widgetType != Notes.TYPE_WIDGET_INVALIDE) {
-                    updateWidget(widget.widgetId, widget.widgetType);
-                }
-            }
+            updateWidgets(widgets);
         }
     }
 
@@ -567,6 +720,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         if (data.getId() == Notes.ID_CALL_RECORD_FOLDER) {
             mState = ListEditState.CALL_RECORD_FOLDER;
             mAddNewNote.setVisibility(View.GONE);
+            mNotesListAdapter.prewarmContactNames(Notes.ID_CALL_RECORD_FOLDER); // 预先查询联系人名称
         } else {
             mState = ListEditState.SUB_FOLDER;
         }
@@ -709,20 +863,38 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         }
     }
 
-    private void updateWidget(int appWidgetId, int appWidgetType) {
-        Intent intent = new Intent(AppWidgetManager.ACTION_APPWIDGET_UPDATE);
-        if (appWidgetType == Notes.TYPE_WIDGET_2X) {
-            intent.setClass(this, NoteWidgetProvider_2x.class);
-        } else if (appWidgetType == Notes.TYPE_WIDGET_4X) {
-            intent.setClass(this, NoteWidgetProvider_4x.class);
-        } else {
-            Log.e(TAG, "Unspported widget type");
+    // 每种尺寸的小部件只发送一次更新广播，由小部件一次查询所有受影响的笔记
+    private void updateWidgets(HashSet<AppWidgetAttribute> widgets) {
+        ArrayList<Integer> widgets2x = new ArrayList<Integer>();
+        ArrayList<Integer> widgets4x = new ArrayList<Integer>();
+        for (AppWidgetAttribute widget : widgets) {
+            if (widget.widgetId == AppWidgetManager.INVALID_APPWIDGET_ID) {
+                continue;
+            }
+            if (widget.widgetType == Notes.TYPE_WIDGET_2X) {
+                widgets2x.add(widget.widgetId);
+            } else if (widget.widgetType == Notes.TYPE_WIDGET_4X) {
+                widgets4x.add(widget.widgetId);
+            } else if (widget.widgetType != Notes.TYPE_WIDGET_INVALIDE) {
+                Log.e(TAG, "Unspported widget type");
+            }
+        }
+        updateWidget(NoteWidgetProvider_2x.class, widgets2x);
+        updateWidget(NoteWidgetProvider_4x.class, widgets4x);
+    }
+
+    private void updateWidget(Class<?> provider, ArrayList<Integer> widgetIds) {
+        if (widgetIds.isEmpty()) {
             return;
         }
+        int[] ids = new int[widgetIds.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = widgetIds.get(i);
+        }
 
-        intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS, new int[] {
-            appWidgetId
-        });
+        Intent intent = new Intent(AppWidgetManager.ACTION_APPWIDGET_UPDATE);
+        intent.setClass(this, provider);
+        intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS, ids);
 
         sendBroadcast(intent);
         setResult(RESULT_OK, intent);
@@ -939,7 +1111,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     }
 
     private void startQueryDestinationFolders() {
-        String selection = NoteColumns.TYPE + "=? AND " + NoteColumns.PARENT_ID + "<>? AND " + NoteColumns.ID + "<>?";
+        String selection = FOLDER_SELECTION;
         selection = (mState == ListEditState.NOTE_LIST) ? selection:
             "(" + selection + ") OR (" + NoteColumns.ID + "=" + Notes.ID_ROOT_FOLDER + ")";
 
@@ -958,7 +1130,8 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
         if (view instanceof NotesListItem) {
-            mFocusNoteDataItem = ((NotesListItem) view).getItemData();
+            // 列表项的数据模型会随视图复用，保存一份快照供之后的菜单操作使用
+            mFocusNoteDataItem = new NoteItemData(((NotesListItem) view).getItemData());
             if (mFocusNoteDataItem.getType() == Notes.TYPE_NOTE && !mNotesListAdapter.isInChoiceMode()) {
                 if (mNotesListView.startActionMode(mModeCallBack) != null) {
                     mModeCallBack.onItemCheckedStateChanged(null, position, id, true);
@@ -16,6 +16,7 @@
 
 package net.micode.notes.ui;
 
+import android.appwidget.AppWidgetManager;
 import android.content.Context;
 import android.database.Cursor;
 import android.util.Log;
@@ -25,18 +26,24 @@ import android.widget.CursorAdapter;
 
 import net.micode.notes.data.Notes;
 
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 
 // 用于展示笔记列表的适配器类
 public class NotesListAdapter extends CursorAdapter {
     private static final String TAG = "NotesListAdapter";// 日志标签
     private Context mContext;// 上下文对象
-    private HashMap<Integer, Boolean> mSelectedIndex;// 用于记录选中项的索引
-    private int mNotesCount;// 笔记数量
+    private NoteSelection mSelection;// 以笔记ID记录选中的条目
+    private int mNotesCount;// 笔记数量，由聚合查询得出，不再遍历光标计算
     private boolean mChoiceMode;// 是否为选择模式
+    private PagedCursor mPagedCursor;// 连接分页加载的各页，作为适配器的光标
+    private OnContentChangedListener mOnContentChangedListener;// 数据变化时的回调
+    private ContactNameResolver mContactNameResolver;// 在后台查询通话记录的联系人名称
+
+    // 数据变化时的回调，由调用者在后台重新查询，而不是在UI线程中requery
+    public interface OnContentChangedListener {
+        void onContentChanged();
+    }
 
     // 用于存储小部件属性的静态内部类
     public static class AppWidgetAttribute {
@@ -45,10 +52,20 @@ public class NotesListAdapter extends CursorAdapter {
     };
     // 构造函数
     public NotesListAdapter(Context context) {
-        super(context, null);
-        mSelectedIndex = new HashMap<Integer, Boolean>();
+        super(context, null, FLAG_REGISTER_CONTENT_OBSERVER);
+        mSelection = new NoteSelection();
         mContext = context;
         mNotesCount = 0;
+        mContactNameResolver = new ContactNameResolver(context,
+                new ContactNameResolver.OnNamesResolvedListener() {
+                    public void onNamesResolved() {
+                        notifyDataSetChanged(); // 重新绑定可见的列表项以显示联系人名称
+                    }
+                });
+    }
+    // 设置数据变化时的回调
+    public void setOnContentChangedListener(OnContentChangedListener listener) {
+        mOnContentChangedListener = listener;
     }
     // 为每个条目创建新视图
     @Override
@@ -59,15 +76,25 @@ public class NotesListAdapter extends CursorAdapter {
     @Override
     public void bindView(View view, Context context, Cursor cursor) {
         if (view instanceof NotesListItem) {
-            NoteItemData itemData = new NoteItemData(context, cursor);
+            NoteItemData itemData = ((NotesListItem) view).getItemData(); // 复用列表项持有的数据模型
+            itemData.load(cursor);
+            if (itemData.needsNameResolution()) {
+                mContactNameResolver.request(itemData.getPhoneNumber());
+            }
             ((NotesListItem) view).bind(context, itemData, mChoiceMode,
-                    isSelectedItem(cursor.getPosition()));
+                    mSelection.contains(itemData.getId()));
         }
     }
     // 设置条目的选中状态
     public void setCheckedItem(final int position, final boolean checked) {
-        mSelectedIndex.put(position, checked);
-        notifyDataSetChanged();
+        Cursor cursor = (Cursor) getItem(position);
+        if (cursor == null) {
+            Log.e(TAG, "Invalid cursor");
+            return;
+        }
+        if (mSelection.set(NoteItemData.getNoteId(cursor), checked, getWidgetAttribute(cursor))) {
+            notifyDataSetChanged();
+        }
     }
     // 检查是否处于选择模式
     public boolean isInChoiceMode() {
@@ -75,73 +102,69 @@ public class NotesListAdapter extends CursorAdapter {
     }
     // 设置选择模式
     public void setChoiceMode(boolean mode) {
-        mSelectedIndex.clear();
+        mSelection.clear();
         mChoiceMode = mode;
     }
-    // 选择所有条目
+    // 选择或取消选择所有条目，只遍历一次光标并只刷新一次列表
     public void selectAll(boolean checked) {
+        if (checked) {
+            selectNotes(false);
+        } else {
+            mSelection.clear();
+        }
+        notifyDataSetChanged();
+    }
+    // 反选已加载的所有笔记，一次写入选中状态并只刷新一次列表；调用前需要先加载所有的页
+    public void invertSelection() {
+        selectNotes(true);
+        notifyDataSetChanged();
+    }
+    // 选中已加载的所有笔记，invert 为true时只选中当前未选中的笔记
+    private void selectNotes(boolean invert) {
         Cursor cursor = getCursor();
-        for (int i = 0; i < getCount(); i++) {
-            if (cursor.moveToPosition(i)) {
-                if (NoteItemData.getNoteType(cursor) == Notes.TYPE_NOTE) {
-                    setCheckedItem(i, checked);
+        if (cursor == null) {
+            return;
+        }
+        long[] ids = new long[cursor.getCount()];
+        HashMap<Long, AppWidgetAttribute> widgets = new HashMap<Long, AppWidgetAttribute>();
+        int count = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (cursor.moveToPosition(i) && NoteItemData.getNoteType(cursor) == Notes.TYPE_NOTE) {
+                long id = NoteItemData.getNoteId(cursor);
+                if (invert && mSelection.contains(id)) {
+                    continue;
+                }
+                ids[count++] = id;
+                AppWidgetAttribute widget = getWidgetAttribute(cursor);
+                if (widget != null) {
+                    widgets.put(id, widget);
                 }
             }
         }
+        mSelection.setAll(ids, count, widgets);
     }
-    // 获取所有选中条目的ID
-    public HashSet<Long> getSelectedItemIds() {
-        HashSet<Long> itemSet = new HashSet<Long>();
-        for (Integer position : mSelectedIndex.keySet()) {
-            if (mSelectedIndex.get(position) == true) {
-                Long id = getItemId(position);
-                if (id == Notes.ID_ROOT_FOLDER) {
-                    Log.d(TAG, "Wrong item id, should not happen");
-                } else {
-                    itemSet.add(id);
-                }
-            }
+    // 读取当前行的小部件属性，没有小部件时返回null
+    private AppWidgetAttribute getWidgetAttribute(Cursor cursor) {
+        int widgetId = NoteItemData.getWidgetId(cursor);
+        if (widgetId == AppWidgetManager.INVALID_APPWIDGET_ID) {
+            return null;
         }
-
-        return itemSet;
+        AppWidgetAttribute widget = new AppWidgetAttribute();
+        widget.widgetId = widgetId;
+        widget.widgetType = NoteItemData.getWidgetType(cursor);
+        return widget;
+    }
+    // 获取所有选中条目的ID，不需要移动光标
+    public HashSet<Long> getSelectedItemIds() {
+        return mSelection.getIds();
     }
-    // 获取选中的小部件属性集
+    // 获取选中的小部件属性集，只包含带小部件的笔记
     public HashSet<AppWidgetAttribute> getSelectedWidget() {
-        HashSet<AppWidgetAttribute> itemSet = new HashSet<AppWidgetAttribute>();
-        for (Integer position : mSelectedIndex.keySet()) {
-            if (mSelectedIndex.get(position) == true) {
-                Cursor c = (Cursor) getItem(position);
-                if (c != null) {
-                    AppWidgetAttribute widget = new AppWidgetAttribute();
-                    NoteItemData item = new NoteItemData(mContext, c);
-                    widget.widgetId = item.getWidgetId();
-                    widget.widgetType = item.getWidgetType();
-                    itemSet.add(widget);
-                    /**
-                     * Don't close cursor here, only the adapter could close it
-                     */
-                } else {
-                    Log.e(TAG, "Invalid cursor");
-                    return null;
-                }
-            }
-        }
-        return itemSet;
+        return mSelection.getWidgets();
     }
     // 获取选中条目的数量
     public int getSelectedCount() {
-        Collection<Boolean> values = mSelectedIndex.values();
-        if (null == values) {
-            return 0;
-        }
-        Iterator<Boolean> iter = values.iterator();
-        int count = 0;
-        while (iter.hasNext()) {
-            if (true == iter.next()) {
-                count++;
-            }
-        }
-        return count;
+        return mSelection.size();
     }
     // 检查是否所有条目都已选中
     public boolean isAllSelected() {
@@ -150,36 +173,60 @@ public class NotesListAdapter extends CursorAdapter {
     }
     // 检查指定位置的条目是否被选中
     public boolean isSelectedItem(final int position) {
-        if (null == mSelectedIndex.get(position)) {
-            return false;
-        }
-        return mSelectedIndex.get(position);
+        return mSelection.contains(getItemId(position));
     }
-    // 当内容改变时，重新计算笔记数量
+    // 当内容改变时，通知调用者重新查询
     @Override
     protected void onContentChanged() {
-        super.onContentChanged();
-        calcNotesCount();
+        if (mOnContentChangedListener != null) {
+            mOnContentChangedListener.onContentChanged();
+        }
     }
-    // 更换光标时调用
+    // 更换光标时调用，之前加载的所有页都会被关闭
     @Override
     public void changeCursor(Cursor cursor) {
-        super.changeCursor(cursor);
-        calcNotesCount();
+        mPagedCursor = cursor != null ? new PagedCursor(cursor) : null;
+        retainSelection(mPagedCursor);
+        super.changeCursor(mPagedCursor);
     }
-    // 计算笔记的数量
-    private void calcNotesCount() {
-        mNotesCount = 0;
-        for (int i = 0; i < getCount(); i++) {
-            Cursor c = (Cursor) getItem(i);
-            if (c != null) {
-                if (NoteItemData.getNoteType(c) == Notes.TYPE_NOTE) {
-                    mNotesCount++;
-                }
-            } else {
-                Log.e(TAG, "Invalid cursor");
-                return;
+    // 重新查询后只保留仍在列表中的选中笔记，已删除或移走的笔记不再计入选中数量
+    private void retainSelection(Cursor cursor) {
+        if (cursor == null || mSelection.size() == 0) {
+            return;
+        }
+        long[] ids = new long[cursor.getCount()];
+        int count = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (cursor.moveToPosition(i)) {
+                ids[count++] = NoteItemData.getNoteId(cursor);
             }
         }
+        cursor.moveToPosition(-1);
+        mSelection.retain(ids, count);
+    }
+    // 在列表末尾追加一页
+    public void appendPage(Cursor page) {
+        if (page == null) {
+            return;
+        }
+        if (mPagedCursor == null) {
+            changeCursor(page);
+            return;
+        }
+        // 追加到同一个光标中，已加载的页不会重复注册观察者
+        mPagedCursor.addPage(page);
+        notifyDataSetChanged();
+    }
+    // 预先查询文件夹中通话记录的联系人名称
+    public void prewarmContactNames(long folderId) {
+        mContactNameResolver.prewarm(folderId);
+    }
+    // 停止查询联系人名称，在界面销毁时调用
+    public void cancelContactNameResolution() {
+        mContactNameResolver.cancel();
+    }
+    // 设置由聚合查询得出的笔记数量
+    public void setNotesCount(int count) {
+        mNotesCount = count;
     }
 }
@@ -26,7 +26,6 @@ import android.widget.TextView;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
-import net.micode.notes.tool.DataUtils;
 import net.micode.notes.tool.ResourceParser.NoteItemBgResources;
 
 // 笔记列表中的单个笔记项视图
@@ -35,8 +34,14 @@ public class NotesListItem extends LinearLayout {
     private TextView mTitle;  // 标题文本
     private TextView mTime;  // 显示修改时间的文本
     private TextView mCallName;  // 电话记录名称文本
-    private NoteItemData mItemData;  // 笔记项的数据模型
+    private NoteItemData mItemData;  // 笔记项的数据模型，随视图一起复用
     private CheckBox mCheckBox;  // 选项框
+    private long mTimeId;  // 当前显示的修改时间所属的笔记ID
+    private long mTimeModifiedDate;  // 当前显示的修改时间
+    private long mTimeFormattedAt;  // 上次格式化修改时间的时刻
+
+    // 相对时间的刷新间隔，同一笔记在间隔内重新绑定时不再重新格式化
+    private static final long TIME_REFRESH_INTERVAL = DateUtils.MINUTE_IN_MILLIS;
 
     // 构造函数，初始化视图和组件
     public NotesListItem(Context context) {
@@ -47,6 +52,8 @@ public class NotesListItem extends LinearLayout {
         mTime = (TextView) findViewById(R.id.tv_time);  // 初始化时间文本
         mCallName = (TextView) findViewById(R.id.tv_name);  // 初始化电话记录名称文本
         mCheckBox = (CheckBox) findViewById(android.R.id.checkbox);  // 初始化选项框
+        mItemData = new NoteItemData();  // 每个列表项持有一个可复用的数据模型
+        mTimeId = -1;
     }
     // 绑定数据到视图，设置视图的显示
     public void bind(Context context, NoteItemData data, boolean choiceMode, boolean checked) {
@@ -69,7 +76,7 @@ public class NotesListItem extends LinearLayout {
             mCallName.setVisibility(View.VISIBLE);  // 显示电话名称
             mCallName.setText(data.getCallName());  // 设置电话名称
             mTitle.setTextAppearance(context, R.style.TextAppearanceSecondaryItem);  // 设置标题样式
-            mTitle.setText(DataUtils.getFormattedSnippet(data.getSnippet()));  // 设置格式化的摘要作为标题
+            setTitle(data);  // 设置格式化的摘要作为标题
             if (data.hasAlert()) {  // 如果设置了提醒
                 mAlert.setImageResource(R.drawable.clock);  // 设置提醒图标为时钟
                 mAlert.setVisibility(View.VISIBLE);  // 显示提醒图标
@@ -86,7 +93,7 @@ public class NotesListItem extends LinearLayout {
                                 data.getNotesCount()));  // 设置标题显示文件夹名称及包含的笔记数量
                 mAlert.setVisibility(View.GONE);  // 隐藏提醒图标
             } else {  // 如果是笔记类型
-                mTitle.setText(DataUtils.getFormattedSnippet(data.getSnippet()));  // 设置格式化后的笔记摘要为标题
+                setTitle(data);  // 设置格式化后的笔记摘要为标题
                 if (data.hasAlert()) {  // 如果笔记设置了提醒
                     mAlert.setImageResource(R.drawable.clock);  // 设置提醒图标为时钟
                     mAlert.setVisibility(View.VISIBLE);  // 显示提醒图标
@@ -95,10 +102,28 @@ public class NotesListItem extends LinearLayout {
                 }
             }
         }
-        mTime.setText(DateUtils.getRelativeTimeSpanString(data.getModifiedDate()));
+        setTime(data);
 
         setBackground(data); // 根据笔记类型和状态设置背景
     }
+
+    // 直接用摘要缓冲区设置标题，不创建新的字符串
+    private void setTitle(NoteItemData data) {
+        mTitle.setText(data.getTitleChars(), data.getTitleStart(), data.getTitleLength());
+    }
+
+    // 只有笔记或修改时间变化，或者距上次格式化超过刷新间隔时才重新格式化相对时间
+    private void setTime(NoteItemData data) {
+        long now = System.currentTimeMillis();
+        if (data.getId() == mTimeId && data.getModifiedDate() == mTimeModifiedDate
+                && now - mTimeFormattedAt < TIME_REFRESH_INTERVAL) {
+            return;
+        }
+        mTimeId = data.getId();
+        mTimeModifiedDate = data.getModifiedDate();
+        mTimeFormattedAt = now;
+        mTime.setText(DateUtils.getRelativeTimeSpanString(data.getModifiedDate()));
+    }
 // 根据笔记的类型和状态设置背景
     private void setBackground(NoteItemData data) {
         int id = data.getBgColorId();  // 获取背景颜色ID
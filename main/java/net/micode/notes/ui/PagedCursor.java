@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.database.AbstractCursor;
+import android.database.CharArrayBuffer;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+
+import java.util.ArrayList;
+
+/*
+ * PagedCursor 把分页加载的各页光标依次连接成一个光标
+ * 与每次追加都新建 MergeCursor 不同，各页只在加入时注册一次观察者，
+ * 追加一页的开销与已加载的页数无关；关闭时关闭所有的页
+ */
+class PagedCursor extends AbstractCursor {
+    private final ArrayList<Cursor> mPages = new ArrayList<Cursor>();
+
+    private final ArrayList<Integer> mPageStarts = new ArrayList<Integer>(); // 每页第一条记录的位置
+
+    private int mCount; // 所有页的记录总数
+
+    private Cursor mCursor; // 当前位置所在的页
+
+    // 任意一页的数据变化都转发给此光标的观察者
+    private final ContentObserver mContentObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            PagedCursor.this.onChange(false);
+        }
+    };
+
+    private final DataSetObserver mDataSetObserver = new DataSetObserver() {
+        @Override
+        public void onChanged() {
+            recount();
+            mPos = -1;
+            mDataSetObservable.notifyChanged();
+        }
+
+        @Override
+        public void onInvalidated() {
+            mPos = -1;
+            mDataSetObservable.notifyInvalidated();
+        }
+    };
+
+    PagedCursor(Cursor firstPage) {
+        addPage(firstPage);
+    }
+
+    // 在末尾追加一页，调用者需要自行刷新使用此光标的列表
+    public void addPage(Cursor page) {
+        mPageStarts.add(mCount);
+        mPages.add(page);
+        mCount += page.getCount();
+        page.registerContentObserver(mContentObserver);
+        page.registerDataSetObserver(mDataSetObserver);
+    }
+
+    private void recount() {
+        mCount = 0;
+        for (int i = 0; i < mPages.size(); i++) {
+            mPageStarts.set(i, mCount);
+            mCount += mPages.get(i).getCount();
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        // 各页按顺序排列，二分查找所在的页
+        int low = 0;
+        int high = mPages.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (mPageStarts.get(mid) <= newPosition) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        mCursor = mPages.get(low);
+        return mCursor.moveToPosition(newPosition - mPageStarts.get(low));
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mPages.get(0).getColumnNames();
+    }
+
+    @Override
+    public String getString(int column) {
+        return mCursor.getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return mCursor.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return mCursor.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return mCursor.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return mCursor.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return mCursor.getDouble(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        return mCursor.getType(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return mCursor.getBlob(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mCursor.isNull(column);
+    }
+
+    // 由当前页直接复制到缓冲区，避免 AbstractCursor 先构造一个 String
+    @Override
+    public void copyStringToBuffer(int column, CharArrayBuffer buffer) {
+        mCursor.copyStringToBuffer(column, buffer);
+    }
+
+    @Override
+    public void deactivate() {
+        for (Cursor page : mPages) {
+            page.deactivate();
+        }
+        super.deactivate();
+    }
+
+    @Override
+    public void close() {
+        for (Cursor page : mPages) {
+            page.unregisterContentObserver(mContentObserver);
+            page.unregisterDataSetObserver(mDataSetObserver);
+            page.close();
+        }
+        super.close();
+    }
+
+    @Override
+    public boolean requery() {
+        for (Cursor page : mPages) {
+            if (!page.requery()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
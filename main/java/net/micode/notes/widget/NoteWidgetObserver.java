@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.widget;
+
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesChangeNotifier;
+
+/*
+ * NoteWidgetObserver 监听笔记的变化，只刷新显示被修改笔记的小部件
+ * 通知中带有被修改笔记的id时，用一次 IN 查询找到这些笔记对应的小部件；没有id时刷新所有小部件，
+ * 内容没有变化的小部件由 NoteWidgetProvider 跳过
+ */
+public class NoteWidgetObserver extends ContentObserver {
+    private static final String[] PROJECTION = new String[] {
+        NoteColumns.WIDGET_ID,
+        NoteColumns.WIDGET_TYPE
+    };
+
+    private final Context mContext;
+
+    private NoteWidgetObserver(Context context) {
+        super(null); // 在发出通知的线程中处理，不经过主线程
+        mContext = context.getApplicationContext();
+    }
+
+    // 在笔记数据所在的进程中注册一次
+    public static void register(Context context) {
+        context.getContentResolver().registerContentObserver(Notes.CONTENT_NOTE_URI, true,
+                new NoteWidgetObserver(context));
+    }
+
+    @Override
+    public void onChange(boolean selfChange) {
+        onChange(selfChange, null);
+    }
+
+    @Override
+    public void onChange(boolean selfChange, Uri uri) {
+        long[] noteIds = NotesChangeNotifier.getChangedNoteIds(uri);
+        if (noteIds == null) {
+            // 不知道哪些笔记变化了，刷新所有小部件
+            AppWidgetManager manager = AppWidgetManager.getInstance(mContext);
+            refresh(NoteWidgetProvider_2x.class, manager.getAppWidgetIds(
+                    new ComponentName(mContext, NoteWidgetProvider_2x.class)));
+            refresh(NoteWidgetProvider_4x.class, manager.getAppWidgetIds(
+                    new ComponentName(mContext, NoteWidgetProvider_4x.class)));
+            return;
+        }
+
+        StringBuilder selection = new StringBuilder(NoteColumns.ID + " IN (");
+        String[] selectionArgs = new String[noteIds.length + 1];
+        for (int i = 0; i < noteIds.length; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+            selectionArgs[i] = String.valueOf(noteIds[i]);
+        }
+        selection.append(") AND " + NoteColumns.WIDGET_ID + "<>?");
+        selectionArgs[noteIds.length] = String.valueOf(AppWidgetManager.INVALID_APPWIDGET_ID);
+
+        Cursor c = mContext.getContentResolver().query(Notes.CONTENT_NOTE_URI, PROJECTION,
+                selection.toString(), selectionArgs, null);
+        if (c == null) {
+            return;
+        }
+        int[] widgetIds = new int[c.getCount()];
+        int[] widgetTypes = new int[c.getCount()];
+        try {
+            for (int i = 0; c.moveToNext(); i++) {
+                widgetIds[i] = c.getInt(0);
+                widgetTypes[i] = c.getInt(1);
+            }
+        } finally {
+            c.close();
+        }
+        refresh(NoteWidgetProvider_2x.class, filter(widgetIds, widgetTypes, Notes.TYPE_WIDGET_2X));
+        refresh(NoteWidgetProvider_4x.class, filter(widgetIds, widgetTypes, Notes.TYPE_WIDGET_4X));
+    }
+
+    // 选出指定类型的小部件
+    private static int[] filter(int[] widgetIds, int[] widgetTypes, int type) {
+        int count = 0;
+        for (int widgetType : widgetTypes) {
+            if (widgetType == type) {
+                count++;
+            }
+        }
+        int[] ids = new int[count];
+        count = 0;
+        for (int i = 0; i < widgetIds.length; i++) {
+            if (widgetTypes[i] == type) {
+                ids[count++] = widgetIds[i];
+            }
+        }
+        return ids;
+    }
+
+    private void refresh(Class<? extends NoteWidgetProvider> provider, int[] widgetIds) {
+        if (widgetIds == null || widgetIds.length == 0) {
+            return;
+        }
+        Intent intent = new Intent(AppWidgetManager.ACTION_APPWIDGET_UPDATE);
+        intent.setClass(mContext, provider);
+        intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS, widgetIds);
+        mContext.sendBroadcast(intent);
+    }
+}
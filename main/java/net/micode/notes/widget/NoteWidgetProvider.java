@@ -22,7 +22,9 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 import android.widget.RemoteViews;
 
 import net.micode.notes.R;
@@ -32,19 +34,62 @@ import net.micode.notes.tool.ResourceParser;
 import net.micode.notes.ui.NoteEditActivity;
 import net.micode.notes.ui.NotesListActivity;
 
+/*
+ * 每个小部件最近一次显示的内容保存在 sSnapshots 中，以小部件id为键
+ * 更新时用一次 IN 查询读取所有小部件对应的笔记，只有笔记、背景或文字发生变化的小部件才会重新生成 RemoteViews
+ */
 public abstract class NoteWidgetProvider extends AppWidgetProvider {
     public static final String [] PROJECTION = new String [] {
         NoteColumns.ID,
         NoteColumns.BG_COLOR_ID,
-        NoteColumns.SNIPPET
+        NoteColumns.SNIPPET,
+        NoteColumns.WIDGET_ID
     };
 
     public static final int COLUMN_ID           = 0;
     public static final int COLUMN_BG_COLOR_ID  = 1;
     public static final int COLUMN_SNIPPET      = 2;
+    public static final int COLUMN_WIDGET_ID    = 3;
 
     private static final String TAG = "NoteWidgetProvider";
 
+    // 小部件当前显示的内容，小部件id在两种尺寸之间不会重复，因此两个子类共用
+    private static final SparseArray<WidgetSnapshot> sSnapshots = new SparseArray<WidgetSnapshot>();
+
+    // 小部件显示的内容，内容相同时不需要再次更新
+    private static final class WidgetSnapshot {
+        final long noteId; // 没有对应的笔记时为0
+        final int bgId;
+        final String text;
+        final boolean privacyMode;
+
+        WidgetSnapshot(long noteId, int bgId, String text, boolean privacyMode) {
+            this.noteId = noteId;
+            this.bgId = bgId;
+            this.text = text;
+            this.privacyMode = privacyMode;
+        }
+
+        WidgetSnapshot withPrivacyMode(boolean mode) {
+            return new WidgetSnapshot(noteId, bgId, text, mode);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof WidgetSnapshot)) {
+                return false;
+            }
+            WidgetSnapshot other = (WidgetSnapshot) o;
+            return noteId == other.noteId && bgId == other.bgId
+                    && privacyMode == other.privacyMode && TextUtils.equals(text, other.text);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) noteId * 31 + bgId;
+        }
+    }
+
     @Override
     public void onDeleted(Context context, int[] appWidgetIds) {
         ContentValues values = new ContentValues();
@@ -55,14 +100,56 @@ public abstract class NoteWidgetProvider extends AppWidgetProvider {
                     NoteColumns.WIDGET_ID + "=?",
                     new String[] { String.valueOf(appWidgetIds[i])});
         }
+        synchronized (sSnapshots) {
+            for (int i = 0; i < appWidgetIds.length; i++) {
+                sSnapshots.remove(appWidgetIds[i]);
+            }
+        }
     }
 
-    private Cursor getNoteWidgetInfo(Context context, int widgetId) {
-        return context.getContentResolver().query(Notes.CONTENT_NOTE_URI,
-                PROJECTION,
-                NoteColumns.WIDGET_ID + "=? AND " + NoteColumns.PARENT_ID + "<>?",
-                new String[] { String.valueOf(widgetId), String.valueOf(Notes.ID_TRASH_FOLER) },
-                null);
+    // 查询 count 个小部件对应的不在回收站中的笔记，参数为小部件id和回收站id
+    static String getWidgetSelection(int count) {
+        StringBuilder selection = new StringBuilder(NoteColumns.WIDGET_ID + " IN (");
+        for (int i = 0; i < count; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(") AND " + NoteColumns.PARENT_ID + "<>?");
+        return selection.toString();
+    }
+
+    /*
+     * 用一次查询读取所有小部件对应的笔记，返回以小部件id为键的内容
+     * 同一个小部件对应多条笔记时记录为null，这样的小部件不会被更新
+     */
+    private SparseArray<WidgetSnapshot> getNoteWidgetInfo(Context context, int[] widgetIds,
+            int count) {
+        SparseArray<WidgetSnapshot> snapshots = new SparseArray<WidgetSnapshot>();
+        String[] selectionArgs = new String[count + 1];
+        for (int i = 0; i < count; i++) {
+            selectionArgs[i] = String.valueOf(widgetIds[i]);
+        }
+        selectionArgs[count] = String.valueOf(Notes.ID_TRASH_FOLER);
+
+        Cursor c = context.getContentResolver().query(Notes.CONTENT_NOTE_URI, PROJECTION,
+                getWidgetSelection(count), selectionArgs, null);
+        if (c == null) {
+            return snapshots;
+        }
+        try {
+            while (c.moveToNext()) {
+                int widgetId = c.getInt(COLUMN_WIDGET_ID);
+                if (snapshots.indexOfKey(widgetId) >= 0) {
+                    Log.e(TAG, "Multiple message with same widget id:" + widgetId);
+                    snapshots.put(widgetId, null);
+                    continue;
+                }
+                snapshots.put(widgetId, new WidgetSnapshot(c.getLong(COLUMN_ID),
+                        c.getInt(COLUMN_BG_COLOR_ID), c.getString(COLUMN_SNIPPET), false));
+            }
+        } finally {
+            c.close();
+        }
+        return snapshots;
     }
 
     protected void update(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
@@ -71,57 +158,75 @@ public abstract class NoteWidgetProvider extends AppWidgetProvider {
 
     private void update(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds,
             boolean privacyMode) {
+        int[] widgetIds = new int[appWidgetIds.length];
+        int count = 0;
         for (int i = 0; i < appWidgetIds.length; i++) {
             if (appWidgetIds[i] != AppWidgetManager.INVALID_APPWIDGET_ID) {
-                int bgId = ResourceParser.getDefaultBgId(context);
-                String snippet = "";
-                Intent intent = new Intent(context, NoteEditActivity.class);
-                intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
-                intent.putExtra(Notes.INTENT_EXTRA_WIDGET_ID, appWidgetIds[i]);
-                intent.putExtra(Notes.INTENT_EXTRA_WIDGET_TYPE, getWidgetType());
-
-                Cursor c = getNoteWidgetInfo(context, appWidgetIds[i]);
-                if (c != null && c.moveToFirst()) {
-                    if (c.getCount() > 1) {
-                        Log.e(TAG, "Multiple message with same widget id:" + appWidgetIds[i]);
-                        c.close();
-                        return;
-                    }
-                    snippet = c.getString(COLUMN_SNIPPET);
-                    bgId = c.getInt(COLUMN_BG_COLOR_ID);
-                    intent.putExtra(Intent.EXTRA_UID, c.getLong(COLUMN_ID));
-                    intent.setAction(Intent.ACTION_VIEW);
-                } else {
-                    snippet = context.getResources().getString(R.string.widget_havenot_content);
-                    intent.setAction(Intent.ACTION_INSERT_OR_EDIT);
-                }
+                widgetIds[count++] = appWidgetIds[i];
+            }
+        }
+        if (count == 0) {
+            return;
+        }
 
-                if (c != null) {
-                    c.close();
+        SparseArray<WidgetSnapshot> snapshots = getNoteWidgetInfo(context, widgetIds, count);
+        WidgetSnapshot empty = new WidgetSnapshot(0, ResourceParser.getDefaultBgId(context),
+                context.getResources().getString(R.string.widget_havenot_content), privacyMode);
+        for (int i = 0; i < count; i++) {
+            int widgetId = widgetIds[i];
+            WidgetSnapshot snapshot;
+            if (snapshots.indexOfKey(widgetId) < 0) {
+                snapshot = empty;
+            } else {
+                snapshot = snapshots.get(widgetId);
+                if (snapshot == null) {
+                    continue; // 数据有误，不更新这个小部件
                 }
+                snapshot = snapshot.withPrivacyMode(privacyMode);
+            }
 
-                RemoteViews rv = new RemoteViews(context.getPackageName(), getLayoutId());
-                rv.setImageViewResource(R.id.widget_bg_image, getBgResourceId(bgId));
-                intent.putExtra(Notes.INTENT_EXTRA_BACKGROUND_ID, bgId);
-                /**
-                 * Generate the pending intent to start host for the widget
-                 */
-                PendingIntent pendingIntent = null;
-                if (privacyMode) {
-                    rv.setTextViewText(R.id.widget_text,
-                            context.getString(R.string.widget_under_visit_mode));
-                    pendingIntent = PendingIntent.getActivity(context, appWidgetIds[i], new Intent(
-                            context, NotesListActivity.class), PendingIntent.FLAG_UPDATE_CURRENT);
-                } else {
-                    rv.setTextViewText(R.id.widget_text, snippet);
-                    pendingIntent = PendingIntent.getActivity(context, appWidgetIds[i], intent,
-                            PendingIntent.FLAG_UPDATE_CURRENT);
+            synchronized (sSnapshots) {
+                if (snapshot.equals(sSnapshots.get(widgetId))) {
+                    continue; // 显示的内容没有变化
                 }
-
-                rv.setOnClickPendingIntent(R.id.widget_text, pendingIntent);
-                appWidgetManager.updateAppWidget(appWidgetIds[i], rv);
+                sSnapshots.put(widgetId, snapshot);
             }
+            appWidgetManager.updateAppWidget(widgetId, buildViews(context, widgetId, snapshot));
+        }
+    }
+
+    private RemoteViews buildViews(Context context, int widgetId, WidgetSnapshot snapshot) {
+        Intent intent = new Intent(context, NoteEditActivity.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        intent.putExtra(Notes.INTENT_EXTRA_WIDGET_ID, widgetId);
+        intent.putExtra(Notes.INTENT_EXTRA_WIDGET_TYPE, getWidgetType());
+        if (snapshot.noteId > 0) {
+            intent.putExtra(Intent.EXTRA_UID, snapshot.noteId);
+            intent.setAction(Intent.ACTION_VIEW);
+        } else {
+            intent.setAction(Intent.ACTION_INSERT_OR_EDIT);
+        }
+
+        RemoteViews rv = new RemoteViews(context.getPackageName(), getLayoutId());
+        rv.setImageViewResource(R.id.widget_bg_image, getBgResourceId(snapshot.bgId));
+        intent.putExtra(Notes.INTENT_EXTRA_BACKGROUND_ID, snapshot.bgId);
+        /**
+         * Generate the pending intent to start host for the widget
+         */
+        PendingIntent pendingIntent = null;
+        if (snapshot.privacyMode) {
+            rv.setTextViewText(R.id.widget_text,
+                    context.getString(R.string.widget_under_visit_mode));
+            pendingIntent = PendingIntent.getActivity(context, widgetId, new Intent(
+                    context, NotesListActivity.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        } else {
+            rv.setTextViewText(R.id.widget_text, snapshot.text);
+            pendingIntent = PendingIntent.getActivity(context, widgetId, intent,
+                    PendingIntent.FLAG_UPDATE_CURRENT);
         }
+
+        rv.setOnClickPendingIntent(R.id.widget_text, pendingIntent);
+        return rv;
     }
 
     protected abstract int getBgResourceId(int bgId);
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.micode.notes.data.Notes.CheckItem;
+import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.Notes.TextNote;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class NotesDatabaseHelperTest {
+
+    // the note and data tables as shipped in version 4
+    private static final String V4_NOTE_TABLE_SQL =
+        "CREATE TABLE note(" +
+            "_id INTEGER PRIMARY KEY," +
+            "parent_id INTEGER NOT NULL DEFAULT 0," +
+            "password VARCHAR(50) DEFAULT NULL," +
+            "alert_date INTEGER NOT NULL DEFAULT 0," +
+            "bg_color_id INTEGER NOT NULL DEFAULT 0," +
+            "created_date INTEGER NOT NULL DEFAULT (strftime('%s','now') * 1000)," +
+            "has_attachment INTEGER NOT NULL DEFAULT 0," +
+            "modified_date INTEGER NOT NULL DEFAULT (strftime('%s','now') * 1000)," +
+            "notes_count INTEGER NOT NULL DEFAULT 0," +
+            "snippet TEXT NOT NULL DEFAULT ''," +
+            "type INTEGER NOT NULL DEFAULT 0," +
+            "widget_id INTEGER NOT NULL DEFAULT 0," +
+            "widget_type INTEGER NOT NULL DEFAULT -1," +
+            "sync_id INTEGER NOT NULL DEFAULT 0," +
+            "local_modified INTEGER NOT NULL DEFAULT 0," +
+            "origin_parent_id INTEGER NOT NULL DEFAULT 0," +
+            "gtask_id TEXT NOT NULL DEFAULT ''," +
+            "version INTEGER NOT NULL DEFAULT 0" +
+        ")";
+
+    private static final String V4_DATA_TABLE_SQL =
+        "CREATE TABLE data(" +
+            "_id INTEGER PRIMARY KEY," +
+            "mime_type TEXT NOT NULL," +
+            "note_id INTEGER NOT NULL DEFAULT 0," +
+            "created_date INTEGER NOT NULL DEFAULT (strftime('%s','now') * 1000)," +
+            "modified_date INTEGER NOT NULL DEFAULT (strftime('%s','now') * 1000)," +
+            "content TEXT NOT NULL DEFAULT ''," +
+            "data1 INTEGER," +
+            "data2 INTEGER," +
+            "data3 TEXT NOT NULL DEFAULT ''," +
+            "data4 TEXT NOT NULL DEFAULT ''," +
+            "data5 TEXT NOT NULL DEFAULT ''" +
+        ")";
+
+    private static final long TEXT_NOTE_ID = 1;
+
+    private static final long CHECK_LIST_NOTE_ID = 2;
+
+    private Context mContext;
+
+    private File mDbFile;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mDbFile = mContext.getDatabasePath("note.db");
+        mDbFile.getParentFile().mkdirs();
+        mDbFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mDbFile.delete();
+    }
+
+    private void createV4Database() {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(mDbFile, null);
+        try {
+            db.execSQL(V4_NOTE_TABLE_SQL);
+            db.execSQL(V4_DATA_TABLE_SQL);
+            db.execSQL("INSERT INTO note(_id,parent_id,type) VALUES(" + Notes.ID_ROOT_FOLDER
+                    + ",0," + Notes.TYPE_SYSTEM + ")");
+            db.execSQL("INSERT INTO note(_id,parent_id,type) VALUES(" + Notes.ID_TRASH_FOLER
+                    + ",0," + Notes.TYPE_SYSTEM + ")");
+
+            // the v4 triggers copied the whole text, marks included, into the snippet
+            db.execSQL("INSERT INTO note(_id,parent_id,type,snippet) VALUES(" + TEXT_NOTE_ID
+                    + "," + Notes.ID_ROOT_FOLDER + "," + Notes.TYPE_NOTE + ",'plain text')");
+            db.execSQL("INSERT INTO data(mime_type,note_id,content,data1) VALUES('"
+                    + DataConstants.NOTE + "'," + TEXT_NOTE_ID + ",'plain text',0)");
+
+            String list = CheckItem.TAG_UNCHECKED + " milk\n" + CheckItem.TAG_CHECKED + " eggs\n";
+            db.execSQL("INSERT INTO note(_id,parent_id,type,snippet) VALUES(" + CHECK_LIST_NOTE_ID
+                    + "," + Notes.ID_ROOT_FOLDER + "," + Notes.TYPE_NOTE + ",?)",
+                    new Object[] { list });
+            db.execSQL("INSERT INTO data(mime_type,note_id,content,data1) VALUES('"
+                    + DataConstants.NOTE + "'," + CHECK_LIST_NOTE_ID + ",?,"
+                    + TextNote.MODE_CHECK_LIST + ")", new Object[] { list });
+            db.setVersion(4);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static String getSnippet(SQLiteDatabase db, long noteId) {
+        return DatabaseUtils.stringForQuery(db, "SELECT snippet FROM note WHERE _id=" + noteId,
+                null);
+    }
+
+    @Test
+    public void upgradeFromV4KeepsCheckListSnippets() {
+        createV4Database();
+
+        NotesDatabaseHelper helper = new NotesDatabaseHelper(mContext);
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+
+            assertEquals("plain text", getSnippet(db, TEXT_NOTE_ID));
+            assertEquals("milk\neggs", getSnippet(db, CHECK_LIST_NOTE_ID));
+
+            Cursor c = db.rawQuery("SELECT content," + CheckItem.CHECKED + " FROM data"
+                    + " WHERE note_id=" + CHECK_LIST_NOTE_ID + " AND mime_type=?"
+                    + " ORDER BY " + CheckItem.POSITION, new String[] { DataConstants.CHECK_ITEM });
+            try {
+                assertEquals(2, c.getCount());
+                c.moveToNext();
+                assertEquals("milk", c.getString(0));
+                assertEquals(0, c.getInt(1));
+                c.moveToNext();
+                assertEquals("eggs", c.getString(0));
+                assertEquals(1, c.getInt(1));
+            } finally {
+                c.close();
+            }
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void searchQueriesDoNotScanTheNoteTable() {
+        NotesDatabaseHelper helper = new NotesDatabaseHelper(mContext);
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            QueryPlans.assertNoNoteTableScan(db, NotesProvider.NOTES_FTS_SEARCH_QUERY,
+                    new String[] { "milk*" });
+            QueryPlans.assertNoNoteTableScan(db, NotesProvider.NOTES_CONTENT_SEARCH_QUERY,
+                    new String[] { "%milk%" });
+        } finally {
+            helper.close();
+        }
+    }
+
+    private static int countMatches(SQLiteDatabase db, String query) {
+        return (int) DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+                + NotesDatabaseHelper.TABLE.NOTE_FTS + " WHERE "
+                + NotesDatabaseHelper.TABLE.NOTE_FTS + " MATCH ?", new String[] { query });
+    }
+
+    private static int countContentMatches(SQLiteDatabase db, String pattern) {
+        Cursor c = db.rawQuery(NotesProvider.NOTES_CONTENT_SEARCH_QUERY, new String[] { pattern });
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void largeNoteIsIndexedBySegment() {
+        NotesDatabaseHelper helper = new NotesDatabaseHelper(mContext);
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            db.execSQL("INSERT INTO note(_id,parent_id,type) VALUES(" + TEXT_NOTE_ID + ","
+                    + Notes.ID_ROOT_FOLDER + "," + Notes.TYPE_NOTE + ")");
+            // the segments are written before the head, "straddling" and the phrase cross
+            // the boundaries between the segments
+            db.execSQL("INSERT INTO data(mime_type,note_id,content," + TextNote.CHUNK_INDEX
+                    + ") VALUES('" + DataConstants.NOTE_CHUNK + "'," + TEXT_NOTE_ID
+                    + ",'dling word boundary',1)");
+            db.execSQL("INSERT INTO data(mime_type,note_id,content," + TextNote.CHUNK_INDEX
+                    + ") VALUES('" + DataConstants.NOTE_CHUNK + "'," + TEXT_NOTE_ID
+                    + ",' second segment',2)");
+            db.execSQL("INSERT INTO data(mime_type,note_id,content) VALUES('"
+                    + DataConstants.NOTE + "'," + TEXT_NOTE_ID + ",'first strad')");
+
+            assertEquals(1, countMatches(db, "straddling"));
+            assertEquals(1, countMatches(db, "\"boundary second\""));
+            assertEquals(0, countMatches(db, "strad"));
+            assertEquals(1, countContentMatches(db, "%stradd%"));
+
+            // shrinking the note drops the segment, the one before it is re-indexed
+            db.execSQL("DELETE FROM data WHERE mime_type='" + DataConstants.NOTE_CHUNK + "' AND "
+                    + TextNote.CHUNK_INDEX + "=2");
+            assertEquals(0, countMatches(db, "second"));
+            assertEquals(1, countMatches(db, "straddling"));
+
+            // a segment inserted in the middle moves the next one, only their neighbours change
+            db.execSQL("UPDATE data SET " + TextNote.CHUNK_INDEX + "=2 WHERE mime_type='"
+                    + DataConstants.NOTE_CHUNK + "'");
+            db.execSQL("INSERT INTO data(mime_type,note_id,content," + TextNote.CHUNK_INDEX
+                    + ") VALUES('" + DataConstants.NOTE_CHUNK + "'," + TEXT_NOTE_ID
+                    + ",'dle middle bun',1)");
+            assertEquals(0, countMatches(db, "straddling"));
+            assertEquals(1, countMatches(db, "straddle"));
+            assertEquals(1, countMatches(db, "bundling"));
+            assertEquals(1, countContentMatches(db, "%bundling%"));
+        } finally {
+            helper.close();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.micode.notes.data.Notes.NoteColumns;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the connection settings applied by {@link NotesDatabaseHelper#onConfigure}, and that
+ * the notes list query is not blocked while a sync writes a large batch of notes in one
+ * transaction with write-ahead logging
+ */
+@RunWith(RobolectricTestRunner.class)
+public class NotesDatabaseTuningBenchmarkTest {
+
+    private static final int BULK_NOTES = 2000;
+
+    private static final int READS = 50;
+
+    // how long the writer keeps its transaction open waiting for the first read
+    private static final long WRITER_WAIT_MS = 1000;
+
+    private static final String LIST_QUERY = "SELECT * FROM " + NotesDatabaseHelper.TABLE.NOTE
+            + " WHERE " + NoteColumns.PARENT_ID + "=" + Notes.ID_ROOT_FOLDER
+            + " ORDER BY " + NoteColumns.TYPE + " DESC," + NoteColumns.MODIFIED_DATE + " DESC,"
+            + NoteColumns.ID + " DESC LIMIT 50";
+
+    private Context mContext;
+
+    private File mDbFile;
+
+    private static class Result {
+        boolean readDuringWrite; // a read finished before the write transaction committed
+    }
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mDbFile = mContext.getDatabasePath("note.db");
+        mDbFile.getParentFile().mkdirs();
+        SQLiteDatabase.deleteDatabase(mDbFile);
+    }
+
+    @After
+    public void tearDown() {
+        NotesDatabaseHelper.setTuning(new NotesDatabaseHelper.Tuning());
+        SQLiteDatabase.deleteDatabase(mDbFile);
+    }
+
+    private Result run(boolean walEnabled) throws Exception {
+        NotesDatabaseHelper.Tuning tuning = new NotesDatabaseHelper.Tuning();
+        tuning.walEnabled = walEnabled;
+        NotesDatabaseHelper.setTuning(tuning);
+
+        final NotesDatabaseHelper helper = new NotesDatabaseHelper(mContext);
+        final Result result = new Result();
+        try {
+            final SQLiteDatabase db = helper.getWritableDatabase();
+            final CountDownLatch writing = new CountDownLatch(1);
+            final CountDownLatch firstRead = new CountDownLatch(1);
+
+            Thread writer = new Thread(new Runnable() {
+                public void run() {
+                    db.beginTransaction();
+                    try {
+                        ContentValues values = new ContentValues();
+                        for (int i = 0; i < BULK_NOTES; i++) {
+                            values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+                            values.put(NoteColumns.SNIPPET, "note " + i);
+                            db.insert(NotesDatabaseHelper.TABLE.NOTE, null, values);
+                        }
+                        writing.countDown();
+                        try {
+                            result.readDuringWrite = firstRead.await(WRITER_WAIT_MS,
+                                    TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                }
+            });
+            writer.start();
+            assertTrue(writing.await(30, TimeUnit.SECONDS));
+
+            for (int i = 0; i < READS; i++) {
+                Cursor c = db.rawQuery(LIST_QUERY, null);
+                try {
+                    c.getCount();
+                } finally {
+                    c.close();
+                }
+                firstRead.countDown();
+            }
+            writer.join();
+        } finally {
+            helper.close();
+            SQLiteDatabase.deleteDatabase(mDbFile);
+        }
+        return result;
+    }
+
+    private static String queryPragma(SQLiteDatabase db, String name) {
+        Cursor c = db.rawQuery("PRAGMA " + name, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getString(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private void assertConfigured(String synchronous, String expectedLevel) {
+        NotesDatabaseHelper.Tuning tuning = new NotesDatabaseHelper.Tuning();
+        tuning.synchronous = synchronous;
+        NotesDatabaseHelper.setTuning(tuning);
+
+        NotesDatabaseHelper helper = new NotesDatabaseHelper(mContext);
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            assertEquals("wal", queryPragma(db, "journal_mode").toLowerCase());
+            assertEquals(expectedLevel, queryPragma(db, "synchronous"));
+        } finally {
+            helper.close();
+            SQLiteDatabase.deleteDatabase(mDbFile);
+        }
+    }
+
+    @Test
+    public void walConnectionKeepsConfiguredSynchronous() {
+        // the numeric values of the synchronous levels: OFF 0, NORMAL 1, FULL 2
+        assertConfigured("NORMAL", "1");
+        assertConfigured("FULL", "2");
+    }
+
+    @Test
+    public void walReadsDoNotWaitForBulkWrite() throws Exception {
+        assertTrue("a wal read should finish while the write transaction is open",
+                run(true).readDuringWrite);
+        assertFalse("a rollback journal read should wait for the write transaction",
+                run(false).readDuringWrite);
+    }
+}
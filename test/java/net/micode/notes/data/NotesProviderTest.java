@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.data.Notes.NoteColumns;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the bound UPDATE of {@link NotesProvider#updateNotes}
+ */
+@RunWith(RobolectricTestRunner.class)
+public class NotesProviderTest {
+
+    private static final String ID_SELECTION = NoteColumns.ID + "=?";
+
+    private Context mContext;
+
+    private File mDbFile;
+
+    private NotesDatabaseHelper mHelper;
+
+    private SQLiteDatabase mDb;
+
+    private long mFirstId;
+
+    private long mSecondId;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mDbFile = mContext.getDatabasePath("note.db");
+        mDbFile.getParentFile().mkdirs();
+        SQLiteDatabase.deleteDatabase(mDbFile);
+
+        mHelper = new NotesDatabaseHelper(mContext);
+        mDb = mHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER);
+        mFirstId = mDb.insert(TABLE.NOTE, null, values);
+        mSecondId = mDb.insert(TABLE.NOTE, null, values);
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.close();
+        SQLiteDatabase.deleteDatabase(mDbFile);
+    }
+
+    private String queryColumn(String column, long id) {
+        return DatabaseUtils.stringForQuery(mDb, "SELECT " + column + " FROM " + TABLE.NOTE
+                + " WHERE " + NoteColumns.ID + "=" + id, null);
+    }
+
+    @Test
+    public void updateNotesBindsValuesAndBumpsTheVersion() {
+        ContentValues values = new ContentValues();
+        // a quote and a placeholder in the value are bound, not spliced into the sql
+        values.put(NoteColumns.SNIPPET, "it's ?");
+        int count = new NotesProvider().updateNotes(mDb, values, ID_SELECTION,
+                new String[] { String.valueOf(mFirstId) });
+
+        assertEquals(1, count);
+        assertEquals("it's ?", queryColumn(NoteColumns.SNIPPET, mFirstId));
+        assertEquals("1", queryColumn(NoteColumns.VERSION, mFirstId));
+        assertEquals("0", queryColumn(NoteColumns.VERSION, mSecondId));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void updateNotesRejectsEmptyValues() {
+        new NotesProvider().updateNotes(mDb, new ContentValues(), ID_SELECTION,
+                new String[] { String.valueOf(mFirstId) });
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Query plan checks shared by the tests of the classes that query the note table
+ */
+public final class QueryPlans {
+
+    // a full scan of the note table, "SCAN TABLE note" before SQLite 3.36 and "SCAN note" after
+    private static final Pattern NOTE_TABLE_SCAN = Pattern.compile("SCAN (TABLE )?note\\b");
+
+    private QueryPlans() {
+    }
+
+    /**
+     * The statement ContentResolver.query on the note uri runs for the arguments
+     */
+    public static String noteQuery(String selection, String sortOrder, int limit) {
+        return "SELECT * FROM " + NotesDatabaseHelper.TABLE.NOTE + " WHERE (" + selection + ")"
+                + (sortOrder != null ? " ORDER BY " + sortOrder : "")
+                + (limit > 0 ? " LIMIT " + limit : "");
+    }
+
+    public static void assertNoNoteTableScan(SQLiteDatabase db, String sql, String[] args) {
+        Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detail = c.getColumnIndexOrThrow("detail");
+            while (c.moveToNext()) {
+                String step = c.getString(detail);
+                assertFalse(sql + ": " + step, NOTE_TABLE_SCAN.matcher(step).find());
+            }
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import net.micode.notes.gtask.data.Node;
+import net.micode.notes.gtask.data.Task;
+import net.micode.notes.gtask.data.TaskList;
+import net.micode.notes.gtask.exception.ActionFailureException;
+import net.micode.notes.gtask.exception.NetworkFailureException;
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class GTaskClientTest {
+
+    // 记录提交的操作，并为每个创建操作返回新的Gid
+    private static class FakeTransport implements GTaskTransport {
+        final ArrayList<JSONObject> actions = new ArrayList<JSONObject>();
+
+        int posts;
+
+        int dropResults; // 接下来这么多次提交不返回任何结果
+
+        int failPosts; // 接下来这么多次提交在服务器执行后连接失败
+
+        public InputStream get(String url) throws IOException {
+            throw new IOException("not supported");
+        }
+
+        public InputStream post(String url, String form) throws IOException {
+            posts++;
+            try {
+                String request = URLDecoder.decode(form.substring(form.indexOf('=') + 1), "UTF-8");
+                JSONArray actionList = new JSONObject(request)
+                        .getJSONArray(GTaskStringUtils.GTASK_JSON_ACTION_LIST);
+                JSONArray results = new JSONArray();
+                boolean drop = dropResults > 0;
+                if (drop) {
+                    dropResults--;
+                }
+                for (int i = 0; i < actionList.length(); i++) {
+                    JSONObject action = actionList.getJSONObject(i);
+                    actions.add(action);
+                    if (drop) {
+                        continue;
+                    }
+                    int actionId = action.getInt(GTaskStringUtils.GTASK_JSON_ACTION_ID);
+                    JSONObject result = new JSONObject();
+                    result.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, actionId);
+                    if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE.equals(
+                            action.getString(GTaskStringUtils.GTASK_JSON_ACTION_TYPE))) {
+                        result.put(GTaskStringUtils.GTASK_JSON_NEW_ID, "gid-" + actionId);
+                    }
+                    results.put(result);
+                }
+                if (failPosts > 0) {
+                    failPosts--;
+                    throw new IllegalStateException("connection reset");
+                }
+                JSONObject response = new JSONObject();
+                response.put(GTaskStringUtils.GTASK_JSON_RESULTS, results);
+                return new ByteArrayInputStream(response.toString().getBytes("UTF-8"));
+            } catch (Exception e) {
+                throw new IOException(e.toString());
+            }
+        }
+
+        public boolean hasCookie(String name) {
+            return true;
+        }
+
+        public void clearCookies() {
+        }
+
+        public int getConnectionCount() {
+            return 1;
+        }
+
+        public void shutdown() {
+        }
+    }
+
+    private FakeTransport mTransport;
+
+    private GTaskClient mClient;
+
+    @Before
+    public void setUp() throws Exception {
+        Constructor<GTaskClient> constructor = GTaskClient.class.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        mClient = constructor.newInstance();
+        mTransport = new FakeTransport();
+        mClient.setTransport(mTransport);
+        Field loggedIn = GTaskClient.class.getDeclaredField("mLoggedin");
+        loggedIn.setAccessible(true);
+        loggedIn.setBoolean(mClient, true);
+        mClient.setBatchLimits(100, 1024 * 1024, Long.MAX_VALUE);
+    }
+
+    private static TaskList newTaskList(String gid) {
+        TaskList list = new TaskList();
+        list.setGid(gid);
+        list.setName("list");
+        return list;
+    }
+
+    private static Task newTask(TaskList list, String name) {
+        Task task = new Task();
+        task.setName(name);
+        list.addChildTask(task);
+        return task;
+    }
+
+    @Test
+    public void createTwoTasksInOneList() throws Exception {
+        TaskList list = newTaskList("list-gid");
+        Task first = newTask(list, "first");
+        Task second = newTask(list, "second");
+
+        mClient.createTask(first);
+        mClient.createTask(second);
+        mClient.commitUpdate();
+
+        assertEquals(1, mTransport.posts);
+        assertEquals(2, mTransport.actions.size());
+        JSONObject firstCreate = mTransport.actions.get(0);
+        assertFalse(firstCreate.has(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID));
+        JSONObject secondCreate = mTransport.actions.get(1);
+        assertEquals(firstCreate.getString(GTaskStringUtils.GTASK_JSON_ID),
+                secondCreate.getString(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID));
+        assertEquals("list-gid", secondCreate.getString(GTaskStringUtils.GTASK_JSON_LIST_ID));
+        assertEquals("gid-" + firstCreate.getInt(GTaskStringUtils.GTASK_JSON_ACTION_ID),
+                first.getGid());
+        assertEquals("gid-" + secondCreate.getInt(GTaskStringUtils.GTASK_JSON_ACTION_ID),
+                second.getGid());
+    }
+
+    @Test
+    public void updateOfQueuedCreateReferencesItsPlaceholder() throws Exception {
+        TaskList list = newTaskList("list-gid");
+        Task task = newTask(list, "task");
+
+        mClient.createTask(task);
+        mClient.addUpdateNode(task);
+        mClient.commitUpdate();
+
+        assertEquals(1, mTransport.posts);
+        assertEquals(2, mTransport.actions.size());
+        assertEquals(mTransport.actions.get(0).getString(GTaskStringUtils.GTASK_JSON_ID),
+                mTransport.actions.get(1).getString(GTaskStringUtils.GTASK_JSON_ID));
+    }
+
+    @Test
+    public void placeholderIsResolvedAcrossBatches() throws Exception {
+        mClient.setBatchLimits(1, 1024 * 1024, Long.MAX_VALUE);
+        TaskList list = newTaskList("list-gid");
+        Task first = newTask(list, "first");
+        Task second = newTask(list, "second");
+
+        mClient.createTask(first);
+        mClient.createTask(second); // 批次已满，第一个创建操作先提交
+        mClient.commitUpdate();
+
+        assertEquals(2, mTransport.posts);
+        assertEquals(first.getGid(), mTransport.actions.get(1)
+                .getString(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID));
+    }
+
+    @Test
+    public void createWithoutNewIdIsNotReplayed() throws Exception {
+        Task task = newTask(newTaskList("list-gid"), "task");
+        mTransport.dropResults = 1;
+
+        mClient.createTask(task);
+        try {
+            mClient.commitUpdate();
+            fail("the missing new id should be reported");
+        } catch (ActionFailureException e) {
+            // expected
+        }
+        mClient.commitUpdate();
+
+        assertEquals(1, mTransport.posts);
+        assertEquals(null, task.getGid());
+    }
+
+    @Test
+    public void failedBatchIsNotReplayed() throws Exception {
+        Task task = newTask(newTaskList("list-gid"), "task");
+        mTransport.failPosts = 1;
+
+        mClient.createTask(task);
+        try {
+            mClient.commitUpdate();
+            fail("the network failure should be reported");
+        } catch (NetworkFailureException e) {
+            // expected
+        }
+        mClient.commitUpdate();
+
+        assertEquals(1, mTransport.posts);
+    }
+
+    @Test
+    public void failingListenerDoesNotSkipTheOthers() throws Exception {
+        TaskList list = newTaskList("list-gid");
+        Task first = newTask(list, "first");
+        Task second = newTask(list, "second");
+        final ArrayList<Node> notified = new ArrayList<Node>();
+
+        mClient.createTask(first, new GTaskClient.ActionListener() {
+            public void onActionDone(Node node) {
+                throw new ActionFailureException("listener failed");
+            }
+        });
+        mClient.createTask(second, new GTaskClient.ActionListener() {
+            public void onActionDone(Node node) {
+                notified.add(node);
+            }
+        });
+        try {
+            mClient.commitUpdate();
+            fail("the listener failure should be reported");
+        } catch (ActionFailureException e) {
+            // expected
+        }
+
+        assertEquals(1, notified.size());
+        assertSame(second, notified.get(0));
+    }
+
+    @Test
+    public void independentCreatesShareOneBatch() throws Exception {
+        Task first = newTask(newTaskList("list-a"), "first");
+        Task second = newTask(newTaskList("list-b"), "second");
+
+        mClient.createTask(first);
+        mClient.createTask(second);
+        mClient.commitUpdate();
+
+        assertEquals(1, mTransport.posts);
+        assertEquals(2, mTransport.actions.size());
+    }
+}
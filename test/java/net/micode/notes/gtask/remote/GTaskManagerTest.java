@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper;
+import net.micode.notes.data.QueryPlans;
+import net.micode.notes.gtask.data.TaskList;
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URLDecoder;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class GTaskManagerTest {
+
+    private static final int LISTS = 4;
+
+    private static final int TASKS_PER_LIST = 3;
+
+    private static final long LIST_DELAY_MS = 300; // 每个列表的响应延迟
+
+    // 代替服务器：GET返回任务列表概要，getall请求延迟一段时间后返回列表中的任务
+    private static class StandInTransport implements GTaskTransport {
+        private int mInFlight;
+
+        int maxInFlight;
+
+        int listRequests;
+
+        public InputStream get(String url) throws IOException {
+            try {
+                JSONArray lists = new JSONArray();
+                lists.put(newList("meta-gid",
+                        GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_META));
+                for (int i = 0; i < LISTS; i++) {
+                    lists.put(newList("list-" + i, GTaskStringUtils.MIUI_FOLDER_PREFFIX + "folder" + i));
+                }
+                lists.put(newList("other-gid", "not a notes folder"));
+                JSONObject setup = new JSONObject();
+                setup.put("t", new JSONObject().put(GTaskStringUtils.GTASK_JSON_LISTS, lists));
+                return stream("<script>_setup(" + setup.toString() + ")}</script>");
+            } catch (Exception e) {
+                throw new IOException(e.toString());
+            }
+        }
+
+        public InputStream post(String url, String form) throws IOException {
+            synchronized (this) {
+                listRequests++;
+                mInFlight++;
+                maxInFlight = Math.max(maxInFlight, mInFlight);
+            }
+            try {
+                String request = URLDecoder.decode(form.substring(form.indexOf('=') + 1), "UTF-8");
+                JSONObject action = new JSONObject(request)
+                        .getJSONArray(GTaskStringUtils.GTASK_JSON_ACTION_LIST).getJSONObject(0);
+                String listGid = action.getString(GTaskStringUtils.GTASK_JSON_LIST_ID);
+                Thread.sleep(LIST_DELAY_MS);
+
+                JSONArray tasks = new JSONArray();
+                if (listGid.startsWith("list-")) {
+                    for (int i = 0; i < TASKS_PER_LIST; i++) {
+                        JSONObject task = new JSONObject();
+                        task.put(GTaskStringUtils.GTASK_JSON_ID, listGid + "-task-" + i);
+                        task.put(GTaskStringUtils.GTASK_JSON_NAME, "task " + i);
+                        task.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, 100 + i);
+                        tasks.put(task);
+                    }
+                }
+                return stream(new JSONObject().put(GTaskStringUtils.GTASK_JSON_TASKS, tasks).toString());
+            } catch (Exception e) {
+                throw new IOException(e.toString());
+            } finally {
+                synchronized (this) {
+                    mInFlight--;
+                }
+            }
+        }
+
+        public boolean hasCookie(String name) {
+            return true;
+        }
+
+        public void clearCookies() {
+        }
+
+        public int getConnectionCount() {
+            return 1;
+        }
+
+        public void shutdown() {
+        }
+
+        private static JSONObject newList(String gid, String name) throws Exception {
+            JSONObject list = new JSONObject();
+            list.put(GTaskStringUtils.GTASK_JSON_ID, gid);
+            list.put(GTaskStringUtils.GTASK_JSON_NAME, name);
+            return list;
+        }
+
+        private static InputStream stream(String content) throws IOException {
+            return new ByteArrayInputStream(content.getBytes("UTF-8"));
+        }
+    }
+
+    private StandInTransport mTransport;
+
+    private GTaskManager mManager;
+
+    @Before
+    public void setUp() throws Exception {
+        GTaskClient client = GTaskClient.getInstance();
+        mTransport = new StandInTransport();
+        client.setTransport(mTransport);
+        setField(GTaskClient.class, client, "mLoggedin", true);
+
+        Constructor<GTaskManager> constructor = GTaskManager.class.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        mManager = constructor.newInstance();
+    }
+
+    @After
+    public void tearDown() {
+        GTaskClient.getInstance().setTransport(null);
+    }
+
+    private static void setField(Class<?> cls, Object target, String name, Object value)
+            throws Exception {
+        Field field = cls.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T getField(String name) throws Exception {
+        Field field = GTaskManager.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return (T) field.get(mManager);
+    }
+
+    private void initGTaskList() throws Exception {
+        Method method = GTaskManager.class.getDeclaredMethod("initGTaskList");
+        method.setAccessible(true);
+        try {
+            method.invoke(mManager);
+        } catch (InvocationTargetException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    @Test
+    public void listsAreFetchedConcurrentlyAndMergedInOrder() throws Exception {
+        long start = System.currentTimeMillis();
+        initGTaskList();
+        long elapsed = System.currentTimeMillis() - start;
+
+        // the meta list and every notes folder, but not the foreign list
+        assertEquals(LISTS + 1, mTransport.listRequests);
+        assertTrue("lists should be fetched in parallel", mTransport.maxInFlight > 1);
+        long sequential = (LISTS + 1) * LIST_DELAY_MS;
+        assertTrue("took " + elapsed + "ms, sequential fetching takes " + sequential + "ms",
+                elapsed < sequential);
+
+        HashMap<String, TaskList> lists = getField("mGTaskListHashMap");
+        HashMap<String, ?> nodes = getField("mGTaskHashMap");
+        HashMap<String, Long> syncIds = getField("mRemoteSyncIds");
+        assertEquals(LISTS, lists.size());
+        assertEquals(LISTS * (TASKS_PER_LIST + 1), nodes.size());
+        for (int i = 0; i < LISTS; i++) {
+            TaskList list = lists.get("list-" + i);
+            assertNotNull(list);
+            assertEquals(TASKS_PER_LIST, list.getChildTaskCount());
+            for (int j = 0; j < TASKS_PER_LIST; j++) {
+                String gid = "list-" + i + "-task-" + j;
+                assertEquals(gid, list.getChildTaskByIndex(j).getGid()); // 保持服务器返回的顺序
+                assertEquals(Long.valueOf(100 + j), syncIds.get(gid));
+            }
+        }
+        TaskList metaList = getField("mMetaList");
+        assertEquals("meta-gid", metaList.getGid());
+    }
+
+    @Test
+    public void localSyncQueriesDoNotScanTheNoteTable() {
+        Context context = RuntimeEnvironment.application;
+        SQLiteDatabase.deleteDatabase(context.getDatabasePath("note.db"));
+        NotesDatabaseHelper helper = new NotesDatabaseHelper(context);
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            String trash = String.valueOf(Notes.ID_TRASH_FOLER);
+            QueryPlans.assertNoNoteTableScan(db, QueryPlans.noteQuery(
+                    GTaskManager.LOCAL_TRASH_SELECTION, null, 0), new String[] {
+                        String.valueOf(Notes.TYPE_SYSTEM), trash
+                    });
+            QueryPlans.assertNoNoteTableScan(db, QueryPlans.noteQuery(
+                    GTaskManager.LOCAL_TYPE_SELECTION, NoteColumns.TYPE + " DESC", 0),
+                    new String[] {
+                        String.valueOf(Notes.TYPE_NOTE), trash
+                    });
+            QueryPlans.assertNoNoteTableScan(db, QueryPlans.noteQuery(
+                    GTaskManager.LOCAL_TYPE_SELECTION, NoteColumns.TYPE + " DESC", 0),
+                    new String[] {
+                        String.valueOf(Notes.TYPE_FOLDER), trash
+                    });
+            // LOCAL_NOTES_SELECTION reads every note and folder, a scan is the right plan for it
+        } finally {
+            helper.close();
+            SQLiteDatabase.deleteDatabase(context.getDatabasePath("note.db"));
+        }
+    }
+}
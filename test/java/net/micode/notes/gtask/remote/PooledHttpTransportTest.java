@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class PooledHttpTransportTest {
+
+    private static final int POSTS = 10;
+
+    private static final String RESPONSE = "{\"results\":[]}";
+
+    // 本地的模拟服务器，统计接受的TCP连接数，同一连接上的请求按HTTP/1.1保持连接逐个应答
+    private static class MockServer implements Runnable {
+        final ServerSocket mServerSocket;
+
+        final AtomicInteger accepted = new AtomicInteger();
+
+        final AtomicInteger requests = new AtomicInteger();
+
+        MockServer() throws IOException {
+            mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/tasks/r/ig";
+        }
+
+        public void run() {
+            while (true) {
+                final Socket socket;
+                try {
+                    socket = mServerSocket.accept();
+                } catch (IOException e) {
+                    return; // 服务器已关闭
+                }
+                accepted.incrementAndGet();
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                DataInputStream input = new DataInputStream(socket.getInputStream());
+                OutputStream output = socket.getOutputStream();
+                while (true) {
+                    int contentLength = 0;
+                    String line = readLine(input);
+                    if (line == null) {
+                        return; // 客户端关闭了连接
+                    }
+                    while ((line = readLine(input)) != null && line.length() > 0) {
+                        if (line.toLowerCase().startsWith("content-length:")) {
+                            contentLength = Integer.parseInt(line.substring(15).trim());
+                        }
+                    }
+                    input.readFully(new byte[contentLength]);
+                    requests.incrementAndGet();
+
+                    byte[] body = RESPONSE.getBytes("UTF-8");
+                    output.write(("HTTP/1.1 200 OK\r\n"
+                            + "Content-Type: application/json\r\n"
+                            + "Content-Length: " + body.length + "\r\n"
+                            + "Connection: keep-alive\r\n\r\n").getBytes("UTF-8"));
+                    output.write(body);
+                    output.flush();
+                }
+            } catch (IOException e) {
+                // the connection is gone
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        private static String readLine(InputStream input) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = input.read()) != -1 && b != '\n') {
+                if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            if (b == -1 && line.size() == 0) {
+                return null;
+            }
+            return line.toString("UTF-8");
+        }
+
+        void close() throws IOException {
+            mServerSocket.close();
+        }
+    }
+
+    private MockServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new MockServer();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+    }
+
+    private static String readFully(InputStream input) throws IOException {
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                content.write(buffer, 0, count);
+            }
+            return content.toString("UTF-8");
+        } finally {
+            input.close(); // 连接回到连接池中
+        }
+    }
+
+    private static String form(int size) {
+        StringBuilder form = new StringBuilder("r=");
+        while (form.length() < size) {
+            form.append('a');
+        }
+        return form.toString();
+    }
+
+    @Test
+    public void repeatedPostsReuseOneConnection() throws IOException {
+        PooledHttpTransport transport = new PooledHttpTransport(GTaskClient.MAX_CONNECTIONS);
+        try {
+            for (int i = 0; i < POSTS; i++) {
+                // 小请求体不压缩，大请求体以gzip发送，两者都复用同一连接
+                assertEquals(RESPONSE, readFully(transport.post(mServer.getUrl(),
+                        form(i % 2 == 0 ? 100 : 4096))));
+            }
+        } finally {
+            transport.shutdown();
+        }
+
+        assertEquals(POSTS, mServer.requests.get());
+        assertEquals(1, mServer.accepted.get());
+        assertEquals(1, transport.getConnectionCount());
+    }
+
+    @Test
+    public void clientPerRequestHandshakesEveryTime() throws IOException {
+        for (int i = 0; i < POSTS; i++) {
+            PooledHttpTransport transport = new PooledHttpTransport(GTaskClient.MAX_CONNECTIONS);
+            try {
+                assertEquals(RESPONSE, readFully(transport.post(mServer.getUrl(), form(100))));
+            } finally {
+                transport.shutdown();
+            }
+        }
+
+        // 与 repeatedPostsReuseOneConnection 对比：每个请求新建客户端时每次都要握手
+        assertEquals(POSTS, mServer.accepted.get());
+    }
+}
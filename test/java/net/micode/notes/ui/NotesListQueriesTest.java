@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper;
+import net.micode.notes.data.QueryPlans;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * Checks that the notes list, the move dialog and the alarm queue are served by the indexes of
+ * the note table
+ */
+@RunWith(RobolectricTestRunner.class)
+public class NotesListQueriesTest {
+
+    private Context mContext;
+
+    private NotesDatabaseHelper mHelper;
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        SQLiteDatabase.deleteDatabase(mContext.getDatabasePath("note.db"));
+        mHelper = new NotesDatabaseHelper(mContext);
+        mDb = mHelper.getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.close();
+        SQLiteDatabase.deleteDatabase(mContext.getDatabasePath("note.db"));
+    }
+
+    private void assertListQuery(String selection, String[] args) {
+        QueryPlans.assertNoNoteTableScan(mDb, QueryPlans.noteQuery(selection,
+                NotesListActivity.NOTES_LIST_SORT_ORDER, 50), args);
+    }
+
+    @Test
+    public void notesListQueriesDoNotScanTheNoteTable() {
+        String folderId = String.valueOf(Notes.ID_ROOT_FOLDER);
+
+        // first page and the next keyset page
+        assertListQuery(NotesListActivity.NORMAL_SELECTION, new String[] { folderId });
+        assertListQuery(NotesListActivity.ROOT_FOLDER_SELECTION, new String[] { folderId });
+        assertListQuery("(" + NotesListActivity.NORMAL_SELECTION + ") AND ("
+                + NotesListActivity.NEXT_PAGE_SELECTION + ")", new String[] {
+                    folderId, "0", "0", "1000", "1000", "10"
+                });
+        QueryPlans.assertNoNoteTableScan(mDb, "SELECT COUNT(*) FROM "
+                + NotesDatabaseHelper.TABLE.NOTE + " WHERE ("
+                + NotesListActivity.ROOT_FOLDER_SELECTION + ") AND " + NoteColumns.TYPE + "="
+                + Notes.TYPE_NOTE, new String[] { folderId });
+
+        // destination folders of a move, from a folder and from the root folder
+        String[] folderArgs = new String[] {
+            String.valueOf(Notes.TYPE_FOLDER), String.valueOf(Notes.ID_TRASH_FOLER), folderId
+        };
+        String sortOrder = NoteColumns.MODIFIED_DATE + " DESC";
+        QueryPlans.assertNoNoteTableScan(mDb, QueryPlans.noteQuery(
+                NotesListActivity.FOLDER_SELECTION, sortOrder, 0), folderArgs);
+        QueryPlans.assertNoNoteTableScan(mDb, QueryPlans.noteQuery("("
+                + NotesListActivity.FOLDER_SELECTION + ") OR (" + NoteColumns.ID + "="
+                + Notes.ID_ROOT_FOLDER + ")", sortOrder, 0), folderArgs);
+    }
+
+    @Test
+    public void alarmQueriesDoNotScanTheNoteTable() {
+        QueryPlans.assertNoNoteTableScan(mDb, QueryPlans.noteQuery(AlarmScheduler.SELECTION,
+                AlarmScheduler.SORT_ORDER, AlarmScheduler.MAX_ARMED), new String[] { "1000", "0" });
+        QueryPlans.assertNoNoteTableScan(mDb, QueryPlans.noteQuery(AlarmScheduler.TIE_SELECTION,
+                null, 0), new String[] { "1000", "0" });
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.widget;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.NotesDatabaseHelper;
+import net.micode.notes.data.QueryPlans;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class NoteWidgetProviderTest {
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        SQLiteDatabase.deleteDatabase(mContext.getDatabasePath("note.db"));
+    }
+
+    @After
+    public void tearDown() {
+        SQLiteDatabase.deleteDatabase(mContext.getDatabasePath("note.db"));
+    }
+
+    @Test
+    public void widgetQueryDoesNotScanTheNoteTable() {
+        NotesDatabaseHelper helper = new NotesDatabaseHelper(mContext);
+        try {
+            QueryPlans.assertNoNoteTableScan(helper.getWritableDatabase(), QueryPlans.noteQuery(
+                    NoteWidgetProvider.getWidgetSelection(3), null, 0), new String[] {
+                        "1", "2", "3", String.valueOf(Notes.ID_TRASH_FOLER)
+                    });
+        } finally {
+            helper.close();
+        }
+    }
+}